@@ -0,0 +1,255 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Microbenchmarks for the hot paths of the seeder, leecher and tracker:
+ * reading and hashing chunks, parsing tracker messages, registry lookups and
+ * encoding query answers.
+ *
+ * Each benchmark is run for WARMUP_SECONDS so the JIT has compiled it, then
+ * timed over ITERATIONS runs of ITERATION_SECONDS each. The result is the mean
+ * time per operation and its spread across runs; benchmarks that move data
+ * also report MB/s. Every operation's result is folded into a sink so the JIT
+ * cannot drop the work.
+ *
+ * Usage: java Benchmark [name-prefix ...]
+ */
+public class Benchmark {
+
+    private static final double WARMUP_SECONDS = 2; // Untimed running before measurement
+    private static final double ITERATION_SECONDS = 1; // Length of one timed run
+    private static final int ITERATIONS = 5; // Timed runs per benchmark
+    private static final int CHUNK_SIZE = 512 * 1024; // Same as the seeder
+    private static final int FILE_SIZE = 64 * 1024 * 1024; // Test file for the chunk benchmarks
+    private static final int SWARM_SIZE = 10000; // Peers in the registry benchmarks' swarm
+
+    private static volatile long sink; // Where results go so that they are not optimized away
+
+    /**
+     * One benchmark. run() performs a single operation.
+     */
+    private abstract static class Case {
+        final String name; // Printed and matched against the command line
+        final long bytesPerOp; // Data moved by one operation, or 0
+
+        Case(String name, long bytesPerOp) {
+            this.name = name;
+            this.bytesPerOp = bytesPerOp;
+        }
+
+        abstract long run() throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        List<String> filters = Arrays.asList(args);
+
+        // Shared fixtures: a test file in the page cache, and a registry with one big swarm
+        Path file = Files.createTempFile("benchmark", ".bin");
+        file.toFile().deleteOnExit();
+        writeRandomFile(file, FILE_SIZE);
+        ChunkFile chunks = ChunkFile.open(file.toString(), CHUNK_SIZE);
+        ExecutorService pool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+
+        String fileHash = hex(new Random(1), 32);
+        PeerRegistry registry = new PeerRegistry(60000);
+        for (int i = 0; i < SWARM_SIZE; i++) {
+            registry.register(fileHash, "10." + (i >> 16 & 255) + "." + (i >> 8 & 255) + "." + (i & 255), 6000,
+                    i % 4 == 0);
+        }
+
+        List<Case> cases = new ArrayList<>();
+        cases.add(new Case("chunk.read", CHUNK_SIZE) {
+            private final ByteBuffer buffer = ByteBuffer.allocateDirect(CHUNK_SIZE);
+            private int index;
+
+            long run() throws Exception {
+                buffer.clear();
+                chunks.readChunk(index, buffer);
+                index = (index + 1) % chunks.getChunkCount();
+                return buffer.get(0);
+            }
+        });
+        cases.add(new Case("chunk.hash", FILE_SIZE) {
+            long run() throws Exception {
+                return ChunkManifest.build(chunks, pool).getContentHash().hashCode();
+            }
+        });
+        cases.add(new Case("message.parse.register", 0) {
+            private final TrackerMessage message = new TrackerMessage(new StringInterner(1024));
+            private final ByteBuffer buffer = ascii("REGISTER|" + fileHash + "|10.1.2.3|6881|PARTIAL");
+
+            long run() {
+                buffer.rewind();
+                message.parse(buffer);
+                return message.port;
+            }
+        });
+        cases.add(new Case("message.parse.announce", 0) {
+            private final TrackerMessage message = new TrackerMessage(new StringInterner(1024));
+            private final ByteBuffer buffer = ascii(announce(20));
+
+            long run() {
+                buffer.rewind();
+                message.parse(buffer);
+                return message.fileCount;
+            }
+        });
+        cases.add(new Case("message.peerHash", 0) {
+            private final ByteBuffer buffer = ascii("UPDATE|" + fileHash + "|10.1.2.3|6881");
+
+            long run() {
+                return TrackerMessage.peerHash(buffer);
+            }
+        });
+        cases.add(new Case("registry.refresh", 0) {
+            private int i;
+
+            long run() {
+                i = (i + 1) % SWARM_SIZE;
+                return registry.refresh(fileHash, "10." + (i >> 16 & 255) + "." + (i >> 8 & 255) + "." + (i & 255),
+                        6000) ? 1 : 0;
+            }
+        });
+        cases.add(new Case("registry.sample.50", 0) {
+            long run() {
+                return registry.sample(fileHash, 50).size();
+            }
+        });
+        cases.add(new Case("registry.sample.512", 0) {
+            long run() {
+                return registry.sample(fileHash, 512).size();
+            }
+        });
+        cases.add(new Case("peerpage.encode.512", 0) {
+            private final List<PeerRegistry.PeerInfo> sample = registry.sample(fileHash, 512);
+
+            long run() {
+                return PeerPage.encode(sample, SWARM_SIZE).size();
+            }
+        });
+        cases.add(new Case("peerpage.decode", 0) {
+            private final ByteBuffer page = PeerPage.encode(registry.sample(fileHash, 512), SWARM_SIZE).get(0);
+            private final byte[] data = Arrays.copyOf(page.array(), page.limit());
+
+            long run() {
+                return PeerPage.decode(data, data.length).peers.size();
+            }
+        });
+
+        System.out.printf("%-24s %14s %12s %10s%n", "Benchmark", "ns/op", "+/-", "MB/s");
+        try {
+            for (Case c : cases) {
+                if (matches(c.name, filters)) {
+                    measure(c);
+                }
+            }
+        } finally {
+            pool.shutdown();
+            chunks.close();
+            Files.deleteIfExists(file);
+        }
+    }
+
+    /**
+     * Warms up and times one benchmark, and prints its line of the report.
+     */
+    private static void measure(Case c) throws Exception {
+        loop(c, WARMUP_SECONDS);
+        double[] nanosPerOp = new double[ITERATIONS];
+        for (int i = 0; i < ITERATIONS; i++) {
+            nanosPerOp[i] = loop(c, ITERATION_SECONDS);
+        }
+
+        double mean = 0;
+        for (double value : nanosPerOp) {
+            mean += value / ITERATIONS;
+        }
+        double variance = 0;
+        for (double value : nanosPerOp) {
+            variance += (value - mean) * (value - mean) / ITERATIONS;
+        }
+        String rate = c.bytesPerOp > 0 ? String.format("%10.1f", c.bytesPerOp / mean * 1e9 / (1 << 20)) : "";
+        System.out.printf("%-24s %14.1f %12.1f %s%n", c.name, mean, Math.sqrt(variance), rate);
+    }
+
+    /**
+     * Runs a benchmark for about the given time.
+     *
+     * @return The mean time per operation, in ns.
+     */
+    private static double loop(Case c, double seconds) throws Exception {
+        long budget = (long) (seconds * 1e9);
+        long start = System.nanoTime();
+        long elapsed;
+        long ops = 0;
+        long result = 0;
+        int batch = 1; // Operations between clock reads, grown so the clock costs little
+        do {
+            for (int i = 0; i < batch; i++) {
+                result += c.run();
+            }
+            ops += batch;
+            elapsed = System.nanoTime() - start;
+            if (elapsed < budget / 100) {
+                batch *= 2;
+            }
+        } while (elapsed < budget);
+        sink += result;
+        return (double) elapsed / ops;
+    }
+
+    private static boolean matches(String name, List<String> filters) {
+        if (filters.isEmpty()) {
+            return true;
+        }
+        for (String filter : filters) {
+            if (name.startsWith(filter)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String announce(int files) {
+        StringBuilder message = new StringBuilder("ANNOUNCE|10.1.2.3|6881|REGISTER");
+        Random random = new Random(2);
+        for (int i = 0; i < files; i++) {
+            message.append('|').append(hex(random, 32));
+        }
+        return message.toString();
+    }
+
+    private static ByteBuffer ascii(String text) {
+        return ByteBuffer.wrap(text.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private static String hex(Random random, int bytes) {
+        StringBuilder hex = new StringBuilder();
+        for (int i = 0; i < bytes; i++) {
+            hex.append(String.format("%02x", random.nextInt(256)));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * Fills a file with random bytes.
+     *
+     * @param path The file to write.
+     * @param size Its size in bytes.
+     * @throws IOException If the file cannot be written.
+     */
+    static void writeRandomFile(Path path, long size) throws IOException {
+        Random random = new Random(size);
+        byte[] block = new byte[1 << 20];
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(path))) {
+            for (long written = 0; written < size; written += block.length) {
+                random.nextBytes(block);
+                out.write(block, 0, (int) Math.min(block.length, size - written));
+            }
+        }
+    }
+}
\ No newline at end of file
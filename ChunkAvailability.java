@@ -0,0 +1,20 @@
+import java.util.BitSet;
+
+/**
+ * Which chunks of a file are present, for serving a file that is still being
+ * downloaded. Implementations must be safe to query from any thread while the
+ * file is being written.
+ */
+public interface ChunkAvailability {
+
+    /**
+     * @param index The chunk number.
+     * @return true if the chunk is present and may be served.
+     */
+    boolean has(int index);
+
+    /**
+     * @return A copy of the set of chunks that are present.
+     */
+    BitSet snapshot();
+}
\ No newline at end of file
@@ -0,0 +1,157 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * A size-bounded, off-heap cache of hot chunks shared by every file a seeder
+ * serves.
+ *
+ * Memory is held in fixed-size direct buffers ("slots") that are allocated on
+ * demand up to the capacity and then recycled, so the cache never churns the
+ * garbage collector and never grows past its budget. A chunk is only admitted
+ * on its second miss within the recent-miss history, which keeps one-off reads
+ * of cold chunks from flushing genuinely hot ones; resident chunks are evicted
+ * least recently used first.
+ *
+ * A slot handed out by acquire is pinned until it is released, so a chunk that
+ * is still being written to a socket is never evicted and overwritten.
+ */
+public class ChunkCache {
+
+    private final int slotSize; // Size of each slot; the largest chunk that fits
+    private final int maxSlots; // Number of slots the capacity allows
+    private final LinkedHashMap<Long, Slot> resident; // Cached chunks, least recently used first
+    private final LinkedHashMap<Long, Boolean> recentMisses; // Keys missed once, oldest first
+    private final ArrayDeque<Slot> free = new ArrayDeque<>(); // Slots not holding a chunk
+    private int allocatedSlots; // Slots allocated so far
+    private boolean allocationFailed; // Direct memory ran out before the capacity was reached
+
+    private long hits; // Requests served from the cache
+    private long misses; // Requests that fell through to the file
+
+    /**
+     * Creates a cache.
+     *
+     * @param capacity The maximum number of bytes of chunk data to hold.
+     * @param slotSize The size of the largest chunk.
+     */
+    public ChunkCache(long capacity, int slotSize) {
+        this.slotSize = slotSize;
+        this.maxSlots = (int) Math.min(Integer.MAX_VALUE, capacity / slotSize);
+        this.resident = new LinkedHashMap<>(16, 0.75f, true);
+        this.recentMisses = new LinkedHashMap<>();
+    }
+
+    /**
+     * Looks up a chunk, loading it into the cache if it has become hot.
+     *
+     * @param fileId The id of the file within the seeder.
+     * @param file   The file the chunk belongs to.
+     * @param index  The chunk number.
+     * @return A pinned slot holding the chunk, or null if the chunk should be
+     *         served from the file instead.
+     * @throws IOException If the chunk cannot be read from the file.
+     */
+    public synchronized Slot acquire(int fileId, ChunkFile file, int index) throws IOException {
+        long key = ((long) fileId << 32) | (index & 0xFFFFFFFFL);
+
+        Slot slot = resident.get(key);
+        if (slot != null) {
+            hits++;
+            slot.pins++;
+            return slot;
+        }
+        misses++;
+
+        // Admit only chunks that missed recently as well
+        if (recentMisses.remove(key) == null) {
+            recentMisses.put(key, Boolean.TRUE);
+            if (recentMisses.size() > Math.max(maxSlots, 16)) {
+                Iterator<Long> oldest = recentMisses.keySet().iterator();
+                oldest.next();
+                oldest.remove();
+            }
+            return null;
+        }
+
+        if (file.length(index) > slotSize || (slot = takeSlot()) == null) {
+            return null;
+        }
+
+        slot.buffer.clear();
+        try {
+            file.readChunk(index, slot.buffer);
+        } catch (IOException e) {
+            free.add(slot);
+            throw e;
+        }
+        slot.buffer.flip();
+        slot.key = key;
+        slot.pins = 1;
+        resident.put(key, slot);
+        return slot;
+    }
+
+    /**
+     * Unpins a slot returned by acquire.
+     *
+     * @param slot The slot.
+     */
+    public synchronized void release(Slot slot) {
+        slot.pins--;
+    }
+
+    /**
+     * @return A short description of the cache state, for logging.
+     */
+    public synchronized String stats() {
+        return resident.size() + " chunks cached (" + ((long) allocatedSlots * slotSize >> 20) + " MB off-heap), "
+                + hits + " hits, " + misses + " misses";
+    }
+
+    /**
+     * Finds a slot for a new chunk: a free one, a newly allocated one, or the
+     * least recently used unpinned one.
+     */
+    private Slot takeSlot() {
+        if (!free.isEmpty()) {
+            return free.poll();
+        }
+
+        if (allocatedSlots < maxSlots && !allocationFailed) {
+            try {
+                Slot slot = new Slot(ByteBuffer.allocateDirect(slotSize));
+                allocatedSlots++;
+                return slot;
+            } catch (OutOfMemoryError e) {
+                // Direct memory limit is below the configured capacity; stop growing
+                allocationFailed = true;
+                Log.error("Chunk cache limited to " + allocatedSlots + " slots: " + e.getMessage());
+            }
+        }
+
+        Iterator<Slot> iterator = resident.values().iterator();
+        while (iterator.hasNext()) {
+            Slot slot = iterator.next();
+            if (slot.pins == 0) {
+                iterator.remove();
+                return slot;
+            }
+        }
+        return null; // Everything is being sent right now
+    }
+
+    /**
+     * A cache slot. The buffer holds the chunk between position 0 and its limit;
+     * readers must use a duplicate.
+     */
+    static class Slot {
+        final ByteBuffer buffer; // Direct buffer holding the chunk
+        long key; // File id and chunk number of the cached chunk
+        int pins; // Number of readers currently using the slot
+
+        Slot(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,141 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+/**
+ * A small file kept next to a partial download that records which chunks are
+ * safely on disk, so that a restarted download only fetches the rest.
+ *
+ * The file holds a header describing the layout of the download followed by
+ * one bit per chunk. It is rewritten in place, and bits are only ever added
+ * (or dropped for chunks that failed verification, which are checked again on
+ * resume anyway), so a save torn by a crash leaves a mix of the old and new
+ * state, both of which are valid. The caller must make the chunk data durable
+ * before saving the bits that cover it.
+ */
+public class ChunkCheckpoint implements Closeable {
+
+    private static final int MAGIC = 0xB17E0C4B; // Marks a checkpoint file
+    private static final int HEADER_SIZE = 28; // Magic, size, chunk size, chunk count, end
+
+    private final File path;
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final long size; // File size in bytes, or -1 if unknown
+    private final int chunkSize; // Size of every chunk except possibly the last
+    private final int chunkCount; // Number of chunks
+    private final BitSet saved = new BitSet(); // Chunks recorded as complete
+    private long end; // One past the last byte of the file written so far
+
+    /**
+     * Opens the checkpoint of a download, starting a new one unless an existing
+     * checkpoint for the same layout can be resumed.
+     *
+     * @param path       The path of the checkpoint file.
+     * @param size       The file size in bytes, or -1 if unknown.
+     * @param chunkSize  The size of every chunk except possibly the last.
+     * @param chunkCount The number of chunks.
+     * @param resume     Whether the target file is intact enough to resume from.
+     * @throws IOException If the checkpoint cannot be read or created.
+     */
+    public ChunkCheckpoint(String path, long size, int chunkSize, int chunkCount, boolean resume) throws IOException {
+        this.path = new File(path);
+        this.file = new RandomAccessFile(this.path, "rw");
+        this.channel = file.getChannel();
+        this.size = size;
+        this.chunkSize = chunkSize;
+        this.chunkCount = chunkCount;
+
+        if (!resume || !load()) {
+            saved.clear();
+            end = 0;
+            channel.truncate(0);
+            save(saved, 0);
+        }
+    }
+
+    /**
+     * @return The chunks recorded as complete when the checkpoint was opened or
+     *         last saved.
+     */
+    public BitSet getSaved() {
+        return (BitSet) saved.clone();
+    }
+
+    /**
+     * @return One past the last byte written, as of the last save.
+     */
+    public long getEnd() {
+        return end;
+    }
+
+    /**
+     * Records a set of chunks as complete. Their data must already be forced to
+     * disk.
+     *
+     * @param completed Every chunk that is complete, including earlier ones.
+     * @param end       One past the last byte written.
+     * @throws IOException If the checkpoint cannot be written.
+     */
+    public void save(BitSet completed, long end) throws IOException {
+        byte[] bits = Arrays.copyOf(completed.toByteArray(), (chunkCount + 7) / 8);
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + bits.length);
+        buffer.putInt(MAGIC).putLong(size).putInt(chunkSize).putInt(chunkCount).putLong(end).put(bits);
+        buffer.flip();
+
+        long position = 0;
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+        channel.force(false);
+
+        saved.clear();
+        saved.or(completed);
+        this.end = end;
+    }
+
+    /**
+     * Closes the checkpoint and removes its file, once the download is complete.
+     */
+    public void delete() throws IOException {
+        close();
+        if (!path.delete()) {
+            Log.error("Failed to delete checkpoint file: " + path);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+
+    /**
+     * Reads an existing checkpoint if it describes the same download.
+     *
+     * @return true if the checkpoint was loaded.
+     */
+    private boolean load() throws IOException {
+        int bitBytes = (chunkCount + 7) / 8;
+        if (channel.size() != HEADER_SIZE + bitBytes) {
+            return false;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + bitBytes);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, buffer.position()) < 0) {
+                return false;
+            }
+        }
+        buffer.flip();
+
+        if (buffer.getInt() != MAGIC || buffer.getLong() != size || buffer.getInt() != chunkSize
+                || buffer.getInt() != chunkCount) {
+            return false;
+        }
+        end = buffer.getLong();
+        saved.or(BitSet.valueOf(buffer));
+        saved.clear(chunkCount, Math.max(chunkCount, saved.length()));
+        return true;
+    }
+}
\ No newline at end of file
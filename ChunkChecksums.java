@@ -0,0 +1,161 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * A rolling checksum of every chunk of a file, so that a leecher holding an
+ * older version of the file can find the chunks of the new version in it
+ * wherever they now start (see DeltaSync).
+ *
+ * The checksum is the two-part sum rsync uses, kept to 32 bits a part: a is
+ * the sum of the bytes, b the sum of the running values of a. Sliding the
+ * window on by one byte updates both in constant time, so every offset of the
+ * old file can be tried. The checksum is weak and only picks candidates; the
+ * chunk digests in the manifest decide.
+ *
+ * A seeder computes the checksums at startup alongside the manifest and sends
+ * them on request.
+ */
+public class ChunkChecksums {
+
+    private final int chunkSize; // Size of every chunk except possibly the last
+    private final long[] sums; // Checksum of each chunk
+
+    private ChunkChecksums(int chunkSize, long[] sums) {
+        this.chunkSize = chunkSize;
+        this.sums = sums;
+    }
+
+    /**
+     * Computes the checksum of every chunk of a file. The chunks are split into
+     * one contiguous stretch per thread, so each thread reads the file
+     * sequentially.
+     *
+     * @param file The file.
+     * @param pool The threads to compute on.
+     * @return The checksums.
+     * @throws IOException If the file cannot be read.
+     */
+    public static ChunkChecksums build(ChunkFile file, ExecutorService pool) throws IOException {
+        int count = file.getChunkCount();
+        long[] sums = new long[count];
+        int parallelism = Runtime.getRuntime().availableProcessors();
+        int stretch = Math.max(1, (count + parallelism - 1) / parallelism);
+
+        List<Future<Void>> tasks = new ArrayList<>();
+        for (int from = 0; from < count; from += stretch) {
+            final int first = from;
+            final int last = Math.min(count, from + stretch);
+            tasks.add(pool.submit(new Callable<Void>() {
+                public Void call() throws IOException {
+                    ByteBuffer buffer = ByteBuffer.allocate(file.getChunkSize());
+                    for (int i = first; i < last; i++) {
+                        buffer.clear();
+                        file.readChunk(i, buffer);
+                        sums[i] = checksum(buffer.array(), 0, buffer.position());
+                    }
+                    return null;
+                }
+            }));
+        }
+
+        try {
+            for (Future<Void> task : tasks) {
+                task.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while summing " + file.getName());
+        } catch (ExecutionException e) {
+            // Not interrupted: an interrupt during a read would close the shared file channel
+            for (Future<Void> task : tasks) {
+                task.cancel(false);
+            }
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Failed to sum " + file.getName(), e.getCause());
+        }
+        return new ChunkChecksums(file.getChunkSize(), sums);
+    }
+
+    /**
+     * Reads checksums in the form produced by encode.
+     *
+     * @param data The encoded checksums.
+     * @return The checksums.
+     * @throws IOException If the data is malformed.
+     */
+    public static ChunkChecksums decode(byte[] data) throws IOException {
+        ByteBuffer in = ByteBuffer.wrap(data);
+        if (data.length < 8) {
+            throw new IOException("Malformed chunk checksums");
+        }
+        int chunkSize = in.getInt();
+        int chunkCount = in.getInt();
+        if (chunkSize <= 0 || chunkCount < 0 || data.length != 8 + (long) chunkCount * 8) {
+            throw new IOException("Malformed chunk checksums");
+        }
+        long[] sums = new long[chunkCount];
+        in.asLongBuffer().get(sums);
+        return new ChunkChecksums(chunkSize, sums);
+    }
+
+    /**
+     * @return The checksums as bytes: int chunk size, int chunk count, then one
+     *         long checksum per chunk.
+     */
+    public byte[] encode() {
+        ByteBuffer out = ByteBuffer.allocate(8 + sums.length * 8).putInt(chunkSize).putInt(sums.length);
+        out.asLongBuffer().put(sums);
+        return out.array();
+    }
+
+    /**
+     * @return The size of every chunk except possibly the last.
+     */
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * @return The number of chunks.
+     */
+    public int getChunkCount() {
+        return sums.length;
+    }
+
+    /**
+     * @param index The chunk number.
+     * @return The checksum of the chunk.
+     */
+    public long get(int index) {
+        return sums[index];
+    }
+
+    /**
+     * Computes the checksum of a run of bytes.
+     *
+     * @param data   The bytes.
+     * @param offset The first byte.
+     * @param length The number of bytes.
+     * @return The checksum: b in the high half, a in the low half.
+     */
+    public static long checksum(byte[] data, int offset, int length) {
+        int a = 0;
+        int b = 0;
+        for (int i = offset; i < offset + length; i++) {
+            a += data[i] & 0xFF;
+            b += a;
+        }
+        return combine(a, b);
+    }
+
+    /**
+     * Packs the two halves of a checksum into a long.
+     */
+    private static long combine(int a, int b) {
+        return ((long) b << 32) | (a & 0xFFFFFFFFL);
+    }
+}
\ No newline at end of file
@@ -0,0 +1,145 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.file.*;
+
+/**
+ * A file on disk addressed as a sequence of fixed-size chunks. Chunks are
+ * numbered with ints but their offsets are longs, so with 512 KB chunks a file
+ * can be up to a petabyte.
+ *
+ * Chunk data is never copied onto the Java heap: ranges are handed to the
+ * kernel with FileChannel.transferTo, so they go straight from the page cache
+ * to the socket.
+ */
+public class ChunkFile implements Closeable {
+
+    private final String name; // Name the file is shared under
+    private final FileChannel channel; // Read-only channel to the file
+    private final long size; // Size of the file in bytes
+    private final int chunkSize; // Size of every chunk except possibly the last
+    private final int chunkCount; // Number of chunks in the file
+
+    private ChunkFile(String name, FileChannel channel, long size, int chunkSize) {
+        this.name = name;
+        this.channel = channel;
+        this.size = size;
+        this.chunkSize = chunkSize;
+        this.chunkCount = (int) ((size + chunkSize - 1) / chunkSize);
+    }
+
+    /**
+     * Opens a file for chunked reading. The file is shared under its path.
+     *
+     * @param filePath  The path to the file.
+     * @param chunkSize The size of each chunk in bytes.
+     * @return The opened chunk file.
+     * @throws IOException If the file cannot be opened or has more chunks than
+     *                     an int can number.
+     */
+    public static ChunkFile open(String filePath, int chunkSize) throws IOException {
+        FileChannel channel = FileChannel.open(Paths.get(filePath), StandardOpenOption.READ);
+        long size = channel.size();
+        if ((size + chunkSize - 1) / chunkSize > Integer.MAX_VALUE) {
+            channel.close();
+            throw new IOException(filePath + " is too large for " + chunkSize + "-byte chunks");
+        }
+        return new ChunkFile(filePath, channel, size, chunkSize);
+    }
+
+    /**
+     * @return The name the file is shared under.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return The number of chunks in the file.
+     */
+    public int getChunkCount() {
+        return chunkCount;
+    }
+
+    /**
+     * @return The size of the file in bytes.
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * @return The size of every chunk except possibly the last.
+     */
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * Returns the byte offset at which a chunk starts.
+     *
+     * @param index The chunk number.
+     * @return The offset of the chunk within the file.
+     */
+    public long offset(int index) {
+        return (long) index * chunkSize;
+    }
+
+    /**
+     * Returns the length of a chunk. Only the last chunk may be shorter than the
+     * chunk size.
+     *
+     * @param index The chunk number.
+     * @return The length of the chunk in bytes.
+     */
+    public int length(int index) {
+        return (int) Math.min(chunkSize, size - offset(index));
+    }
+
+    /**
+     * Reads a whole chunk into a buffer, starting at the buffer's position.
+     *
+     * @param index The chunk number.
+     * @param dst   The buffer to read into; must have room for the chunk.
+     * @throws IOException If an I/O error occurs.
+     */
+    public void readChunk(int index, ByteBuffer dst) throws IOException {
+        long position = offset(index);
+        int end = dst.position() + length(index);
+        dst.limit(end);
+
+        while (dst.hasRemaining()) {
+            int read = channel.read(dst, position);
+            if (read < 0) {
+                throw new EOFException("File " + name + " shrank while being served");
+            }
+            position += read;
+        }
+    }
+
+    /**
+     * Transfers up to count bytes starting at an absolute file position. This
+     * makes a single attempt, so it can be used with non-blocking channels; it
+     * may transfer fewer bytes than requested, or none if the target is full.
+     *
+     * @param position The file position to start from.
+     * @param count    The maximum number of bytes to transfer.
+     * @param target   The channel to write to.
+     * @return The number of bytes transferred.
+     * @throws IOException If an I/O error occurs, or the file has shrunk so
+     *                     that position is past its end.
+     */
+    public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+        long sent = channel.transferTo(position, count, target);
+        if (sent == 0 && count > 0 && position >= channel.size()) {
+            // Nothing more will ever come, so the caller must not wait for the socket
+            throw new EOFException("File " + name + " shrank while being served");
+        }
+        return sent;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
\ No newline at end of file
@@ -0,0 +1,268 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.security.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * The SHA-256 digest of every chunk of a file, and the content hash derived
+ * from them.
+ *
+ * A seeder builds the manifest of each file it serves at startup, hashing
+ * chunks in parallel, and hands it to leechers on request. Leechers check every
+ * chunk they receive against it before writing, so a corrupted chunk is caught
+ * and fetched again instead of spoiling the file.
+ *
+ * The content hash covers the file size, the chunk size and every chunk digest,
+ * so two files share a content hash exactly when they would be downloaded
+ * chunk for chunk the same. It is what the file is registered under with the
+ * tracker, alongside its name.
+ */
+public class ChunkManifest {
+
+    public static final String ALGORITHM = "SHA-256"; // Digest used for chunks and the content hash
+    public static final int DIGEST_LENGTH = 32; // Bytes in one digest
+    private static final int MAX_CHUNKS = Integer.MAX_VALUE / DIGEST_LENGTH; // Most chunks whose digests fit an array
+
+    // A MessageDigest is not thread-safe, so each hashing thread keeps its own
+    private static final ThreadLocal<MessageDigest> DIGEST = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance(ALGORITHM);
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(ALGORITHM + " is not available", e);
+            }
+        }
+    };
+
+    private final long size; // File size in bytes
+    private final int chunkSize; // Size of every chunk except possibly the last
+    private final int chunkCount; // Number of chunks
+    private final byte[] digests; // chunkCount digests, back to back
+    private final String contentHash; // Hex digest over the layout and the chunk digests
+
+    private ChunkManifest(long size, int chunkSize, int chunkCount, byte[] digests) {
+        this.size = size;
+        this.chunkSize = chunkSize;
+        this.chunkCount = chunkCount;
+        this.digests = digests;
+
+        MessageDigest digest = DIGEST.get();
+        digest.reset();
+        digest.update(ByteBuffer.allocate(12).putLong(size).putInt(chunkSize).array());
+        digest.update(digests);
+        this.contentHash = toHex(digest.digest());
+    }
+
+    /**
+     * Hashes every chunk of a file. The chunks are split into one contiguous
+     * stretch per thread, so each thread reads the file sequentially.
+     *
+     * @param file The file.
+     * @param pool The threads to hash on.
+     * @return The manifest.
+     * @throws IOException If the file cannot be read or has too many chunks for
+     *                     one manifest.
+     */
+    public static ChunkManifest build(ChunkFile file, ExecutorService pool) throws IOException {
+        int chunkCount = file.getChunkCount();
+        if (chunkCount > MAX_CHUNKS) {
+            throw new IOException(file.getName() + " has too many chunks for a manifest: " + chunkCount);
+        }
+        byte[] digests = new byte[chunkCount * DIGEST_LENGTH];
+        BitSet all = new BitSet(chunkCount);
+        all.set(0, chunkCount);
+
+        forEachChunk(file, all, pool, new ChunkVisitor() {
+            public void visit(int index, byte[] digest) {
+                System.arraycopy(digest, 0, digests, index * DIGEST_LENGTH, DIGEST_LENGTH);
+            }
+        });
+        return new ChunkManifest(file.getSize(), file.getChunkSize(), chunkCount, digests);
+    }
+
+    /**
+     * Reads a manifest in the form produced by encode.
+     *
+     * @param data The encoded manifest.
+     * @return The manifest.
+     * @throws IOException If the data is malformed.
+     */
+    public static ChunkManifest decode(byte[] data) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        long size = in.readLong();
+        int chunkSize = in.readInt();
+        int chunkCount = in.readInt();
+        if (size < 0 || chunkSize <= 0 || chunkCount < 0 || data.length != 16 + (long) chunkCount * DIGEST_LENGTH) {
+            throw new IOException("Malformed chunk manifest");
+        }
+        byte[] digests = new byte[chunkCount * DIGEST_LENGTH];
+        in.readFully(digests);
+        return new ChunkManifest(size, chunkSize, chunkCount, digests);
+    }
+
+    /**
+     * @return The manifest as bytes: long size, int chunk size, int chunk count,
+     *         then the chunk digests.
+     */
+    public byte[] encode() {
+        return ByteBuffer.allocate(16 + digests.length).putLong(size).putInt(chunkSize).putInt(chunkCount)
+                .put(digests).array();
+    }
+
+    /**
+     * @return The content hash of the file, as lowercase hex.
+     */
+    public String getContentHash() {
+        return contentHash;
+    }
+
+    /**
+     * @return The file size in bytes.
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * @return The size of every chunk except possibly the last.
+     */
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * @return The number of chunks.
+     */
+    public int getChunkCount() {
+        return chunkCount;
+    }
+
+    /**
+     * Checks a chunk against its digest. Safe to call from several threads.
+     *
+     * @param index The chunk number.
+     * @param data  The chunk data.
+     * @return true if the data is the chunk.
+     */
+    public boolean verify(int index, byte[] data) {
+        if (index < 0 || index >= chunkCount) {
+            return false;
+        }
+        MessageDigest digest = DIGEST.get();
+        digest.reset();
+        digest.update(data);
+        return matches(index, digest.digest());
+    }
+
+    /**
+     * Checks chunks already on disk against their digests, in parallel.
+     *
+     * @param file   The file holding the chunks.
+     * @param chunks The chunks to check.
+     * @param pool   The threads to hash on.
+     * @return The chunks that do not match.
+     * @throws IOException If the file cannot be read.
+     */
+    public BitSet verify(ChunkFile file, BitSet chunks, ExecutorService pool) throws IOException {
+        BitSet bad = new BitSet();
+        forEachChunk(file, chunks, pool, new ChunkVisitor() {
+            public void visit(int index, byte[] digest) {
+                if (!matches(index, digest)) {
+                    synchronized (bad) {
+                        bad.set(index);
+                    }
+                }
+            }
+        });
+        return bad;
+    }
+
+    /**
+     * Compares a digest with the one recorded for a chunk.
+     */
+    private boolean matches(int index, byte[] digest) {
+        int offset = index * DIGEST_LENGTH;
+        for (int i = 0; i < DIGEST_LENGTH; i++) {
+            if (digests[offset + i] != digest[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Hashes a set of chunks of a file on a pool, splitting them into one
+     * contiguous stretch per thread, and passes each digest to a visitor.
+     */
+    private static void forEachChunk(ChunkFile file, BitSet chunks, ExecutorService pool, ChunkVisitor visitor)
+            throws IOException {
+        int[] indexes = new int[chunks.cardinality()];
+        int n = 0;
+        for (int i = chunks.nextSetBit(0); i >= 0 && i < file.getChunkCount(); i = chunks.nextSetBit(i + 1)) {
+            indexes[n++] = i;
+        }
+        final int count = n;
+        int parallelism = Runtime.getRuntime().availableProcessors();
+        int stretch = Math.max(1, (count + parallelism - 1) / parallelism);
+
+        List<Future<Void>> tasks = new ArrayList<>();
+        for (int from = 0; from < count; from += stretch) {
+            final int first = from;
+            final int last = Math.min(count, from + stretch);
+            tasks.add(pool.submit(new Callable<Void>() {
+                public Void call() throws IOException {
+                    MessageDigest digest = DIGEST.get();
+                    ByteBuffer buffer = ByteBuffer.allocateDirect(file.getChunkSize());
+                    for (int i = first; i < last; i++) {
+                        buffer.clear();
+                        file.readChunk(indexes[i], buffer);
+                        buffer.flip();
+                        digest.reset();
+                        digest.update(buffer);
+                        visitor.visit(indexes[i], digest.digest());
+                    }
+                    return null;
+                }
+            }));
+        }
+
+        try {
+            for (Future<Void> task : tasks) {
+                task.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while hashing " + file.getName());
+        } catch (ExecutionException e) {
+            // Not interrupted: an interrupt during a read would close the shared file channel
+            for (Future<Void> task : tasks) {
+                task.cancel(false);
+            }
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Failed to hash " + file.getName(), e.getCause());
+        }
+    }
+
+    /**
+     * Formats bytes as lowercase hex.
+     */
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * Receives the digest of each chunk hashed by forEachChunk. Called from the
+     * hashing threads.
+     */
+    private interface ChunkVisitor {
+        void visit(int index, byte[] digest);
+    }
+}
\ No newline at end of file
@@ -0,0 +1,1067 @@
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Event-driven TCP server that serves the chunks of one or more ChunkFiles.
+ *
+ * All connections are multiplexed on a single Selector thread, so the number of
+ * threads does not grow with the number of leechers. Each connection holds only
+ * a small read buffer, a header buffer and its queue of pending responses. Hot
+ * chunks are sent from the shared off-heap ChunkCache; everything else is sent
+ * with transferTo and never buffered.
+ *
+ * Files are addressed by the id returned from an OPEN request, which accepts
+ * either the name a file is shared under or its content hash. The first file is
+ * the default one, served to one-shot clients and to INFO and RANGE requests.
+ * Each file's chunk manifest is encoded once and sent from a shared read-only
+ * buffer.
+ *
+ * A file can be served while it is still being downloaded (setAvailability):
+ * only the chunks present are sent, and a request for any other chunk is
+ * answered with MISSING.
+ *
+ * A file can also be given a store of precompressed chunks (setCompressed).
+ * Clients that negotiate compression are sent those chunks as
+ * COMPRESSED_CHUNK frames, zero-copy from the store; every other chunk, and
+ * every chunk to other clients, goes out raw. Its rolling chunk checksums
+ * (setChecksums) are sent, like the manifest, from a shared read-only buffer.
+ *
+ * Chunks are served from the moment the server runs; a file's manifest,
+ * checksums and compressed chunks may be handed over later, from another
+ * thread, as they are built. Until its manifest arrives a file can only be
+ * opened by name, and a request for the manifest is answered with NOT_READY;
+ * from clients that predate NOT_READY it holds up the connection's later
+ * requests until it can be answered. A manifest that cannot be built
+ * (manifestFailed) is answered with ERROR. Checksums not yet built are
+ * answered with ERROR, and chunks not yet compressed go out raw.
+ *
+ * Admission control: once maxConnections connections are open the server stops
+ * accepting, leaving new clients in the kernel backlog until a slot frees up.
+ * Backpressure: once a connection has maxQueuedChunks chunks waiting to be sent
+ * the server stops reading its requests, so a client that pipelines too far
+ * ahead is held back by TCP flow control instead of growing the queue.
+ *
+ * Upload bandwidth is handed out by an UploadScheduler: after each batch of
+ * network events the server sends for one round on the connections it picks,
+ * so bandwidth is shared fairly between client hosts rather than connections,
+ * and an upload rate cap and unchoke slots are enforced in one place. A
+ * connection only waits for OP_WRITE once its socket buffer is full.
+ *
+ * Every server in the process feeds the same metrics: open connections, chunks
+ * queued, bytes sent per client host, and how long a chunk waits between its
+ * request arriving and its first byte going out. Per-chunk log lines are
+ * sampled.
+ */
+public class ChunkServer {
+
+    // Constants
+    private static final int HEADER_BUFFER_SIZE = 32; // Enough for any fixed-size response header
+    private static final long IDLE_TIMEOUT = 120000; // Close connections with no progress for 2 minutes
+    private static final long LOG_INTERVAL_MILLIS = 1000; // Shortest time between two per-chunk log lines
+
+    // Connection states
+    private static final int STATE_NEW = 0; // Waiting for the first int
+    private static final int STATE_ONE_SHOT = 1; // Legacy single request
+    private static final int STATE_SESSION = 2; // Persistent session
+
+    // Response kinds not covered by Protocol frame types
+    private static final byte ONE_SHOT_COUNT = -1; // Bare int chunk count
+    private static final byte ONE_SHOT_CHUNK = -2; // Bare chunk data
+
+    // Metrics, shared by every server in the process
+    private static final Metrics.Counter CONNECTIONS = Metrics.gauge("seeder_connections",
+            "Client connections open");
+    private static final Metrics.Counter ACCEPTED = Metrics.counter("seeder_connections_accepted_total",
+            "Client connections accepted");
+    private static final Metrics.Counter QUEUED = Metrics.gauge("seeder_queued_chunks",
+            "Responses queued across all connections, counting each chunk of a range");
+    private static final Metrics.Counter CHUNKS_SENT = Metrics.counter("seeder_chunks_sent_total",
+            "Chunks sent to clients");
+    private static final Metrics.Counter COMPRESSED_SENT = Metrics.counter("seeder_compressed_chunks_sent_total",
+            "Chunks sent compressed");
+    private static final Metrics.Counter BYTES_SAVED = Metrics.counter("seeder_compression_saved_bytes_total",
+            "Bytes not sent thanks to compression");
+    private static final LatencyHistogram CHUNK_WAIT = Metrics.histogram("seeder_chunk_wait_seconds",
+            "Time from a chunk's request arriving to its first byte being sent");
+    private static final Log.Sampler SENT_LOG = Log.sampler(LOG_INTERVAL_MILLIS); // Chunks sent
+    private static final Log.Sampler CONNECT_LOG = Log.sampler(LOG_INTERVAL_MILLIS); // Clients connecting
+
+    private final List<ChunkFile> files; // Files being served, indexed by file id
+    private final List<ByteBuffer> manifestFrames = new ArrayList<>(); // Encoded DIGESTS frame of each file, or null
+    private final ChunkAvailability[] availability; // Chunks present in each file, or null where complete
+    private final CompressedChunks[] compressed; // Precompressed chunks of each file, or null
+    private final ByteBuffer[] checksumFrames; // Encoded ROLLING_SUMS frame of each file, or null
+    private final BitSet unindexed = new BitSet(); // Files whose manifest could not be built
+    private final Map<String, Integer> fileIds = new HashMap<>(); // File name and content hash to file id
+    private final ChunkCache cache; // Hot chunks shared by all files
+    private final UploadScheduler uploads; // Decides which connections send, and how much
+    private final int maxConnections; // Connections served at once
+    private final int maxQueuedChunks; // Responses queued per connection before reading is paused
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>(); // Changes from other threads, run by the loop
+
+    private Selector selector;
+    private ServerSocketChannel serverSocket;
+    private SelectionKey acceptKey;
+    private int connectionCount; // Currently open client connections
+    private boolean stopped; // Set by stop; only touched on the event loop thread
+
+    /**
+     * Creates a server for a set of files.
+     *
+     * @param files           The files to serve; the first is the default file.
+     * @param manifests       The chunk manifest of each file, in the same order;
+     *                        an entry may be null if it is still being built
+     *                        (see setManifest).
+     * @param cache           The cache for hot chunks.
+     * @param uploads         The scheduler that shares out upload bandwidth.
+     * @param maxConnections  The maximum number of connections served at once.
+     * @param maxQueuedChunks The maximum number of queued responses per
+     *                        connection.
+     */
+    public ChunkServer(List<ChunkFile> files, List<ChunkManifest> manifests, ChunkCache cache, UploadScheduler uploads,
+            int maxConnections, int maxQueuedChunks) {
+        this.files = files;
+        this.cache = cache;
+        this.uploads = uploads;
+        this.availability = new ChunkAvailability[files.size()];
+        this.compressed = new CompressedChunks[files.size()];
+        this.checksumFrames = new ByteBuffer[files.size()];
+        for (int i = 0; i < files.size(); i++) {
+            fileIds.put(files.get(i).getName(), i);
+            manifestFrames.add(null);
+            if (manifests.get(i) != null) {
+                putManifest(i, manifests.get(i), encodeManifest(manifests.get(i)));
+            }
+        }
+        this.maxConnections = maxConnections;
+        this.maxQueuedChunks = maxQueuedChunks;
+    }
+
+    /**
+     * Hands over the manifest of a file that was still being built, and answers
+     * the manifest requests waiting for it. Safe to call from any thread, before
+     * or while the server runs.
+     *
+     * @param fileId   The id of the file.
+     * @param manifest The manifest.
+     */
+    public void setManifest(int fileId, ChunkManifest manifest) {
+        ByteBuffer frame = encodeManifest(manifest); // Encoded on the caller's thread, not the loop
+        submit(new Runnable() {
+            public void run() {
+                putManifest(fileId, manifest, frame);
+                resumeAwaitingManifest();
+            }
+        });
+    }
+
+    /**
+     * Records that the manifest of a file cannot be built, so requests for it
+     * are answered with ERROR instead of waiting. Safe to call from any thread,
+     * before or while the server runs.
+     *
+     * @param fileId The id of the file.
+     */
+    public void manifestFailed(int fileId) {
+        submit(new Runnable() {
+            public void run() {
+                unindexed.set(fileId);
+                resumeAwaitingManifest();
+            }
+        });
+    }
+
+    /**
+     * Goes on reading the connections held up by a manifest request, now that a
+     * manifest is ready or has failed. Called on the event loop thread.
+     */
+    private void resumeAwaitingManifest() {
+        for (SelectionKey key : selector.keys()) {
+            Connection connection = (Connection) key.attachment();
+            if (connection != null && key.isValid() && connection.awaitingManifest) {
+                connection.awaitingManifest = false;
+                connection.in.flip();
+                parse(connection);
+                connection.in.compact();
+                updateInterest(connection);
+            }
+        }
+    }
+
+    /**
+     * @return A manifest as a DIGESTS frame in a shared read-only buffer.
+     */
+    private static ByteBuffer encodeManifest(ChunkManifest manifest) {
+        byte[] encoded = manifest.encode();
+        ByteBuffer frame = ByteBuffer.allocate(5 + encoded.length);
+        frame.putInt(1 + encoded.length).put(Protocol.DIGESTS).put(encoded).flip();
+        return frame.asReadOnlyBuffer();
+    }
+
+    /**
+     * Makes a file's manifest available and the file known by its content hash.
+     */
+    private void putManifest(int fileId, ChunkManifest manifest, ByteBuffer frame) {
+        manifestFrames.set(fileId, frame);
+        fileIds.put(manifest.getContentHash(), fileId);
+    }
+
+    /**
+     * Runs a change on the event loop thread, which owns all server state.
+     */
+    private void submit(Runnable task) {
+        tasks.add(task);
+        if (selector != null) {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Serves a file as partial: only the chunks the availability reports are
+     * sent. Call before run.
+     *
+     * @param fileId       The id of the file.
+     * @param availability The chunks present, or null once the file is complete.
+     */
+    public void setAvailability(int fileId, ChunkAvailability availability) {
+        this.availability[fileId] = availability;
+    }
+
+    /**
+     * Sends the chunks of a file held in a store compressed to clients that
+     * negotiate compression. Safe to call from any thread, before or while the
+     * server runs.
+     *
+     * @param fileId The id of the file.
+     * @param store  The precompressed chunks, or null to send them all raw.
+     */
+    public void setCompressed(int fileId, CompressedChunks store) {
+        submit(new Runnable() {
+            public void run() {
+                compressed[fileId] = store;
+            }
+        });
+    }
+
+    /**
+     * Makes the rolling chunk checksums of a file available to clients. Safe to
+     * call from any thread, before or while the server runs.
+     *
+     * @param fileId    The id of the file.
+     * @param checksums The checksums.
+     */
+    public void setChecksums(int fileId, ChunkChecksums checksums) {
+        byte[] encoded = checksums.encode();
+        ByteBuffer frame = ByteBuffer.allocate(5 + encoded.length);
+        frame.putInt(1 + encoded.length).put(Protocol.ROLLING_SUMS).put(encoded).flip();
+        ByteBuffer shared = frame.asReadOnlyBuffer();
+        submit(new Runnable() {
+            public void run() {
+                checksumFrames[fileId] = shared;
+            }
+        });
+    }
+
+    /**
+     * @return A short description of the server state, for logging.
+     */
+    public String stats() {
+        return connectionCount + " clients (" + uploads.stats() + "), cache: " + cache.stats();
+    }
+
+    /**
+     * Binds the server to a port. Connections queue in the backlog until run is
+     * called.
+     *
+     * @param port The TCP port to listen on.
+     * @throws IOException If the port cannot be bound.
+     */
+    public void bind(int port) throws IOException {
+        selector = Selector.open();
+        serverSocket = ServerSocketChannel.open();
+        serverSocket.bind(new InetSocketAddress(port), 1024);
+        serverSocket.configureBlocking(false);
+        acceptKey = serverSocket.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    /**
+     * Makes run close every connection and the listening socket, and return.
+     * The files are left open for the caller. Safe to call from any thread.
+     */
+    public void stop() {
+        submit(new Runnable() {
+            public void run() {
+                stopped = true;
+            }
+        });
+    }
+
+    /**
+     * Runs the event loop on the calling thread until stop is called.
+     *
+     * @throws IOException If the selector fails.
+     */
+    public void run() throws IOException {
+        long lastIdleCheck = System.currentTimeMillis();
+
+        while (!stopped) {
+            long wait = uploads.waitMillis();
+            if (wait == 0) {
+                selector.selectNow(); // More to send right away
+            } else {
+                selector.select(wait < 0 ? 1000 : Math.min(wait, 1000));
+            }
+
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                task.run();
+            }
+
+            Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+            while (iterator.hasNext()) {
+                SelectionKey key = iterator.next();
+                iterator.remove();
+
+                if (!key.isValid()) {
+                    continue;
+                }
+                if (key == acceptKey) {
+                    accept();
+                    continue;
+                }
+
+                Connection connection = (Connection) key.attachment();
+                try {
+                    if (key.isReadable()) {
+                        read(connection);
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        connection.blocked = false; // Room in the socket buffer again
+                        updateInterest(connection);
+                    }
+                } catch (IOException | RuntimeException e) {
+                    Log.error("Error handling client " + connection.peer + ": " + e.getMessage());
+                    close(connection);
+                }
+            }
+
+            pump();
+
+            // Drop connections that stopped making progress; one the scheduler is
+            // holding back has not
+            long now = System.currentTimeMillis();
+            if (now - lastIdleCheck >= 1000) {
+                lastIdleCheck = now;
+                for (SelectionKey key : new ArrayList<>(selector.keys())) {
+                    Connection connection = (Connection) key.attachment();
+                    if (connection != null && now - connection.lastActive > IDLE_TIMEOUT
+                            && !(connection.hasOutput() && !connection.blocked)) {
+                        Log.info("Closing idle client: " + connection.peer);
+                        close(connection);
+                    }
+                }
+            }
+        }
+
+        for (SelectionKey key : selector.keys()) {
+            Connection connection = (Connection) key.attachment();
+            if (connection != null) {
+                close(connection);
+            }
+        }
+        serverSocket.close();
+        selector.close();
+    }
+
+    /**
+     * Accepts pending connections up to the connection limit.
+     */
+    private void accept() throws IOException {
+        while (connectionCount < maxConnections) {
+            SocketChannel channel = serverSocket.accept();
+            if (channel == null) {
+                return; // Backlog drained
+            }
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+
+            Connection connection = new Connection(channel);
+            connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+            connection.flow = uploads.open(connection.host, connection);
+            connectionCount++;
+            CONNECTIONS.increment();
+            ACCEPTED.increment();
+            if (CONNECT_LOG.sample()) {
+                CONNECT_LOG.info("New client connected: " + connection.peer);
+            }
+        }
+
+        // Leave further clients in the backlog until a connection closes
+        acceptKey.interestOps(0);
+        Log.error("Connection limit of " + maxConnections + " reached, pausing accepts.");
+    }
+
+    /**
+     * Reads and parses whatever request bytes have arrived on a connection.
+     */
+    private void read(Connection connection) throws IOException {
+        int read = connection.channel.read(connection.in);
+        if (read < 0) {
+            close(connection); // Client closed the connection
+            return;
+        }
+        connection.lastActive = System.currentTimeMillis();
+
+        connection.in.flip();
+        parse(connection);
+        connection.in.compact();
+
+        // Responses go out when the scheduler gets to them
+        if (connection.closeWhenDrained && !connection.hasOutput()) {
+            close(connection);
+            return;
+        }
+        updateInterest(connection);
+    }
+
+    /**
+     * Sends for one round on the connections the upload scheduler picks.
+     */
+    private void pump() {
+        uploads.startRound();
+        UploadScheduler.Flow flow;
+        while ((flow = uploads.next()) != null) {
+            Connection connection = (Connection) flow.attachment();
+            long sent;
+            try {
+                sent = write(connection, uploads.allowance(flow));
+            } catch (IOException | RuntimeException e) {
+                Log.error("Error handling client " + connection.peer + ": " + e.getMessage());
+                close(connection);
+                continue;
+            }
+            uploads.sent(flow, sent);
+        }
+    }
+
+    /**
+     * Parses complete requests from the read buffer into the response queue.
+     */
+    private void parse(Connection connection) {
+        ByteBuffer in = connection.in;
+
+        while (!connection.closeWhenDrained) {
+            if (connection.state == STATE_NEW) {
+                if (in.remaining() < 4) {
+                    return;
+                }
+                int first = in.getInt(in.position());
+
+                if (first == Protocol.MAGIC) {
+                    if (in.remaining() < 8) {
+                        return; // Wait for the version
+                    }
+                    in.getInt();
+                    int version = in.getInt();
+                    if (version < 1) {
+                        queueError(connection, "Unsupported protocol version " + version);
+                        return;
+                    }
+                    connection.state = STATE_SESSION;
+                    connection.version = Math.min(version, Protocol.VERSION);
+                    connection.responses.add(new Response(Protocol.HELLO, 0, Math.min(version, Protocol.VERSION), 0));
+                    continue;
+                }
+
+                // One-shot request: a chunk number, or -1 for the chunk count
+                in.getInt();
+                connection.state = STATE_ONE_SHOT;
+                connection.closeWhenDrained = true;
+                if (first == -1) {
+                    connection.responses.add(new Response(ONE_SHOT_COUNT, 0, 0, 0));
+                } else if (first >= 0 && first < files.get(0).getChunkCount() && has(0, first)) {
+                    connection.responses.add(new Response(ONE_SHOT_CHUNK, 0, first, 1));
+                } else {
+                    Log.error("Client requested invalid chunk " + first);
+                }
+                return;
+            }
+
+            // Persistent session: wait for a whole frame before acting on it
+            if (in.remaining() < 4) {
+                return;
+            }
+            int frameStart = in.position();
+            int length = in.getInt(frameStart);
+            if (length < 1 || length > Protocol.MAX_REQUEST_FRAME) {
+                queueError(connection, "Invalid frame length " + length);
+                return;
+            }
+            if (in.remaining() < 4 + length) {
+                return;
+            }
+            in.getInt();
+            byte type = in.get();
+            if (length - 1 < payloadSize(type)) {
+                // Too short to hold its fields; reading them would run into the next frame
+                in.position(frameStart + 4 + length);
+                connection.responses.add(new Response(Protocol.ERROR, 0, 0, 0, "Truncated frame of type " + type));
+                queued(connection, 1);
+                continue;
+            }
+
+            switch (type) {
+                case Protocol.INFO:
+                    connection.responses.add(new Response(Protocol.FILE_INFO, 0, 0, 0));
+                    queued(connection, 1);
+                    break;
+
+                case Protocol.OPEN:
+                    // Look up a file by the name it is shared under or by its content hash
+                    byte[] name = new byte[length - 1];
+                    in.get(name);
+                    Integer fileId = fileIds.get(new String(name, StandardCharsets.UTF_8));
+                    if (fileId == null) {
+                        connection.responses.add(new Response(Protocol.ERROR, 0, 0, 0,
+                                "Unknown file " + new String(name, StandardCharsets.UTF_8)));
+                    } else {
+                        connection.responses.add(new Response(Protocol.OPENED, fileId, 0, 0));
+                    }
+                    queued(connection, 1);
+                    break;
+
+                case Protocol.CANCEL:
+                    int cancelFile = Math.max(in.getInt(), 0);
+                    cancel(connection, cancelFile, in.getInt());
+                    break;
+
+                case Protocol.MANIFEST:
+                    int manifestFile = Math.max(in.getInt(), 0);
+                    if (manifestFile < files.size() && manifestFrames.get(manifestFile) == null
+                            && !unindexed.get(manifestFile) && connection.version < 8) {
+                        // Still being built: leave this request and the ones after it unread until it is
+                        in.position(frameStart);
+                        connection.awaitingManifest = true;
+                        return;
+                    }
+                    if (manifestFile >= files.size() || unindexed.get(manifestFile)) {
+                        connection.responses.add(new Response(Protocol.ERROR, 0, 0, 0, "No manifest for file id " + manifestFile));
+                    } else if (manifestFrames.get(manifestFile) == null) {
+                        connection.responses.add(new Response(Protocol.NOT_READY, manifestFile, 0, 0));
+                    } else {
+                        connection.responses.add(new Response(Protocol.DIGESTS, manifestFile, 0, 0));
+                    }
+                    queued(connection, 1);
+                    break;
+
+                case Protocol.CHECKSUMS:
+                    int checksumFile = Math.max(in.getInt(), 0);
+                    if (checksumFile >= files.size() || checksumFrames[checksumFile] == null) {
+                        connection.responses.add(new Response(Protocol.ERROR, 0, 0, 0, "No checksums for file id " + checksumFile));
+                    } else {
+                        connection.responses.add(new Response(Protocol.ROLLING_SUMS, checksumFile, 0, 0));
+                    }
+                    queued(connection, 1);
+                    break;
+
+                case Protocol.BITFIELD:
+                    int bitfieldFile = Math.max(in.getInt(), 0);
+                    if (bitfieldFile >= files.size()) {
+                        connection.responses.add(new Response(Protocol.ERROR, 0, 0, 0, "Unknown file id " + bitfieldFile));
+                    } else {
+                        connection.responses.add(new Response(Protocol.AVAILABILITY, bitfieldFile, 0, 0));
+                    }
+                    queued(connection, 1);
+                    break;
+
+                case Protocol.COMPRESS:
+                    // Accept the codec if there is anything to send compressed
+                    int codec = in.getInt();
+                    int accepted = codec == Protocol.DEFLATE && hasCompressed() ? codec : Protocol.NO_CODEC;
+                    connection.responses.add(new Response(Protocol.COMPRESSION, 0, accepted, 0));
+                    queued(connection, 1);
+                    break;
+
+                case Protocol.RANGE:
+                case Protocol.FILE_RANGE:
+                    int file = type == Protocol.FILE_RANGE ? in.getInt() : 0;
+                    int start = in.getInt();
+                    int count = in.getInt();
+                    if (file < 0 || file >= files.size() || start < 0 || count < 1
+                            || start > files.get(file).getChunkCount() - count) {
+                        queueError(connection, "Invalid chunk range " + file + ":" + start + "+" + count);
+                        return;
+                    }
+                    connection.responses.add(new Response(Protocol.RANGE, file, start, count));
+                    queued(connection, count);
+                    break;
+
+                default:
+                    // Frames from newer clients that this seeder does not understand are skipped below
+                    connection.responses.add(new Response(Protocol.ERROR, 0, 0, 0, "Unknown frame type " + type));
+                    queued(connection, 1);
+                    break;
+            }
+
+            // Skip anything past the fields read, such as fields added by newer clients
+            in.position(frameStart + 4 + length);
+        }
+    }
+
+    /**
+     * @return The fewest payload bytes a request frame of a type must have, or 0
+     *         for types without fixed fields.
+     */
+    private static int payloadSize(byte type) {
+        switch (type) {
+            case Protocol.CANCEL:
+            case Protocol.RANGE:
+                return 8;
+            case Protocol.FILE_RANGE:
+                return 12;
+            case Protocol.MANIFEST:
+            case Protocol.CHECKSUMS:
+            case Protocol.BITFIELD:
+            case Protocol.COMPRESS:
+                return 4;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * @return true if any file has chunks to send compressed.
+     */
+    private boolean hasCompressed() {
+        for (CompressedChunks store : compressed) {
+            if (store != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Adjusts the number of responses queued on a connection and the metric
+     * totalling them.
+     */
+    private static void queued(Connection connection, int count) {
+        connection.queuedChunks += count;
+        QUEUED.add(count);
+    }
+
+    /**
+     * Marks a chunk as cancelled if it is still waiting in the connection's
+     * queue. A chunk that has already started going out is left alone.
+     */
+    private void cancel(Connection connection, int fileId, int index) {
+        boolean queued = false;
+        Response current = connection.current;
+        if (current != null && current.type == Protocol.RANGE && current.fileId == fileId
+                && index >= connection.nextChunk && index < current.start + current.count) {
+            queued = true;
+        }
+        for (Response response : connection.responses) {
+            if (response.type == Protocol.RANGE && response.fileId == fileId && index >= response.start
+                    && index < response.start + response.count) {
+                queued = true;
+            }
+        }
+        if (queued) {
+            if (connection.cancelled == null) {
+                connection.cancelled = new HashSet<>();
+            }
+            connection.cancelled.add(((long) fileId << 32) | (index & 0xFFFFFFFFL));
+        }
+    }
+
+    /**
+     * Queues an error frame and closes the connection once it has been sent.
+     */
+    private void queueError(Connection connection, String message) {
+        connection.responses.add(new Response(Protocol.ERROR, 0, 0, 0, message));
+        connection.closeWhenDrained = true;
+    }
+
+    /**
+     * Sends queued responses until the socket buffer fills, the queue empties or
+     * the allowance is used up. Chunk bodies stop at the allowance; frame headers
+     * and other small frames go out whole.
+     *
+     * @param limit The bytes the scheduler allows.
+     * @return The bytes sent.
+     */
+    private long write(Connection connection, long limit) throws IOException {
+        long budget = limit;
+        boolean blocked = false;
+
+        while (budget > 0) {
+            if (connection.out != null && connection.out.hasRemaining()) {
+                budget -= connection.channel.write(connection.out);
+                if (connection.out.hasRemaining()) {
+                    blocked = true; // Socket buffer full
+                    break;
+                }
+            } else if (connection.body != null) {
+                // Chunk served from the cache
+                ByteBuffer body = connection.body;
+                int end = body.limit();
+                int wanted = (int) Math.min(body.remaining(), budget);
+                body.limit(body.position() + wanted);
+                int written = connection.channel.write(body);
+                body.limit(end);
+                budget -= written;
+                if (written < wanted) {
+                    blocked = true; // Socket buffer full
+                    break;
+                }
+                if (!body.hasRemaining()) {
+                    connection.releaseSlot(cache);
+                }
+            } else if (connection.fileRemaining > 0) {
+                long wanted = Math.min(connection.fileRemaining, budget);
+                long sent = connection.store != null
+                        ? connection.store.transferTo(connection.filePosition, wanted, connection.channel)
+                        : connection.file.transferTo(connection.filePosition, wanted, connection.channel);
+                connection.filePosition += sent;
+                connection.fileRemaining -= sent;
+                budget -= sent;
+                if (sent < wanted) {
+                    blocked = true; // Socket buffer full
+                    break;
+                }
+            } else if (!prepareNext(connection)) {
+                break; // Nothing left to send
+            }
+        }
+        connection.blocked = blocked;
+
+        long sent = limit - budget;
+        if (sent > 0) {
+            connection.lastActive = System.currentTimeMillis();
+            connection.sent.add(sent);
+        }
+        if (connection.closeWhenDrained && !connection.hasOutput()) {
+            close(connection);
+            return sent;
+        }
+        updateInterest(connection);
+        return sent;
+    }
+
+    /**
+     * Loads the header buffer and file region for the next response.
+     *
+     * @return false if there is nothing left to send.
+     */
+    private boolean prepareNext(Connection connection) throws IOException {
+        Response current = connection.current;
+
+        // Continue a range that still has chunks to send
+        if (current != null && current.type == Protocol.RANGE && connection.nextChunk < current.start + current.count) {
+            prepareChunk(connection, files.get(current.fileId), current.fileId, connection.nextChunk++);
+            if (connection.nextChunk == current.start + current.count && SENT_LOG.sample()) {
+                SENT_LOG.info("Sent chunks " + current.start + "-" + (connection.nextChunk - 1) + " of "
+                        + files.get(current.fileId).getName() + " to client " + connection.peer);
+            }
+            return true;
+        }
+
+        current = connection.responses.poll();
+        connection.current = current;
+        if (current == null) {
+            return false;
+        }
+
+        ChunkFile file = files.get(current.fileId);
+        ByteBuffer header = connection.header;
+        header.clear();
+        switch (current.type) {
+            case Protocol.HELLO:
+                header.putInt(5).put(Protocol.HELLO).putInt(current.start);
+                break;
+
+            case Protocol.FILE_INFO:
+                queued(connection, -1);
+                header.putInt(17).put(Protocol.FILE_INFO);
+                header.putLong(file.getSize()).putInt(file.getChunkSize()).putInt(file.getChunkCount());
+                break;
+
+            case Protocol.OPENED:
+                queued(connection, -1);
+                header.putInt(21).put(Protocol.OPENED).putInt(current.fileId);
+                header.putLong(file.getSize()).putInt(file.getChunkSize()).putInt(file.getChunkCount());
+                break;
+
+            case Protocol.COMPRESSION:
+                // Applies from here on, so chunks already queued ahead of it go out raw
+                queued(connection, -1);
+                connection.compress = current.start != Protocol.NO_CODEC;
+                header.putInt(5).put(Protocol.COMPRESSION).putInt(current.start);
+                break;
+
+            case Protocol.DIGESTS:
+                queued(connection, -1);
+                connection.out = manifestFrames.get(current.fileId).duplicate();
+                return true;
+
+            case Protocol.NOT_READY:
+                queued(connection, -1);
+                header.putInt(5).put(Protocol.NOT_READY).putInt(current.fileId);
+                break;
+
+            case Protocol.ROLLING_SUMS:
+                queued(connection, -1);
+                connection.out = checksumFrames[current.fileId].duplicate();
+                return true;
+
+            case Protocol.AVAILABILITY:
+                // Taken when the frame goes out, so it is as fresh as possible
+                queued(connection, -1);
+                byte[] bits = new byte[(file.getChunkCount() + 7) / 8];
+                if (availability[current.fileId] == null) {
+                    Arrays.fill(bits, (byte) 0xFF);
+                } else {
+                    byte[] present = availability[current.fileId].snapshot().toByteArray();
+                    System.arraycopy(present, 0, bits, 0, Math.min(present.length, bits.length));
+                }
+                connection.out = ByteBuffer.allocate(9 + bits.length);
+                connection.out.putInt(5 + bits.length).put(Protocol.AVAILABILITY).putInt(file.getChunkCount()).put(bits)
+                        .flip();
+                return true;
+
+            case Protocol.RANGE:
+                connection.nextChunk = current.start;
+                return prepareNext(connection);
+
+            case ONE_SHOT_COUNT:
+                header.putInt(file.getChunkCount());
+                if (SENT_LOG.sample()) {
+                    SENT_LOG.info("Sent total chunks to client: " + file.getChunkCount());
+                }
+                break;
+
+            case ONE_SHOT_CHUNK:
+                CHUNK_WAIT.recordSince(current.queuedAt);
+                CHUNKS_SENT.increment();
+                prepareBody(connection, file, current.fileId, current.start);
+                if (SENT_LOG.sample()) {
+                    SENT_LOG.info("Sent chunk " + current.start + " to client.");
+                }
+                break;
+
+            default:
+                // Errors are rare, so their variable-length frame gets its own buffer
+                if (connection.state == STATE_SESSION && !connection.closeWhenDrained) {
+                    queued(connection, -1);
+                }
+                byte[] message = current.message.getBytes(StandardCharsets.UTF_8);
+                connection.out = ByteBuffer.allocate(5 + message.length);
+                connection.out.putInt(1 + message.length).put(Protocol.ERROR).put(message).flip();
+                return true;
+        }
+        header.flip();
+        connection.out = header;
+        return true;
+    }
+
+    /**
+     * Loads the CHUNK frame header and the body of one chunk.
+     */
+    private void prepareChunk(Connection connection, ChunkFile file, int fileId, int index) throws IOException {
+        ByteBuffer header = connection.header;
+        header.clear();
+        if (connection.cancelled != null && connection.cancelled.remove(((long) fileId << 32) | (index & 0xFFFFFFFFL))) {
+            // Client no longer needs this chunk; acknowledge instead of sending it
+            header.putInt(5).put(Protocol.CANCELLED).putInt(index).flip();
+            connection.out = header;
+            queued(connection, -1);
+            return;
+        }
+        if (!has(fileId, index)) {
+            // Partial file that does not have this chunk yet
+            header.putInt(5).put(Protocol.MISSING).putInt(index).flip();
+            connection.out = header;
+            queued(connection, -1);
+            return;
+        }
+        connection.out = header;
+        queued(connection, -1);
+        CHUNK_WAIT.recordSince(connection.current.queuedAt);
+        CHUNKS_SENT.increment();
+        CompressedChunks store = compressed[fileId];
+        if (connection.compress && store != null && store.has(index)) {
+            // Sent from the store, never the cache, since it is smaller than the chunk
+            int length = store.length(index);
+            header.putInt(9 + length).put(Protocol.COMPRESSED_CHUNK).putInt(index).putInt(file.length(index)).flip();
+            COMPRESSED_SENT.increment();
+            BYTES_SAVED.add(file.length(index) - length);
+            connection.store = store;
+            connection.filePosition = store.offset(index);
+            connection.fileRemaining = length;
+            return;
+        }
+        header.putInt(5 + file.length(index)).put(Protocol.CHUNK).putInt(index).flip();
+        prepareBody(connection, file, fileId, index);
+    }
+
+    /**
+     * @return true if a chunk of a file is present and may be sent.
+     */
+    private boolean has(int fileId, int index) {
+        ChunkAvailability present = availability[fileId];
+        return present == null || present.has(index);
+    }
+
+    /**
+     * Points the connection at the body of a chunk: a cached copy if the chunk is
+     * hot, otherwise its region of the file.
+     */
+    private void prepareBody(Connection connection, ChunkFile file, int fileId, int index) throws IOException {
+        ChunkCache.Slot slot = cache.acquire(fileId, file, index);
+        if (slot != null) {
+            connection.slot = slot;
+            connection.body = slot.buffer.duplicate();
+            return;
+        }
+        connection.file = file;
+        connection.store = null;
+        connection.filePosition = file.offset(index);
+        connection.fileRemaining = file.length(index);
+    }
+
+    /**
+     * Reads while the response queue has room, waits for room in the socket
+     * buffer once it is full, and tells the upload scheduler whether the
+     * connection has something to send.
+     */
+    private void updateInterest(Connection connection) {
+        if (!connection.key.isValid()) {
+            return;
+        }
+        boolean pending = connection.hasOutput();
+        if (!pending) {
+            connection.blocked = false;
+        }
+        int ops = 0;
+        if (!connection.closeWhenDrained && !connection.awaitingManifest && connection.queuedChunks < maxQueuedChunks) {
+            ops |= SelectionKey.OP_READ;
+        }
+        if (connection.blocked) {
+            ops |= SelectionKey.OP_WRITE;
+        }
+        connection.key.interestOps(ops);
+        uploads.update(connection.flow, pending, connection.blocked);
+    }
+
+    /**
+     * Closes a connection and resumes accepting if the limit had been reached.
+     */
+    private void close(Connection connection) {
+        if (!connection.channel.isOpen()) {
+            return;
+        }
+        try {
+            connection.channel.close();
+        } catch (IOException e) {
+            Log.error("Error closing client socket: " + e.getMessage());
+        }
+        connection.releaseSlot(cache);
+        uploads.close(connection.flow);
+        queued(connection, -connection.queuedChunks);
+        connectionCount--;
+        CONNECTIONS.decrement();
+        if (acceptKey.interestOps() == 0) {
+            acceptKey.interestOps(SelectionKey.OP_ACCEPT);
+        }
+    }
+
+    /**
+     * State of one client connection.
+     */
+    static class Connection {
+        final SocketChannel channel; // The client socket
+        final String peer; // Remote address, for logging
+        final String host; // Remote host, which the upload scheduler shares bandwidth between
+        final Metrics.Counter sent; // Bytes sent to the client's host
+        final ByteBuffer in = ByteBuffer.allocate(Protocol.MAX_REQUEST_FRAME + 4); // Unparsed request bytes
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_BUFFER_SIZE); // Reused response header
+        final ArrayDeque<Response> responses = new ArrayDeque<>(); // Responses not yet started
+        SelectionKey key; // Registration with the selector
+        UploadScheduler.Flow flow; // Scheduling state with the upload scheduler
+        boolean blocked; // Socket buffer was full at the last write
+        boolean awaitingManifest; // Reading paused on a request for a manifest not yet built
+        int state = STATE_NEW; // Protocol state
+        int version; // Protocol version negotiated in the session
+        boolean closeWhenDrained; // Close once the queue is empty
+        int queuedChunks; // Queued responses, counting each chunk of a range
+        Response current; // Response being sent
+        int nextChunk; // Next chunk of the current range
+        ByteBuffer out; // Header or other frame bytes still to send
+        Set<Long> cancelled; // Queued chunks the client cancelled, by file id and chunk number
+        ChunkCache.Slot slot; // Pinned cache slot holding the current chunk
+        ByteBuffer body; // Cached chunk bytes still to send
+        ChunkFile file; // File the current chunk is sent from when not cached
+        CompressedChunks store; // Store the current chunk is sent from instead when compressed
+        boolean compress; // Client negotiated compression
+        long filePosition; // Next file or store byte to send
+        long fileRemaining; // File bytes still to send for the current chunk
+        long lastActive = System.currentTimeMillis(); // Time of the last read or write
+
+        Connection(SocketChannel channel) throws IOException {
+            this.channel = channel;
+            this.peer = String.valueOf(channel.getRemoteAddress());
+            this.host = ((InetSocketAddress) channel.getRemoteAddress()).getAddress().getHostAddress();
+            this.sent = Metrics.counter("seeder_sent_bytes_total", "Bytes sent, by client host", "client", host);
+        }
+
+        /**
+         * @return true if there are bytes queued or in progress.
+         */
+        boolean hasOutput() {
+            return (out != null && out.hasRemaining()) || body != null || fileRemaining > 0 || !responses.isEmpty()
+                    || (current != null && current.type == Protocol.RANGE && nextChunk < current.start + current.count);
+        }
+
+        /**
+         * Unpins the cache slot of the current chunk, if any.
+         */
+        void releaseSlot(ChunkCache cache) {
+            if (slot != null) {
+                cache.release(slot);
+                slot = null;
+                body = null;
+            }
+        }
+    }
+
+    /**
+     * A queued response. For ranges, start and count give the chunks to send;
+     * for HELLO, start holds the negotiated version.
+     */
+    static class Response {
+        final byte type; // Protocol frame type or one of the one-shot kinds
+        final int fileId; // File the response is about
+        final int start; // First chunk, or the HELLO version
+        final int count; // Number of chunks
+        final String message; // Text of an ERROR frame
+        final long queuedAt = System.nanoTime(); // When the request arrived
+
+        Response(byte type, int fileId, int start, int count) {
+            this(type, fileId, start, count, null);
+        }
+
+        Response(byte type, int fileId, int start, int count, String message) {
+            this.type = type;
+            this.fileId = fileId;
+            this.start = start;
+            this.count = count;
+            this.message = message;
+        }
+    }
+}
\ No newline at end of file
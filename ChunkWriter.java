@@ -0,0 +1,212 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.BitSet;
+
+/**
+ * Writes downloaded chunks straight to their place in the target file.
+ *
+ * The file is sized up front (sparse where the file system allows it), so
+ * chunks can be written in any order, from any thread, with positional writes
+ * as soon as they arrive. Nothing has to be held in memory until the end and
+ * there is no assembly step.
+ *
+ * Progress is checkpointed to a small bitfield file next to the target (see
+ * ChunkCheckpoint), so a download that is killed part way through resumes
+ * with only the missing chunks. The checkpoint is removed once every chunk has
+ * been written.
+ *
+ * The writer also reports which chunks are present, so the partial file can be
+ * served to other peers while the download is still running.
+ */
+public class ChunkWriter implements Closeable, ChunkAvailability {
+
+    private static final String CHECKPOINT_SUFFIX = ".chunks"; // Appended to the target path for the checkpoint
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final int chunkSize; // Size of every chunk except possibly the last
+    private final boolean sizeKnown; // False when the seeder only reported a chunk count
+    private final int chunkCount; // Number of chunks
+    private final ChunkCheckpoint checkpoint; // Chunks known to be on disk
+    private final BitSet written = new BitSet(); // Chunks written, including those resumed
+    private final BitSet resumed; // Chunks already on disk when the download started
+    private long end; // One past the last byte written
+    private boolean dirty; // Chunks written since the last checkpoint
+    private boolean closed; // Set once the file has been closed
+    private final Object saveLock = new Object(); // Serializes checkpoints and close
+
+    /**
+     * Opens the target file for the download. If an earlier attempt at the same
+     * download left a checkpoint behind, the chunks it recorded are kept;
+     * otherwise the file is created or overwritten and sized from scratch.
+     *
+     * @param path       The path of the target file.
+     * @param size       The file size in bytes, or -1 if unknown.
+     * @param chunkSize  The size of every chunk except possibly the last.
+     * @param chunkCount The number of chunks.
+     * @throws IOException If the file cannot be created.
+     */
+    public ChunkWriter(String path, long size, int chunkSize, int chunkCount) throws IOException {
+        this.sizeKnown = size >= 0;
+        this.chunkSize = chunkSize;
+        this.chunkCount = chunkCount;
+
+        // Without a size, reserve room for full chunks and trim once complete
+        long length = sizeKnown ? size : (long) chunkCount * chunkSize;
+
+        // A checkpoint is only trusted if the file it describes is still intact
+        boolean resume = new File(path).length() == length;
+        this.file = new RandomAccessFile(path, "rw");
+        this.channel = file.getChannel();
+        try {
+            this.checkpoint = new ChunkCheckpoint(path + CHECKPOINT_SUFFIX, size, chunkSize, chunkCount, resume);
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+        this.resumed = checkpoint.getSaved();
+        written.or(resumed);
+        end = checkpoint.getEnd();
+
+        if (resumed.isEmpty()) {
+            file.setLength(length);
+        }
+    }
+
+    /**
+     * @param path The path of a target file.
+     * @return true if an unfinished download of the file left a checkpoint.
+     */
+    public static boolean hasCheckpoint(String path) {
+        return new File(path + CHECKPOINT_SUFFIX).exists();
+    }
+
+    /**
+     * @return The chunks that were already on disk when the download started.
+     */
+    public BitSet getResumed() {
+        return (BitSet) resumed.clone();
+    }
+
+    /**
+     * Writes a chunk at its offset in the file. Safe to call from several threads.
+     *
+     * @param index The chunk number.
+     * @param data  The chunk data.
+     * @throws IOException If an I/O error occurs.
+     */
+    public void write(int index, byte[] data) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        long position = (long) index * chunkSize;
+
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+
+        synchronized (this) {
+            end = Math.max(end, position);
+            written.set(index);
+            dirty = true;
+        }
+    }
+
+    @Override
+    public synchronized boolean has(int index) {
+        return written.get(index);
+    }
+
+    @Override
+    public synchronized BitSet snapshot() {
+        return (BitSet) written.clone();
+    }
+
+    /**
+     * Forgets chunks that turned out to be bad, so the checkpoint stops
+     * claiming them. They are expected to be written again.
+     *
+     * @param chunks The chunks to forget.
+     */
+    public synchronized void discard(BitSet chunks) {
+        written.andNot(chunks);
+        dirty = true;
+    }
+
+    /**
+     * Makes every chunk written so far durable and records it in the checkpoint,
+     * so that it survives a crash. Safe to call from any thread, and a no-op
+     * once the file is closed.
+     *
+     * @throws IOException If the file or the checkpoint cannot be written.
+     */
+    public void checkpoint() throws IOException {
+        synchronized (saveLock) {
+            if (!closed) {
+                save();
+            }
+        }
+    }
+
+    /**
+     * Flushes the file to disk and closes it. A complete file is trimmed to the
+     * bytes actually written if the size was not known up front, and its
+     * checkpoint is removed; an incomplete one keeps its checkpoint so the
+     * download can be resumed.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (saveLock) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+
+            boolean complete;
+            synchronized (this) {
+                complete = written.cardinality() == chunkCount;
+            }
+            try {
+                if (complete) {
+                    if (!sizeKnown) {
+                        channel.truncate(end);
+                    }
+                    channel.force(false);
+                    checkpoint.delete();
+                } else {
+                    save();
+                    checkpoint.close();
+                }
+            } finally {
+                file.close();
+            }
+        }
+    }
+
+    /**
+     * Forces the data to disk, then records the chunks it covers. Called with
+     * the save lock held.
+     */
+    private void save() throws IOException {
+        BitSet snapshot;
+        long snapshotEnd;
+        synchronized (this) {
+            if (!dirty) {
+                return;
+            }
+            snapshot = (BitSet) written.clone();
+            snapshotEnd = end;
+            dirty = false;
+        }
+
+        // Every chunk in the snapshot finished writing before it was taken
+        try {
+            channel.force(false);
+            checkpoint.save(snapshot, snapshotEnd);
+        } catch (IOException e) {
+            synchronized (this) {
+                dirty = true;
+            }
+            throw e;
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,248 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.*;
+
+/**
+ * The chunks of a file compressed once, up front, so they can be sent to every
+ * client that asks for compression without compressing them again.
+ *
+ * Chunks are deflated in parallel, one contiguous stretch per thread, and only
+ * kept if they shrink to at most MAX_RATIO of their size; the rest are sent
+ * raw. A stretch whose first PROBE_CHUNKS chunks all fail to shrink is taken to
+ * be incompressible, such as media or archives, and is skipped without
+ * compressing the rest of it.
+ *
+ * The compressed chunks are written to a temporary store file, deleted when
+ * the store is closed, and like the file itself are sent from there with
+ * transferTo, straight from the page cache to the socket.
+ */
+public class CompressedChunks implements Closeable {
+
+    // Constants
+    private static final double MAX_RATIO = 0.9; // Largest compressed size worth sending, as a fraction of raw
+    private static final int PROBE_CHUNKS = 4; // Chunks that must shrink before a stretch is compressed further
+
+    private final FileChannel channel; // The store file
+    private final long[] offsets; // Position of each chunk in the store, or -1 if it is sent raw
+    private final int[] lengths; // Compressed length of each chunk in the store
+    private int storedCount; // Chunks kept compressed
+    private long savedBytes; // Bytes saved across the stored chunks
+
+    private CompressedChunks(FileChannel channel, int chunkCount) {
+        this.channel = channel;
+        this.offsets = new long[chunkCount];
+        this.lengths = new int[chunkCount];
+        Arrays.fill(offsets, -1);
+    }
+
+    /**
+     * Compresses every chunk of a file worth compressing.
+     *
+     * @param file The file.
+     * @param pool The threads to compress on.
+     * @return The store.
+     * @throws IOException If the file cannot be read or the store written.
+     */
+    public static CompressedChunks build(ChunkFile file, ExecutorService pool) throws IOException {
+        Path path = Files.createTempFile("chunks", ".deflate");
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                StandardOpenOption.DELETE_ON_CLOSE);
+        CompressedChunks store = new CompressedChunks(channel, file.getChunkCount());
+        try {
+            store.compress(file, pool);
+        } catch (IOException | RuntimeException e) {
+            store.close();
+            throw e;
+        }
+        return store;
+    }
+
+    /**
+     * Compresses the chunks of a file into the store, one stretch per thread.
+     */
+    private void compress(ChunkFile file, ExecutorService pool) throws IOException {
+        int count = file.getChunkCount();
+        int parallelism = Runtime.getRuntime().availableProcessors();
+        int stretch = Math.max(1, (count + parallelism - 1) / parallelism);
+        AtomicLong end = new AtomicLong(); // Where the next compressed chunk goes in the store
+
+        List<Future<Void>> tasks = new ArrayList<>();
+        for (int from = 0; from < count; from += stretch) {
+            final int first = from;
+            final int last = Math.min(count, from + stretch);
+            tasks.add(pool.submit(new Callable<Void>() {
+                public Void call() throws IOException {
+                    Deflater deflater = new Deflater();
+                    try {
+                        ByteBuffer raw = ByteBuffer.allocate(file.getChunkSize());
+                        byte[] out = new byte[(int) (file.getChunkSize() * MAX_RATIO)];
+                        int shrunk = 0; // Chunks of this stretch that compressed well
+                        for (int i = first; i < last; i++) {
+                            if (i - first == PROBE_CHUNKS && shrunk == 0) {
+                                return null; // Incompressible; leave the rest raw
+                            }
+                            raw.clear();
+                            file.readChunk(i, raw);
+                            int length = deflate(deflater, raw.array(), raw.position(), out);
+                            if (length < 0) {
+                                continue;
+                            }
+                            shrunk++;
+                            long offset = end.getAndAdd(length);
+                            ByteBuffer data = ByteBuffer.wrap(out, 0, length);
+                            while (data.hasRemaining()) {
+                                channel.write(data, offset + data.position());
+                            }
+                            record(i, offset, length, raw.position());
+                        }
+                        return null;
+                    } finally {
+                        deflater.end();
+                    }
+                }
+            }));
+        }
+
+        try {
+            for (Future<Void> task : tasks) {
+                task.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while compressing " + file.getName());
+        } catch (ExecutionException e) {
+            // Not interrupted: an interrupt during a read would close the shared file channel
+            for (Future<Void> task : tasks) {
+                task.cancel(false);
+            }
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Failed to compress " + file.getName(), e.getCause());
+        }
+    }
+
+    /**
+     * Deflates a chunk into a buffer sized for the largest acceptable result.
+     *
+     * @return The compressed length, or -1 if the chunk does not shrink enough.
+     */
+    private static int deflate(Deflater deflater, byte[] data, int length, byte[] out) {
+        deflater.reset();
+        deflater.setInput(data, 0, length);
+        deflater.finish();
+        int limit = Math.min(out.length, (int) (length * MAX_RATIO));
+        int written = 0;
+        while (!deflater.finished() && written < limit) {
+            written += deflater.deflate(out, written, limit - written);
+        }
+        return deflater.finished() ? written : -1;
+    }
+
+    /**
+     * Records where a compressed chunk was stored. Called from the compressing
+     * threads.
+     */
+    private synchronized void record(int index, long offset, int length, int rawLength) {
+        offsets[index] = offset;
+        lengths[index] = length;
+        storedCount++;
+        savedBytes += rawLength - length;
+    }
+
+    /**
+     * Inflates a chunk received compressed. Safe to call from several threads.
+     *
+     * @param data      The compressed chunk.
+     * @param rawLength The length of the chunk.
+     * @return The chunk.
+     * @throws IOException If the data does not inflate to exactly rawLength
+     *                     bytes.
+     */
+    public static byte[] inflate(byte[] data, int rawLength) throws IOException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data);
+            byte[] chunk = new byte[rawLength];
+            int length = 0;
+            while (length < rawLength && !inflater.finished()) {
+                int inflated = inflater.inflate(chunk, length, rawLength - length);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                length += inflated;
+            }
+            if (length != rawLength || !inflater.finished()) {
+                throw new IOException("Compressed chunk does not inflate to " + rawLength + " bytes");
+            }
+            return chunk;
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt compressed chunk: " + e.getMessage());
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * @param index The chunk number.
+     * @return true if the chunk is kept compressed.
+     */
+    public synchronized boolean has(int index) {
+        return offsets[index] >= 0;
+    }
+
+    /**
+     * @param index A chunk that is kept compressed.
+     * @return The position of the compressed chunk in the store.
+     */
+    public synchronized long offset(int index) {
+        return offsets[index];
+    }
+
+    /**
+     * @param index A chunk that is kept compressed.
+     * @return The compressed length of the chunk.
+     */
+    public synchronized int length(int index) {
+        return lengths[index];
+    }
+
+    /**
+     * @return The number of chunks kept compressed.
+     */
+    public synchronized int getStoredCount() {
+        return storedCount;
+    }
+
+    /**
+     * @return The bytes saved by sending the stored chunks compressed.
+     */
+    public synchronized long getSavedBytes() {
+        return savedBytes;
+    }
+
+    /**
+     * Transfers up to count bytes of the store starting at an absolute
+     * position. Makes a single attempt, so it can be used with non-blocking
+     * channels.
+     *
+     * @param position The store position to start from.
+     * @param count    The maximum number of bytes to transfer.
+     * @param target   The channel to write to.
+     * @return The number of bytes transferred.
+     * @throws IOException If an I/O error occurs.
+     */
+    public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+        return channel.transferTo(position, count, target);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
\ No newline at end of file
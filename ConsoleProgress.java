@@ -0,0 +1,26 @@
+import java.util.*;
+
+/**
+ * Reports download progress to the log, for leechers running without a
+ * window. The Leecher already logs every status change, so only progress is
+ * written here: a line each time a download passes another STEP_PERCENT.
+ */
+public class ConsoleProgress implements DownloadListener {
+
+    private static final int STEP_PERCENT = 10; // Progress between two lines for the same download
+
+    private final Map<String, Integer> logged = new HashMap<>(); // Last step logged, by file
+
+    @Override
+    public void progress(String file, int completed, int total, String status) {
+        if (total <= 0) {
+            return;
+        }
+        int percent = (int) ((long) completed * 100 / total);
+        int step = percent / STEP_PERCENT;
+        Integer last = logged.put(file, step);
+        if (last == null || last != step) {
+            Log.info(file + ": " + percent + "% (" + completed + " of " + total + " chunks)");
+        }
+    }
+}
\ No newline at end of file
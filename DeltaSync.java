@@ -0,0 +1,343 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Copies the chunks of a new version of a file out of an older copy on disk,
+ * so that only the chunks that actually changed are downloaded.
+ *
+ * Chunks sit at fixed offsets, so an insertion or deletion shifts every chunk
+ * after it. The old copy is therefore searched at every byte offset, not just
+ * at chunk boundaries: the rolling checksum of each chunk (ChunkChecksums) is
+ * slid along the old copy, and wherever it matches a wanted chunk, the bytes
+ * there are checked against the chunk's digest in the manifest and, if they
+ * match, written into the target. An edit then costs only the chunks it
+ * touches, wherever it is in the file.
+ *
+ * The old copy is split into one contiguous stretch per thread. Each thread
+ * reads its stretch sequentially, through one read position entering the
+ * window and one leaving it.
+ */
+public class DeltaSync {
+
+    // Constants
+    private static final int READ_BUFFER_SIZE = 1024 * 1024; // Bytes read from the old copy at a time
+    private static final long MIN_STRETCH = 64L * 1024 * 1024; // Fewest offsets a thread is given to search
+    private static final int FILTER_BITS_PER_CHUNK = 32; // Filter bits per wanted chunk, so most offsets miss at once
+
+    private final FileChannel base; // The old copy
+    private final ChunkManifest manifest; // Digests of the new version
+    private final ChunkWriter output; // The target file
+    private final int chunkSize; // Size of every chunk except possibly the last
+    private final long[] keys; // Checksums of the wanted chunks, sorted
+    private final int[] chunks; // Chunk number for each entry of keys
+    private final long[] filter; // Bit set for every checksum in keys, by hashed checksum
+    private final int filterShift; // Shift that turns a hashed checksum into a filter bit
+    private final BitSet found = new BitSet(); // Chunks copied so far
+
+    private DeltaSync(FileChannel base, ChunkManifest manifest, ChunkChecksums checksums, BitSet wanted,
+            ChunkWriter output) {
+        this.base = base;
+        this.manifest = manifest;
+        this.output = output;
+        this.chunkSize = manifest.getChunkSize();
+
+        // Only full chunks are searched for; a short last chunk is tried at its likely places
+        List<Integer> sorted = new ArrayList<>();
+        for (int i = wanted.nextSetBit(0); i >= 0 && i < manifest.getChunkCount(); i = wanted.nextSetBit(i + 1)) {
+            if (length(i) == chunkSize) {
+                sorted.add(i);
+            }
+        }
+        Collections.sort(sorted, new Comparator<Integer>() {
+            public int compare(Integer x, Integer y) {
+                return Long.compare(checksums.get(x), checksums.get(y));
+            }
+        });
+        int n = sorted.size();
+        this.keys = new long[n];
+        this.chunks = new int[n];
+        for (int i = 0; i < n; i++) {
+            chunks[i] = sorted.get(i);
+            keys[i] = checksums.get(chunks[i]);
+        }
+
+        int bits = Math.min(30, Math.max(6, 64 - Long.numberOfLeadingZeros((long) n * FILTER_BITS_PER_CHUNK)));
+        this.filter = new long[Math.max(1, (1 << bits) / 64)];
+        this.filterShift = 64 - bits;
+        for (long key : keys) {
+            int bit = filterBit(key);
+            filter[bit >>> 6] |= 1L << bit;
+        }
+    }
+
+    /**
+     * Copies every wanted chunk that can be found in an old copy of the file
+     * into the target.
+     *
+     * @param basePath  The old copy.
+     * @param manifest  The manifest of the new version.
+     * @param checksums The chunk checksums of the new version.
+     * @param wanted    The chunks still missing from the target.
+     * @param output    The target file.
+     * @param pool      The threads to search on.
+     * @return The chunks copied.
+     * @throws IOException If the old copy cannot be read or the target written.
+     */
+    public static BitSet copy(String basePath, ChunkManifest manifest, ChunkChecksums checksums, BitSet wanted,
+            ChunkWriter output, ExecutorService pool) throws IOException {
+        if (checksums.getChunkCount() != manifest.getChunkCount()
+                || checksums.getChunkSize() != manifest.getChunkSize()) {
+            throw new IOException("Chunk checksums do not match the manifest");
+        }
+        try (FileChannel channel = FileChannel.open(Paths.get(basePath), StandardOpenOption.READ)) {
+            DeltaSync sync = new DeltaSync(channel, manifest, checksums, wanted, output);
+            sync.search(pool);
+            sync.tryLastChunk(wanted);
+            return sync.found();
+        }
+    }
+
+    /**
+     * Slides the checksum along the whole old copy, one stretch per thread.
+     */
+    private void search(ExecutorService pool) throws IOException {
+        long offsets = base.size() - chunkSize + 1; // Offsets a full chunk can start at
+        if (keys.length == 0 || offsets <= 0) {
+            return;
+        }
+        int parallelism = Runtime.getRuntime().availableProcessors();
+        long stretch = Math.max(MIN_STRETCH, (offsets + parallelism - 1) / parallelism);
+
+        List<Future<Void>> tasks = new ArrayList<>();
+        for (long from = 0; from < offsets; from += stretch) {
+            final long first = from;
+            final long last = Math.min(offsets, from + stretch);
+            tasks.add(pool.submit(new Callable<Void>() {
+                public Void call() throws IOException {
+                    searchStretch(first, last);
+                    return null;
+                }
+            }));
+        }
+
+        try {
+            for (Future<Void> task : tasks) {
+                task.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while searching the old copy");
+        } catch (ExecutionException e) {
+            // Not interrupted: an interrupt during a read would close the shared file channel
+            for (Future<Void> task : tasks) {
+                task.cancel(false);
+            }
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Failed to search the old copy", e.getCause());
+        }
+    }
+
+    /**
+     * Tries every chunk start from first up to, but not including, last. The
+     * window is slid across whole runs of buffered bytes at a time.
+     */
+    private void searchStretch(long first, long last) throws IOException {
+        Reader entering = new Reader(base, first);
+        Reader leaving = new Reader(base, first);
+        byte[] chunk = new byte[chunkSize];
+
+        int a = 0;
+        int b = 0;
+        for (int i = 0; i < chunkSize; i++) {
+            a += entering.next() & 0xFF;
+            b += a;
+        }
+        check(first, a, b, chunk);
+
+        for (long position = first + 1; position < last;) {
+            int run = (int) Math.min(last - position, Math.min(entering.available(), leaving.available()));
+            byte[] in = entering.bytes;
+            byte[] out = leaving.bytes;
+            int i = entering.next;
+            int o = leaving.next;
+            for (int k = 0; k < run; k++) {
+                int x = out[o + k] & 0xFF;
+                a += (in[i + k] & 0xFF) - x;
+                b += a - chunkSize * x;
+                long sum = ((long) b << 32) | (a & 0xFFFFFFFFL);
+                int bit = filterBit(sum);
+                if ((filter[bit >>> 6] & (1L << bit)) != 0) {
+                    candidate(position + k, sum, chunk);
+                }
+            }
+            entering.next += run;
+            leaving.next += run;
+            position += run;
+        }
+    }
+
+    /**
+     * Checks the window at a position if its checksum might be wanted.
+     */
+    private void check(long position, int a, int b, byte[] chunk) throws IOException {
+        long sum = ((long) b << 32) | (a & 0xFFFFFFFFL);
+        int bit = filterBit(sum);
+        if ((filter[bit >>> 6] & (1L << bit)) != 0) {
+            candidate(position, sum, chunk);
+        }
+    }
+
+    /**
+     * Checks the bytes at a position of the old copy against every wanted chunk
+     * with a matching checksum, and copies them if they match.
+     */
+    private void candidate(long position, long sum, byte[] chunk) throws IOException {
+        int i = Arrays.binarySearch(keys, sum);
+        if (i < 0) {
+            return;
+        }
+        while (i > 0 && keys[i - 1] == sum) {
+            i--;
+        }
+        boolean read = false;
+        for (; i < keys.length && keys[i] == sum; i++) {
+            int index = chunks[i];
+            synchronized (found) {
+                if (found.get(index)) {
+                    continue;
+                }
+            }
+            if (!read) {
+                readFully(ByteBuffer.wrap(chunk), position);
+                read = true;
+            }
+            if (manifest.verify(index, chunk)) {
+                copy(index, chunk);
+            }
+        }
+    }
+
+    /**
+     * Tries a short last chunk where it is most likely to be: at the end of the
+     * old copy, and at its own offset.
+     */
+    private void tryLastChunk(BitSet wanted) throws IOException {
+        int index = manifest.getChunkCount() - 1;
+        if (index < 0 || !wanted.get(index) || length(index) == chunkSize) {
+            return;
+        }
+        byte[] chunk = new byte[length(index)];
+        long[] positions = { base.size() - chunk.length, (long) index * chunkSize };
+        for (long position : positions) {
+            if (position >= 0 && position + chunk.length <= base.size()) {
+                readFully(ByteBuffer.wrap(chunk), position);
+                if (manifest.verify(index, chunk)) {
+                    copy(index, chunk);
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes a chunk that was found into the target, unless another thread got
+     * there first.
+     */
+    private void copy(int index, byte[] chunk) throws IOException {
+        synchronized (found) {
+            if (found.get(index)) {
+                return;
+            }
+            found.set(index);
+        }
+        output.write(index, chunk);
+    }
+
+    /**
+     * @return The chunks copied.
+     */
+    private BitSet found() {
+        synchronized (found) {
+            return (BitSet) found.clone();
+        }
+    }
+
+    /**
+     * @return The length of a chunk of the new version.
+     */
+    private int length(int index) {
+        return (int) Math.min(chunkSize, manifest.getSize() - (long) index * chunkSize);
+    }
+
+    /**
+     * Maps a checksum to its bit in the filter.
+     */
+    private int filterBit(long sum) {
+        return (int) ((sum * 0x9E3779B97F4A7C15L) >>> filterShift);
+    }
+
+    /**
+     * Reads until the buffer is full.
+     */
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = base.read(buffer, position + buffer.position());
+            if (read < 0) {
+                throw new EOFException("Old copy ended early");
+            }
+        }
+    }
+
+    /**
+     * Reads the old copy sequentially from a starting position, through a
+     * buffer of its own.
+     */
+    static class Reader {
+        private final FileChannel channel; // The file
+        private final ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE); // Bytes read ahead
+        final byte[] bytes = buffer.array(); // Backing array of the buffer
+        private long position; // File position of the next read
+        int next; // Next byte of the buffer to use
+        private int limit; // Bytes in the buffer
+
+        Reader(FileChannel channel, long position) {
+            this.channel = channel;
+            this.position = position;
+        }
+
+        /**
+         * @return The next byte.
+         * @throws IOException If the file ends or cannot be read.
+         */
+        byte next() throws IOException {
+            available();
+            return bytes[next++];
+        }
+
+        /**
+         * Reads more of the file if the buffer has been used up.
+         *
+         * @return The number of bytes from next on, at least one.
+         * @throws IOException If the file ends or cannot be read.
+         */
+        int available() throws IOException {
+            if (next == limit) {
+                buffer.clear();
+                int read = channel.read(buffer, position);
+                if (read <= 0) {
+                    throw new EOFException("Old copy ended early");
+                }
+                position += read;
+                next = 0;
+                limit = read;
+            }
+            return limit - next;
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,19 @@
+/**
+ * Receives the progress of the downloads a Leecher is running. Reports are
+ * coalesced by DownloadProgress, so a listener hears about each download at
+ * most once per reporting interval, always on the same thread, however fast
+ * chunks arrive.
+ */
+public interface DownloadListener {
+
+    /**
+     * Called with the latest state of a download whenever it has changed since
+     * the last report.
+     *
+     * @param file      The name or content hash the download was started with.
+     * @param completed The number of chunks on disk so far.
+     * @param total     The number of chunks in the file, or 0 if not yet known.
+     * @param status    The latest status message.
+     */
+    void progress(String file, int completed, int total, String status);
+}
\ No newline at end of file
@@ -0,0 +1,160 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Coalesces the progress of a batch of downloads into periodic reports to a
+ * DownloadListener.
+ *
+ * Download workers never call the listener themselves: they only count the
+ * chunks they finish and set a status, which costs an atomic increment or a
+ * volatile write. A thread of its own reads the state of every download once
+ * per interval and reports those that changed. However many chunks arrive, a
+ * window or console is updated at most once per interval per download, and a
+ * slow listener never holds up the network or verifier threads.
+ */
+public class DownloadProgress implements Closeable {
+
+    private final DownloadListener listener; // Receives the reports, or null for none
+    private final List<Entry> entries = new CopyOnWriteArrayList<>(); // Downloads tracked, in the order added
+    private final ScheduledExecutorService reporter; // Sends the reports; null without a listener
+
+    /**
+     * @param listener       Receives the reports, or null to only keep count.
+     * @param intervalMillis The time between two reports.
+     */
+    public DownloadProgress(DownloadListener listener, long intervalMillis) {
+        this.listener = listener;
+        if (listener == null) {
+            this.reporter = null;
+            return;
+        }
+        this.reporter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable task) {
+                Thread thread = new Thread(task, "progress");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        reporter.scheduleAtFixedRate(new Runnable() {
+            public void run() {
+                report();
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Starts tracking a download.
+     *
+     * @param file The name or content hash the download was started with.
+     * @return The download's progress, for its workers to update.
+     */
+    public Entry track(String file) {
+        Entry entry = new Entry(file);
+        entries.add(entry);
+        return entry;
+    }
+
+    /**
+     * Sends a report for every download that changed since the last one. Only
+     * called on the reporting thread.
+     */
+    private void report() {
+        for (Entry entry : entries) {
+            int completed = entry.completed.get();
+            int total = entry.total;
+            String status = entry.status;
+            if (completed == entry.reportedCompleted && total == entry.reportedTotal
+                    && Objects.equals(status, entry.reportedStatus)) {
+                continue;
+            }
+            entry.reportedCompleted = completed;
+            entry.reportedTotal = total;
+            entry.reportedStatus = status;
+            try {
+                listener.progress(entry.file, completed, total, status);
+            } catch (RuntimeException e) {
+                Log.error("Progress listener failed: " + e);
+            }
+        }
+    }
+
+    /**
+     * Sends a last report of anything that changed since the previous one and
+     * stops reporting.
+     */
+    @Override
+    public void close() {
+        if (reporter == null) {
+            return;
+        }
+        reporter.execute(new Runnable() {
+            public void run() {
+                report();
+            }
+        });
+        reporter.shutdown();
+        try {
+            reporter.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * The progress of one download. Safe to update from any thread.
+     */
+    public static class Entry {
+        private final String file; // Name or content hash the download was started with
+        private final AtomicInteger completed = new AtomicInteger(); // Chunks on disk so far
+        private volatile int total; // Chunks in the file, or 0 if not yet known
+        private volatile String status; // Latest status message
+        private int reportedCompleted; // As last reported; only used on the reporting thread
+        private int reportedTotal; // As last reported
+        private String reportedStatus; // As last reported
+
+        private Entry(String file) {
+            this.file = file;
+        }
+
+        /**
+         * @param status The new status message.
+         */
+        public void status(String status) {
+            this.status = status;
+        }
+
+        /**
+         * Sets the size of the download once it is known.
+         *
+         * @param total     The number of chunks in the file.
+         * @param completed The number of chunks already on disk.
+         */
+        public void start(int total, int completed) {
+            this.completed.set(completed);
+            this.total = total;
+        }
+
+        /**
+         * Counts one more chunk on disk.
+         */
+        public void chunkDone() {
+            completed.incrementAndGet();
+        }
+
+        /**
+         * @return The number of chunks on disk so far.
+         */
+        public int getCompleted() {
+            return completed.get();
+        }
+
+        /**
+         * @return The number of chunks in the file, or 0 if not yet known.
+         */
+        public int getTotal() {
+            return total;
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,130 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Records durations into log-linear buckets, in the manner of HdrHistogram:
+ * values below 64 ns get a bucket each, and every power of two above that is
+ * split into 32 buckets, so any value is known to within about 3%. Values
+ * above MAX_NANOS land in the top bucket.
+ *
+ * Each bucket is a striped counter, so threads recording at the same time do
+ * not contend on one cache line; recording takes no lock and allocates
+ * nothing. Percentiles are read from a snapshot of the buckets and are only as
+ * consistent as the recording allows, which is plenty for monitoring.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BITS = 5; // log2 of the buckets per power of two
+    private static final int SUB_BUCKETS = 1 << SUB_BITS; // Buckets per power of two
+    private static final long MAX_NANOS = 1L << 40; // About 18 minutes; larger values are clamped
+    private static final int BUCKETS = index(MAX_NANOS) + 1; // Buckets up to MAX_NANOS
+
+    private final LongAdder[] counts = new LongAdder[BUCKETS]; // Values recorded per bucket
+    private final LongAdder sum = new LongAdder(); // Sum of the values recorded, in ns
+    private final AtomicLong max = new AtomicLong(); // Largest value recorded, in ns
+
+    public LatencyHistogram() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Records one duration.
+     *
+     * @param nanos The duration in nanoseconds; negative values count as 0.
+     */
+    public void record(long nanos) {
+        long value = Math.max(0, Math.min(nanos, MAX_NANOS));
+        counts[index(value)].increment();
+        sum.add(value);
+        long seen = max.get();
+        while (value > seen && !max.compareAndSet(seen, value)) {
+            seen = max.get();
+        }
+    }
+
+    /**
+     * Records the time since a start time.
+     *
+     * @param startNanos A System.nanoTime() reading.
+     */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * @return The number of values recorded.
+     */
+    public long count() {
+        long count = 0;
+        for (LongAdder bucket : counts) {
+            count += bucket.sum();
+        }
+        return count;
+    }
+
+    /**
+     * @return The sum of the values recorded, in ns.
+     */
+    public long sum() {
+        return sum.sum();
+    }
+
+    /**
+     * @return The largest value recorded, in ns.
+     */
+    public long max() {
+        return max.get();
+    }
+
+    /**
+     * Estimates a percentile as the upper edge of the bucket it falls in.
+     *
+     * @param fraction The percentile as a fraction, e.g. 0.99.
+     * @return The value in ns, or 0 if nothing has been recorded.
+     */
+    public long percentile(double fraction) {
+        long[] snapshot = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts[i].sum();
+            total += snapshot[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(fraction * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return Math.min(highestValue(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * @return The bucket a value falls in.
+     */
+    private static int index(long value) {
+        if (value < 2 * SUB_BUCKETS) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) - SUB_BUCKETS);
+    }
+
+    /**
+     * @return The largest value that falls in a bucket.
+     */
+    private static long highestValue(int index) {
+        if (index < 2 * SUB_BUCKETS) {
+            return index;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        long sub = index % SUB_BUCKETS + SUB_BUCKETS;
+        return ((sub + 1) << shift) - 1;
+    }
+}
\ No newline at end of file
@@ -1,280 +1,1092 @@
-import javax.swing.*;
-import java.awt.*;
 import java.io.*;
 import java.net.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongSupplier;
 import java.util.*; // Explicitly import java.util.List
 
+/**
+ * Downloads files from the swarm, checking every chunk against the manifest,
+ * serving what it has to other leechers as it goes, and seeding the files once
+ * they are complete.
+ *
+ * The engine has no user interface of its own. Progress goes to a
+ * DownloadListener through DownloadProgress, which coalesces it, so the same
+ * engine drives a window (ProgressWindow), the console (ConsoleProgress) or
+ * nothing at all, and runs on machines without a display.
+ *
+ * Several files can be downloaded at once. The files of a batch share one
+ * pool of peer workers, capped at MAX_CONNECTIONS connections in all (a peer
+ * beyond the cap waits for a slot rather than being dropped), one
+ * verifier pool, one timer, and one partial seeder that serves every file on
+ * the leecher's port; each file has a piece scheduler of its own, since chunk
+ * numbers are per file.
+ */
 public class Leecher {
 
-    private static final int TRACKER_PORT = 5000; // Port for communicating with the tracker
+    private static final int ONE_SHOT_CHUNK_SIZE = 512 * 1024; // Chunk size of seeders that cannot report it
+    private static final int RANGE_CHUNKS = 8; // Chunks asked for in a single range request
+    private static final int MAX_ONE_SHOT_FAILURES = 3; // Consecutive failures before a one-shot seeder is dropped
+    private static final long STRAGGLER_CHECK_MILLIS = 100; // How often in-flight chunks are checked for hedging
+    private static final long CHECKPOINT_MILLIS = 1000; // How often finished chunks are recorded on disk
+    private static final long PEER_REFRESH_MILLIS = 5000; // How often the tracker is asked for new peers
+    private static final long BITFIELD_REFRESH_MILLIS = 1000; // How often a partial peer is asked what it has
+    private static final long PROGRESS_MILLIS = 250; // Shortest time between two progress reports of a download
+    private static final long MANIFEST_WAIT_MILLIS = 10 * 60 * 1000; // Longest wait for a seeder still indexing
+    private static final int MAX_PEERS = 16; // Most peers downloaded from at once, per file
+    private static final int MAX_CONNECTIONS = 64; // Most peers downloaded from at once, across a batch
+    private static final int PEER_SAMPLE = 50; // Peers asked of the tracker per query
+    private static final String BASE_SUFFIX = ".old"; // Appended to the target path for an earlier version
 
-    private JFrame frame;
-    private JProgressBar progressBar;
-    private JLabel statusLabel;
+    // An earlier version of the file to copy unchanged chunks from, set with -Dleecher.base=<path>; by
+    // default a finished file already at the target path is moved aside and used
+    private static final String BASE_FILE = System.getProperty("leecher.base");
+    private static final long LOG_INTERVAL_MILLIS = 1000; // Shortest time between two per-chunk log lines
 
-    public Leecher() {
-        // Initialize the GUI
-        initializeGUI();
-    }
+    // Show a progress window where there is a display, unless -Dleecher.window=false
+    private static final boolean WINDOW = Boolean.parseBoolean(System.getProperty("leecher.window", "true"));
 
-    /**
-     * Initializes the GUI components.
-     */
-    private void initializeGUI() {
-        // Create the frame
-        frame = new JFrame("Download Progress");
-        frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
-        frame.setSize(400, 150);
-        frame.setLayout(new BorderLayout());
-
-        // Create the progress bar
-        progressBar = new JProgressBar(0, 100);
-        progressBar.setStringPainted(true); // Show percentage text
-        frame.add(progressBar, BorderLayout.CENTER);
-
-        // Create a label for status
-        statusLabel = new JLabel("Waiting to start download...", SwingConstants.CENTER);
-        frame.add(statusLabel, BorderLayout.NORTH);
-
-        // Display the frame
-        frame.setVisible(true);
-    }
+    // Metrics
+    private static final Metrics.Counter CHUNKS_DONE = Metrics.counter("leecher_chunks_completed_total",
+            "Chunks verified and written to the target file");
+    private static final Metrics.Counter CHUNKS_CORRUPT = Metrics.counter("leecher_chunks_corrupt_total",
+            "Chunks that failed verification");
+    private static final Metrics.Counter CHUNKS_COMPRESSED = Metrics.counter("leecher_compressed_chunks_total",
+            "Chunks received compressed");
+    private static final LatencyHistogram VERIFY_TIME = Metrics.histogram("leecher_chunk_verify_seconds",
+            "Time from a chunk arriving to it being verified and written");
+    private static final Log.Sampler CHUNK_LOG = Log.sampler(LOG_INTERVAL_MILLIS); // Chunks downloaded
+    private static final Log.Sampler FAILURE_LOG = Log.sampler(LOG_INTERVAL_MILLIS); // Chunks that failed
+
+    private final DownloadListener listener; // Receives coalesced progress, or null
 
     /**
-     * Updates the progress bar and status label.
-     *
-     * @param progress The current progress (0-100).
-     * @param message  The status message to display.
+     * @param listener Receives the progress of every download, coalesced and on
+     *                 a thread of its own, or null to only log it.
      */
-    private void updateProgress(int progress, String message) {
-        progressBar.setValue(progress);
-        statusLabel.setText(message);
+    public Leecher(DownloadListener listener) {
+        this.listener = listener;
     }
 
     public static void main(String[] args) throws Exception {
 
         // Validate command-line arguments
         if (args.length < 4) {
-            System.err.println("Usage: java Leecher <TARGET_FILE> <TRACKER_IP> <LEECHER_IP> <LEECHER_IP_PORT>");
+            System.err.println("Usage: java Leecher <TARGET_FILE> <TRACKER_IP[:port],...> <LEECHER_IP> "
+                    + "<LEECHER_IP_PORT> [<TARGET_FILE> ...]");
             return;
         }
 
         // Parse command-line arguments
         String TARGET_FILE = args[0]; // File to download
-        String TRACKER_IP = args[1]; // IP address of the tracker
+        String TRACKER_IP = args[1]; // IP address of the tracker, or a comma-separated tracker cluster
         String LEECHER_IP = args[2]; // IP address of this leecher
         String LEECHER_IP_PORT = args[3]; // Port on which this leecher will act as a seeder
 
-        System.out.println("Starting download for file: " + TARGET_FILE);
+        // Any further arguments are more files to download at the same time
+        java.util.List<String> targets = new ArrayList<>();
+        targets.add(TARGET_FILE);
+        targets.addAll(Arrays.asList(args).subList(4, args.length));
 
-        // Create and start the Leecher GUI
-        Leecher leecher = new Leecher();
-        leecher.startDownload(TARGET_FILE, TRACKER_IP, LEECHER_IP, LEECHER_IP_PORT);
+        Metrics.start();
+        Log.info("Starting download for files: " + targets);
+
+        // Show progress in a window if there is a display, and in the log otherwise
+        DownloadListener listener;
+        if (WINDOW && !java.awt.GraphicsEnvironment.isHeadless()) {
+            listener = new ProgressWindow();
+        } else {
+            listener = new ConsoleProgress();
+        }
+        Leecher leecher = new Leecher(listener);
+        leecher.startDownload(targets, TRACKER_IP, LEECHER_IP, LEECHER_IP_PORT);
     }
 
     /**
      * Starts the download process.
      *
-     * @param TARGET_FILE    The file to download.
+     * @param targets        The files to download.
      * @param TRACKER_IP     The IP address of the tracker.
      * @param LEECHER_IP     The IP address of this leecher.
      * @param LEECHER_IP_PORT The port on which this leecher will act as a seeder.
      */
-    public void startDownload(String TARGET_FILE, String TRACKER_IP, String LEECHER_IP, String LEECHER_IP_PORT) {
+    public void startDownload(java.util.List<String> targets, String TRACKER_IP, String LEECHER_IP,
+            String LEECHER_IP_PORT) {
         // Start the download in a separate thread
         new Thread(new Runnable() {
             public void run() {
                 try {
-                    downloadFile(TARGET_FILE, TRACKER_IP, LEECHER_IP, LEECHER_IP_PORT);
+                    downloadFiles(targets, TRACKER_IP, LEECHER_IP, LEECHER_IP_PORT);
                 } catch (Exception e) {
-                    System.err.println("Download failed: " + e.getMessage());
-                    updateProgress(0, "Download failed: " + e.getMessage());
+                    Log.error("Download failed: " + e.getMessage());
                 }
             }
         }).start();
     }
 
     /**
-     * Downloads the file from the seeders and updates the GUI.
+     * Downloads one file from the seeders.
      *
      * @param TARGET_FILE    The file to download.
      * @param TRACKER_IP     The IP address of the tracker.
      * @param LEECHER_IP     The IP address of this leecher.
      * @param LEECHER_IP_PORT The port on which this leecher will act as a seeder.
      */
-    private void downloadFile(String TARGET_FILE, String TRACKER_IP, String LEECHER_IP, String LEECHER_IP_PORT) throws Exception {
-        updateProgress(0, "Querying tracker for seeders...");
+    void downloadFile(String TARGET_FILE, String TRACKER_IP, String LEECHER_IP, String LEECHER_IP_PORT) throws Exception {
+        downloadFiles(Collections.singletonList(TARGET_FILE), TRACKER_IP, LEECHER_IP, LEECHER_IP_PORT);
+    }
+
+    /**
+     * Downloads a batch of files from the seeders at the same time, then keeps
+     * seeding them. Returns once every file is complete or has been given up
+     * on, unless a file had no manifest, in which case it goes on to seed the
+     * finished files from this thread.
+     *
+     * @param targets        The files to download.
+     * @param TRACKER_IP     The IP address of the tracker.
+     * @param LEECHER_IP     The IP address of this leecher.
+     * @param LEECHER_IP_PORT The port on which this leecher will act as a seeder.
+     */
+    void downloadFiles(java.util.List<String> targets, String TRACKER_IP, String LEECHER_IP, String LEECHER_IP_PORT)
+            throws Exception {
+        String self = LEECHER_IP + ":" + LEECHER_IP_PORT.trim(); // Never download from ourselves
+        int leecherPort = Integer.parseInt(LEECHER_IP_PORT.trim());
+        DownloadProgress progress = new DownloadProgress(listener, PROGRESS_MILLIS);
+        ExecutorService verifier = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        ExecutorService executor = Executors.newCachedThreadPool();
+        ScheduledExecutorService timer = Executors.newScheduledThreadPool(2);
+        Semaphore connections = new Semaphore(MAX_CONNECTIONS, true); // Connection slots shared by the batch
+        java.util.List<String> unshared = new ArrayList<>(); // Finished files the partial seeder does not serve
+        ChunkServer server = null; // The partial seeder, if any
+        ScheduledExecutorService heartbeats = null; // Keeps the partial seeder registered
+        boolean keepServing = false; // Whether a served file completed, so the partial seeder stays up
+
+        try {
+            // Find out about every file at once
+            Map<String, Future<Download>> preparing = new LinkedHashMap<>();
+            for (String target : targets) {
+                DownloadProgress.Entry entry = progress.track(target);
+                preparing.put(target, executor.submit(new Callable<Download>() {
+                    public Download call() throws Exception {
+                        return prepare(target, TRACKER_IP, self, entry, verifier, executor, connections);
+                    }
+                }));
+            }
+            java.util.List<Download> downloads = new ArrayList<>();
+            for (Map.Entry<String, Future<Download>> prepared : preparing.entrySet()) {
+                try {
+                    Download download = prepared.getValue().get();
+                    if (download != null) {
+                        downloads.add(download);
+                    }
+                } catch (ExecutionException e) {
+                    Log.error("Download of " + prepared.getKey() + " failed: " + e.getCause().getMessage());
+                }
+            }
+            if (downloads.isEmpty()) {
+                return;
+            }
+
+            // Serve the chunks we have to other leechers straight away, so every peer
+            // that joins adds upload capacity instead of only load on the seeders.
+            // Chunks are only shared once verified, so this needs a manifest.
+            java.util.List<Download> shared = new ArrayList<>();
+            for (Download download : downloads) {
+                if (download.manifest != null) {
+                    shared.add(download);
+                }
+            }
+            server = shared.isEmpty() ? null : startPartialSeeder(shared, leecherPort);
+            java.util.List<String> shareKeys = new ArrayList<>(); // Names every served file is found under
+            if (server != null) {
+                for (Download download : shared) {
+                    download.served = true;
+                    shareKeys.addAll(download.shareKeys);
+                }
+                Seeder.register(shareKeys, TRACKER_IP, leecherPort, LEECHER_IP, true);
+                heartbeats = Seeder.startHeartbeats(shareKeys, TRACKER_IP, leecherPort, LEECHER_IP, server);
+                Log.info("Serving chunks as they arrive on port " + leecherPort);
+            }
+
+            Metrics.gauge("leecher_active_peers", "Peers being downloaded from", new LongSupplier() {
+                public long getAsLong() {
+                    return MAX_CONNECTIONS - connections.availablePermits();
+                }
+            });
+            Metrics.gauge("leecher_chunks_remaining", "Chunks not yet verified and written",
+                    new LongSupplier() {
+                        public long getAsLong() {
+                            long remaining = 0;
+                            for (Download download : downloads) {
+                                remaining += download.progress.getTotal() - download.progress.getCompleted();
+                            }
+                            return remaining;
+                        }
+                    });
+
+            for (Download download : downloads) {
+                start(download, TRACKER_IP, timer);
+            }
+
+            // Each file is finished off as soon as it completes, whatever the others are doing
+            java.util.List<Future<Boolean>> finishing = new ArrayList<>();
+            for (Download download : downloads) {
+                finishing.add(executor.submit(new Callable<Boolean>() {
+                    public Boolean call() throws Exception {
+                        return finish(download, TRACKER_IP, leecherPort, LEECHER_IP);
+                    }
+                }));
+            }
+            for (int i = 0; i < downloads.size(); i++) {
+                try {
+                    if (finishing.get(i).get()) {
+                        if (downloads.get(i).served) {
+                            keepServing = true;
+                        } else {
+                            unshared.add(downloads.get(i).fileName);
+                        }
+                    }
+                } catch (ExecutionException e) {
+                    Log.error("Download of " + downloads.get(i).fileName + " failed: " + e.getCause().getMessage());
+                }
+            }
+            if (!unshared.isEmpty() && server != null) {
+                Log.error("Not seeding " + unshared + ": the port is already serving the other files.");
+                unshared.clear();
+            }
+        } finally {
+            // Workers wind down on their own once their scheduler is complete; they are
+            // not interrupted, since an interrupt during a file write closes the file
+            timer.shutdown();
+            executor.shutdown();
+            verifier.shutdown();
+            progress.close();
+
+            // Nothing served here completed, so stop advertising this peer and let the
+            // process exit; the tracker drops it once the heartbeats stop
+            if (server != null && !keepServing) {
+                heartbeats.shutdownNow();
+                server.stop();
+                Log.info("Stopped serving on port " + leecherPort + ": no shared download completed.");
+            }
+        }
+
+        // Become a seeder for downloaded files that were not served while downloading
+        if (!unshared.isEmpty()) {
+            Log.info("Starting seeder to share the downloaded files...");
+            java.util.List<String> seederArgs = new ArrayList<>(
+                    Arrays.asList(unshared.get(0), TRACKER_IP, LEECHER_IP, LEECHER_IP_PORT));
+            seederArgs.addAll(unshared.subList(1, unshared.size()));
+            Seeder.main(seederArgs.toArray(new String[0]));
+        }
+    }
+
+    /**
+     * Finds the seeders of a file, fetches its layout and manifest, and opens
+     * the target file, keeping chunks left by an earlier attempt that still
+     * verify and copying those an earlier version still has.
+     *
+     * @param TARGET_FILE The file to download.
+     * @param TRACKER_IP  The IP address of the tracker.
+     * @param self        "IP:Port" this leecher serves on.
+     * @param progress    The download's progress.
+     * @param verifier    Checks chunk digests off the network threads.
+     * @param executor    Runs one worker per seeder.
+     * @param connections Connection slots shared by the batch.
+     * @return The download, ready to start, or null if it cannot go ahead.
+     */
+    private Download prepare(String TARGET_FILE, String TRACKER_IP, String self, DownloadProgress.Entry progress,
+            ExecutorService verifier, ExecutorService executor, Semaphore connections) throws Exception {
+        progress.status("Querying tracker for seeders...");
 
         // Query the tracker for seeders hosting the file
         java.util.List<String> seeders = queryTracker(TARGET_FILE, TRACKER_IP);
 
         if (seeders.isEmpty()) {
-            System.err.println("No seeders available for this file!");
-            updateProgress(0, "No seeders available for this file!");
-            System.exit(0); // Terminate the program
+            Log.error("No seeders available for " + TARGET_FILE + "!");
+            progress.status("No seeders available for this file!");
+            return null;
         }
 
-        System.out.println("Seeders found: " + seeders);
-        updateProgress(0, "Seeders found: " + seeders);
+        Log.info("Seeders found: " + seeders);
+        progress.status("Seeders found: " + seeders);
 
-        // Get the total number of chunks from the first seeder
-        String firstSeeder = seeders.get(0);
-        String[] parts = firstSeeder.split(":");
-        String seederIP = parts[0];
-        int seederPort = Integer.parseInt(parts[1]);
+        // Get the file layout from the first seeder that answers; seeders still
+        // indexing the file are only waited for if no other seeder is ready
+        String firstSeeder = null;
+        PeerConnection.RemoteFile remoteFile = null;
+        for (int pass = 0; pass < 2 && remoteFile == null; pass++) {
+            long wait = pass == 0 ? 0 : MANIFEST_WAIT_MILLIS;
+            for (String entry : seeders) {
+                firstSeeder = peerName(entry);
+                if (firstSeeder.equals(self)) {
+                    continue;
+                }
+                String[] parts = firstSeeder.split(":");
+                Log.info("Fetching total chunks from seeder: " + firstSeeder);
+                progress.status(pass == 0 ? "Fetching total chunks from seeder: " + firstSeeder
+                        : "Waiting for seeder " + firstSeeder + " to index the file...");
+                remoteFile = describeFile(TARGET_FILE, parts[0], Integer.parseInt(parts[1]), wait);
+                if (remoteFile != null) {
+                    break;
+                }
+            }
+        }
 
-        System.out.println("Fetching total chunks from seeder: " + firstSeeder);
-        updateProgress(0, "Fetching total chunks from seeder: " + firstSeeder);
-        int totalChunks = getTotalChunks(seederIP, seederPort);
+        if (remoteFile == null || remoteFile.chunkCount <= 0) {
+            Log.error("Failed to retrieve total chunks from seeder.");
+            progress.status("Failed to retrieve total chunks from seeder.");
+            return null;
+        }
+        int totalChunks = remoteFile.chunkCount;
 
-        if (totalChunks <= 0) {
-            System.err.println("Failed to retrieve total chunks from seeder.");
-            updateProgress(0, "Failed to retrieve total chunks from seeder.");
-            return;
+        // With a manifest every chunk can be verified, and seeders sharing the same
+        // content under another name can join in
+        ChunkManifest manifest = remoteFile.manifest;
+        if (manifest == null) {
+            Log.info("Seeder " + firstSeeder + " has no chunk manifest; chunks will not be verified.");
+        } else if (isContentHash(TARGET_FILE) && !TARGET_FILE.equals(manifest.getContentHash())) {
+            Log.error("Seeder " + firstSeeder + " sent a manifest for different content: "
+                    + manifest.getContentHash());
+            progress.status("Seeder " + firstSeeder + " sent a manifest for different content.");
+            return null;
+        } else {
+            String contentHash = manifest.getContentHash();
+            Log.info("Content hash: " + contentHash);
+            if (!contentHash.equals(TARGET_FILE)) {
+                seeders = new ArrayList<>(seeders);
+                seeders.addAll(queryTracker(contentHash, TRACKER_IP));
+            }
+        }
+        Set<String> shareKeys = new LinkedHashSet<>(); // Names the file is found under
+        shareKeys.add(TARGET_FILE);
+        if (manifest != null) {
+            shareKeys.add(manifest.getContentHash());
         }
 
-        System.out.println("Total chunks to download: " + totalChunks);
-        updateProgress(0, "Total chunks to download: " + totalChunks);
+        Log.info("Total chunks to download: " + totalChunks);
+        progress.status("Total chunks to download: " + totalChunks);
+
+        // Chunks are written into the pre-sized target file as they arrive; chunks
+        // left by an earlier, interrupted attempt are kept if they still verify
+        String base = deltaBase(TARGET_FILE, remoteFile);
+        ChunkWriter output = new ChunkWriter(TARGET_FILE, remoteFile.size, remoteFile.chunkSize, totalChunks);
+        BitSet resumed = output.getResumed();
+        try {
+            if (manifest != null && !resumed.isEmpty()) {
+                try (ChunkFile existing = ChunkFile.open(TARGET_FILE, remoteFile.chunkSize)) {
+                    BitSet bad = manifest.verify(existing, resumed, verifier);
+                    if (!bad.isEmpty()) {
+                        Log.error(bad.cardinality() + " chunks on disk failed verification and will be fetched again.");
+                        resumed.andNot(bad);
+                        output.discard(bad);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            output.close();
+            throw e;
+        }
+
+        // Chunks of the new version that an earlier version still contains, wherever
+        // they have moved to, are copied from it instead of downloaded
+        if (base != null && resumed.cardinality() < totalChunks) {
+            BitSet wanted = new BitSet();
+            wanted.set(0, totalChunks);
+            wanted.andNot(resumed);
+            progress.status("Searching " + base + " for unchanged chunks...");
+            long start = System.nanoTime();
+            try {
+                BitSet copied = DeltaSync.copy(base, manifest, remoteFile.checksums, wanted, output, verifier);
+                resumed.or(copied);
+                Log.info("Copied " + copied.cardinality() + " of " + wanted.cardinality() + " chunks from " + base
+                        + " (searched in " + (System.nanoTime() - start) / 1000000 + " ms).");
+            } catch (IOException e) {
+                Log.error("Cannot copy chunks from " + base + ", downloading them instead: " + e.getMessage());
+            }
+        }
+        progress.start(totalChunks, resumed.cardinality());
+        if (!resumed.isEmpty()) {
+            Log.info("Resuming download: " + resumed.cardinality() + " of " + totalChunks
+                    + " chunks already on disk.");
+            progress.status("Resuming download: " + resumed.cardinality() + " of " + totalChunks
+                    + " chunks already on disk.");
+        }
+
+        // The scheduler hands out work so that faster seeders take on more of it
+        PieceScheduler scheduler = new PieceScheduler(totalChunks, remoteFile.chunkSize, resumed);
+        return new Download(TARGET_FILE, self, manifest, remoteFile.checksums, shareKeys, seeders, base, scheduler,
+                output, verifier, executor, progress, connections);
+    }
+
+    /**
+     * Starts downloading chunks in parallel, one persistent connection per
+     * seeder, along with the timers that hedge stragglers, checkpoint the file
+     * and look for new peers.
+     *
+     * @param download   The download, as prepared.
+     * @param TRACKER_IP The IP address of the tracker.
+     * @param timer      Runs the periodic tasks of every download.
+     */
+    private void start(Download download, String TRACKER_IP, ScheduledExecutorService timer) {
+        PieceScheduler scheduler = download.scheduler;
+        Log.info("Starting parallel download of chunks of " + download.fileName + "...");
+        download.progress.status("Starting parallel download of chunks...");
+
+        // Periodically hedge chunks that are taking much longer than usual
+        download.timers.add(timer.scheduleAtFixedRate(new Runnable() {
+            public void run() {
+                scheduler.checkStragglers();
+            }
+        }, STRAGGLER_CHECK_MILLIS, STRAGGLER_CHECK_MILLIS, TimeUnit.MILLISECONDS));
+
+        // Periodically record the chunks on disk so an interrupted download can resume
+        Runnable checkpoint = new Runnable() {
+            public void run() {
+                try {
+                    download.output.checkpoint();
+                } catch (IOException e) {
+                    Log.error("Failed to checkpoint download: " + e.getMessage());
+                }
+            }
+        };
+        download.timers.add(
+                timer.scheduleAtFixedRate(checkpoint, CHECKPOINT_MILLIS, CHECKPOINT_MILLIS, TimeUnit.MILLISECONDS));
+        download.shutdownHook = new Thread(checkpoint);
+        Runtime.getRuntime().addShutdownHook(download.shutdownHook);
+
+        joinPeers(download, download.seeders);
+
+        // Periodically pick up peers that joined the swarm since, most of them
+        // leechers serving what they have so far
+        download.timers.add(timer.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                try {
+                    for (String key : download.shareKeys) {
+                        joinPeers(download, queryTracker(key, TRACKER_IP));
+                    }
+                } catch (Exception e) {
+                    Log.error("Failed to refresh peers from tracker: " + e.getMessage());
+                }
+            }
+        }, PEER_REFRESH_MILLIS, PEER_REFRESH_MILLIS, TimeUnit.MILLISECONDS));
+
+        Log.info("Waiting for all chunks of " + download.fileName + " to be downloaded...");
+        download.progress.status("Waiting for all chunks to be downloaded...");
+    }
 
-        // Download chunks in parallel using a thread pool
-        ExecutorService executor = Executors.newFixedThreadPool(seeders.size());
-        byte[][] chunks = new byte[totalChunks][];
+    /**
+     * Waits until every chunk of a file is on disk or every seeder has failed,
+     * then closes the file. A complete file served while downloading is
+     * registered with the tracker as complete.
+     *
+     * @param download   The download, started.
+     * @param TRACKER_IP The IP address of the tracker.
+     * @param port       The port the partial seeder serves on.
+     * @param LEECHER_IP The IP address of this leecher.
+     * @return true if the file is complete.
+     */
+    private boolean finish(Download download, String TRACKER_IP, int port, String LEECHER_IP) throws Exception {
+        int totalChunks = download.scheduler.getChunkCount();
+        boolean complete = download.scheduler.awaitCompletion();
+        for (ScheduledFuture<?> task : download.timers) {
+            task.cancel(false);
+        }
+        download.awaitChecks(TimeUnit.MINUTES.toMillis(1)); // Let checks in progress finish writing
+        download.output.close();
+        try {
+            Runtime.getRuntime().removeShutdownHook(download.shutdownHook);
+        } catch (IllegalStateException e) {
+            // Already shutting down; the hook does nothing once the file is closed
+        }
 
-        System.out.println("Starting parallel download of chunks...");
-        updateProgress(0, "Starting parallel download of chunks...");
+        if (!complete) {
+            int missing = totalChunks - download.progress.getCompleted();
+            Log.error("Download of " + download.fileName + " stopped with " + missing
+                    + " chunks missing. Run the download again to fetch only the missing chunks.");
+            download.progress.status("Download stopped with " + missing
+                    + " chunks missing. Run the download again to fetch only the missing chunks.");
+            return false;
+        }
 
-        for (int i = 0; i < totalChunks; i++) {
-            final int chunkNumber = i;
+        Log.info("File downloaded successfully: " + download.fileName);
+        download.progress.status("File downloaded successfully: " + download.fileName);
+        if (download.base != null && BASE_FILE == null) {
+            new File(download.base).delete(); // The earlier version moved aside is no longer needed
+        }
+        if (download.served) {
+            // Already serving; tell the tracker we now have every chunk
+            Seeder.register(download.shareKeys, TRACKER_IP, port, LEECHER_IP, false);
+        }
+        return true;
+    }
 
-            executor.submit(new Runnable() {
+    /**
+     * Starts serving target files while they are still being downloaded, on a
+     * thread of its own. Only chunks that have been verified and written are
+     * sent.
+     *
+     * @param downloads The downloads to serve, each with a manifest.
+     * @param port      The port to serve on.
+     * @return The running server, or null if the files cannot be served.
+     */
+    private static ChunkServer startPartialSeeder(java.util.List<Download> downloads, int port) {
+        java.util.List<ChunkFile> files = new ArrayList<>();
+        java.util.List<ChunkManifest> manifests = new ArrayList<>();
+        try {
+            for (Download download : downloads) {
+                files.add(ChunkFile.open(download.fileName, download.manifest.getChunkSize()));
+                manifests.add(download.manifest);
+            }
+            ChunkServer server = Seeder.createServer(files, manifests, port);
+            for (int i = 0; i < downloads.size(); i++) {
+                server.setAvailability(i, downloads.get(i).output);
+                if (downloads.get(i).checksums != null) {
+                    server.setChecksums(i, downloads.get(i).checksums);
+                }
+            }
+            new Thread(new Runnable() {
                 public void run() {
-                    String seeder = seeders.get(chunkNumber % seeders.size());
-                    String[] seederParts = seeder.split(":");
-                    String ip = seederParts[0];
-                    int port = Integer.parseInt(seederParts[1].trim());
-
-                    System.out.println("Downloading chunk " + chunkNumber + " from seeder: " + seeder);
-                    updateProgress((int) ((double) chunkNumber / totalChunks * 100),
-                            "Downloading chunk " + chunkNumber + " from seeder: " + seeder);
-                    chunks[chunkNumber] = downloadChunk(ip, port, chunkNumber);
-
-                    if (chunks[chunkNumber] == null || chunks[chunkNumber].length == 0) {
-                        System.err.println("Failed to download chunk " + chunkNumber + " from seeder: " + seeder);
-                        updateProgress((int) ((double) chunkNumber / totalChunks * 100),
-                                "Failed to download chunk " + chunkNumber + " from seeder: " + seeder);
-                    } else {
-                        System.out.println("Successfully downloaded chunk " + chunkNumber);
-                        updateProgress((int) ((double) (chunkNumber + 1) / totalChunks * 100),
-                                "Successfully downloaded chunk " + chunkNumber);
+                    try {
+                        server.run();
+                    } catch (IOException e) {
+                        Log.error("Seeder stopped: " + e.getMessage());
+                    } finally {
+                        for (ChunkFile file : files) {
+                            try {
+                                file.close();
+                            } catch (IOException ignored) {
+                                // Nothing more to do
+                            }
+                        }
                     }
                 }
-            });
+            }).start();
+            return server;
+        } catch (IOException e) {
+            Log.error("Cannot serve files while downloading: " + e.getMessage());
+            for (ChunkFile file : files) {
+                try {
+                    file.close();
+                } catch (IOException ignored) {
+                    // Nothing more to do
+                }
+            }
+            return null;
         }
+    }
 
-        // Shutdown the executor and wait for all threads to finish
-        executor.shutdown();
-        System.out.println("Waiting for all chunks to be downloaded...");
-        updateProgress(0, "Waiting for all chunks to be downloaded...");
-        executor.awaitTermination(1, TimeUnit.HOURS);
+    /**
+     * Picks the earlier version of a file to copy unchanged chunks from: the one
+     * named with -Dleecher.base, one moved aside by an earlier attempt at the
+     * update, or a finished file at the target path, which is moved aside now so
+     * the new version can be written in its place.
+     *
+     * @param target     The target file.
+     * @param remoteFile The new version as described by a seeder.
+     * @return The path of the earlier version, or null if there is none or the
+     *         seeder cannot say where its chunks are.
+     */
+    private static String deltaBase(String target, PeerConnection.RemoteFile remoteFile) {
+        if (remoteFile.manifest == null || remoteFile.checksums == null) {
+            return null;
+        }
+        if (BASE_FILE != null) {
+            return new File(BASE_FILE).isFile() ? BASE_FILE : null;
+        }
+        File moved = new File(target + BASE_SUFFIX);
+        if (moved.isFile()) {
+            return moved.getPath();
+        }
+        File current = new File(target);
+        if (current.isFile() && current.length() > 0 && !ChunkWriter.hasCheckpoint(target) && current.renameTo(moved)) {
+            Log.info("Moved earlier version of " + target + " to " + moved + " to update it in place.");
+            return moved.getPath();
+        }
+        return null;
+    }
 
-        // Validate all chunks before assembling the file
-        for (int i = 0; i < chunks.length; i++) {
-            if (chunks[i] == null || chunks[i].length == 0) {
-                System.err.println("Chunk " + i + " is null or empty. File may be incomplete or corrupted.");
-                updateProgress(100, "Chunk " + i + " is null or empty. File may be incomplete or corrupted.");
-                return;
+    /**
+     * Adds peers from a tracker response to the download, in random order so
+     * that load spreads across the swarm. Peers already taking part, this
+     * leecher itself, and any beyond MAX_PEERS active at once for the file are
+     * skipped. A peer beyond MAX_CONNECTIONS across the batch still joins, but
+     * its worker waits for another connection to close before it connects; the
+     * scheduler counts it as live meanwhile, so the file waits for it instead
+     * of being given up.
+     *
+     * @param download The download.
+     * @param entries  Peers in the format "IP:Port", or "IP:Port:p" if partial.
+     */
+    private void joinPeers(Download download, java.util.List<String> entries) {
+        java.util.List<String> shuffled = new ArrayList<>(entries);
+        Collections.shuffle(shuffled);
+        for (String entry : shuffled) {
+            String seeder = peerName(entry);
+            boolean partial = entry.trim().endsWith(":p");
+            synchronized (download.peers) {
+                if (seeder.equals(download.self) || download.peers.contains(seeder)
+                        || download.activePeers.get() >= MAX_PEERS) {
+                    continue;
+                }
+                download.peers.add(seeder);
+                download.activePeers.incrementAndGet();
             }
+
+            // A partial peer holds nothing until it reports its chunks
+            PieceScheduler.Peer peer = download.scheduler.addPeer(seeder, partial ? new BitSet() : null);
+            Metrics.gauge("leecher_peer_bytes_per_second", "Smoothed download rate, by peer", "peer", seeder,
+                    new LongSupplier() {
+                        public long getAsLong() {
+                            return download.scheduler.rate(peer);
+                        }
+                    });
+            download.executor.submit(new Runnable() {
+                public void run() {
+                    boolean admitted = false;
+                    try {
+                        download.connections.acquire(); // Other files of the batch may hold every slot
+                        admitted = true;
+                        if (!download.scheduler.isComplete()) {
+                            downloadFromPeer(download, seeder, peer, partial);
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        download.scheduler.peerFailed(peer); // Does nothing if the worker already handed it back
+                        download.activePeers.decrementAndGet();
+                        if (admitted) {
+                            download.connections.release();
+                        }
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * @param entry A peer from a tracker response: "IP:Port", optionally followed
+     *              by ":p".
+     * @return The peer as "IP:Port".
+     */
+    private static String peerName(String entry) {
+        String[] parts = entry.trim().split(":");
+        return parts[0] + ":" + parts[1].trim();
+    }
+
+    /**
+     * Downloads chunks from one seeder for as long as the scheduler has work for
+     * it. Chunks are fetched over a single persistent connection with as many
+     * requests in flight as the seeder's throughput warrants; if the seeder only
+     * speaks the one-shot protocol, chunks are fetched one connection at a time.
+     * If the seeder fails, the chunks it still owed go back to the scheduler. A
+     * partial seeder is asked for its bitfield every BITFIELD_REFRESH_MILLIS so
+     * new chunks become available from it as it gets them.
+     *
+     * @param download The download the seeder is taking part in.
+     * @param seeder   The seeder in the format "IP:Port".
+     * @param peer     The seeder's handle in the scheduler.
+     * @param partial  Whether the seeder is still downloading the file itself.
+     */
+    private void downloadFromPeer(Download download, String seeder, PieceScheduler.Peer peer, boolean partial) {
+        PieceScheduler scheduler = download.scheduler;
+        String[] seederParts = seeder.split(":");
+        String ip = seederParts[0];
+        int port = Integer.parseInt(seederParts[1].trim());
+        Metrics.Counter bytes = Metrics.counter("leecher_received_bytes_total", "Chunk bytes received, by peer",
+                "peer", seeder);
+
+        PeerConnection connection;
+        try {
+            connection = PeerConnection.open(ip, port);
+        } catch (IOException e) {
+            Log.error("Persistent session with " + seeder + " unavailable (" + e
+                    + "), falling back to one-shot requests.");
+            downloadOneShot(download, ip, port, seeder, peer, bytes);
+            return;
         }
 
-        System.out.println("All chunks downloaded successfully. Assembling file...");
-        updateProgress(100, "All chunks downloaded successfully. Assembling file...");
+        try (PeerConnection session = connection) {
+            // Open by content hash where possible, so a seeder with other content under
+            // the same name is not used; older seeders only know the file by name
+            String name = session.getVersion() >= 4 && download.manifest != null
+                    ? download.manifest.getContentHash() : download.fileName;
+            int fileId = session.openFile(name).fileId;
+            session.negotiateCompression(Protocol.DEFLATE);
+            int outstanding = 0; // Responses expected but not yet received
+            boolean bitfieldPending = false; // A bitfield request is in flight
+            long nextBitfield = 0; // When to ask a partial seeder what it has again
+
+            while (!scheduler.isComplete()) {
+                // Withdraw requests for chunks another seeder delivered first
+                for (int index : scheduler.takeCancellations(peer)) {
+                    session.sendCancel(fileId, index);
+                }
+
+                // Keep up with the chunks a partial seeder has gained
+                if (partial && !bitfieldPending && System.currentTimeMillis() >= nextBitfield) {
+                    if (session.sendBitfieldRequest(fileId)) {
+                        bitfieldPending = true;
+                        outstanding++;
+                    } else {
+                        partial = false; // Predates partial seeding, so it has everything
+                        BitSet all = new BitSet();
+                        all.set(0, scheduler.getChunkCount());
+                        scheduler.updateHave(peer, all);
+                    }
+                }
 
-        // Assemble the file from the downloaded chunks
-        try (FileOutputStream fos = new FileOutputStream(TARGET_FILE)) {
-            for (byte[] chunk : chunks) {
-                fos.write(chunk);
+                // Top up the pipeline to the depth the scheduler allows this seeder
+                int[] run;
+                while ((run = scheduler.next(peer, RANGE_CHUNKS)) != null) {
+                    session.sendRangeRequest(fileId, run[0], run[1]);
+                    outstanding += run[1];
+                }
+                if (outstanding == 0) {
+                    scheduler.awaitWork(100); // Nothing this seeder can fetch right now
+                    continue;
+                }
+
+                // A seeder that misses the adaptive deadline is treated as dead
+                session.setReadTimeout(scheduler.readTimeoutMillis());
+                PeerConnection.Frame frame = session.readFrame();
+                if (frame.hasIndex() && (frame.index < 0 || frame.index >= scheduler.getChunkCount())) {
+                    // Never requested, so it answers nothing still outstanding
+                    if (FAILURE_LOG.sample()) {
+                        FAILURE_LOG.error("Seeder " + seeder + " sent chunk " + frame.index + " out of range, dropped.");
+                    }
+                    continue;
+                }
+                if (frame.type == Protocol.CHUNK || frame.type == Protocol.COMPRESSED_CHUNK) {
+                    bytes.add(frame.payload.length);
+                    chunkReceived(download, frame.index, frame.payload, frame.type == Protocol.COMPRESSED_CHUNK,
+                            frame.rawLength, seeder, peer);
+                } else if (frame.type == Protocol.CANCELLED) {
+                    scheduler.cancelled(peer, frame.index);
+                } else if (frame.type == Protocol.MISSING) {
+                    scheduler.missing(peer, frame.index);
+                    partial = true;
+                } else if (frame.type == Protocol.AVAILABILITY) {
+                    scheduler.updateHave(peer, frame.bitfield());
+                    bitfieldPending = false;
+                    nextBitfield = System.currentTimeMillis() + BITFIELD_REFRESH_MILLIS;
+                } else {
+                    throw new IOException(frame.message());
+                }
+                outstanding--;
             }
+        } catch (IOException | InterruptedException e) {
+            Log.error("Seeder " + seeder + " failed: " + e.getMessage());
+        } finally {
+            scheduler.peerFailed(peer); // Hand back anything still owed
         }
+    }
+
+    /**
+     * Downloads chunks from a seeder that only speaks the one-shot protocol, one
+     * connection per chunk.
+     */
+    private void downloadOneShot(Download download, String ip, int port, String seeder, PieceScheduler.Peer peer,
+            Metrics.Counter bytes) {
+        PieceScheduler scheduler = download.scheduler;
+        int failures = 0; // Consecutive failed requests
+
+        try {
+            while (!scheduler.isComplete() && failures < MAX_ONE_SHOT_FAILURES) {
+                int[] run = scheduler.next(peer, 1);
+                if (run == null) {
+                    scheduler.awaitWork(100);
+                    continue;
+                }
 
-        System.out.println("File downloaded successfully: " + TARGET_FILE);
-        updateProgress(100, "File downloaded successfully: " + TARGET_FILE);
+                int chunkNumber = run[0];
+                if (CHUNK_LOG.sample()) {
+                    CHUNK_LOG.info("Downloading chunk " + chunkNumber + " from seeder: " + seeder);
+                }
+                byte[] chunk = downloadChunk(ip, port, chunkNumber, scheduler.readTimeoutMillis());
 
-        // Become a seeder for the downloaded file
-        System.out.println("Starting seeder to share the downloaded file...");
-        updateProgress(100, "Starting seeder to share the downloaded file...");
-        Seeder.main(new String[] { TARGET_FILE, TRACKER_IP, LEECHER_IP, LEECHER_IP_PORT });
+                if (chunk == null || chunk.length == 0) {
+                    if (FAILURE_LOG.sample()) {
+                        FAILURE_LOG.error("Failed to download chunk " + chunkNumber + " from seeder: " + seeder);
+                    }
+                    scheduler.failed(peer, chunkNumber);
+                    failures++;
+                    continue;
+                }
+                failures = 0;
+                bytes.add(chunk.length);
+                chunkReceived(download, chunkNumber, chunk, false, chunk.length, seeder, peer);
+            }
+        } catch (IOException | InterruptedException e) {
+            Log.error("Seeder " + seeder + " failed: " + e.getMessage());
+        } finally {
+            scheduler.peerFailed(peer);
+        }
     }
 
     /**
-     * Queries the tracker for seeders hosting the specified file.
+     * Hands a received chunk over to be verified and written. Verification runs
+     * on the verifier pool so the network thread can go straight back to
+     * reading; a chunk that fails it is fetched again from another seeder. A
+     * duplicate of a chunk that is already done, or already being checked, is
+     * dropped. A compressed chunk is inflated on the verifier pool too, and one
+     * that does not inflate is treated as corrupt.
      *
-     * @param fileHash   The hash of the file to query.
-     * @param TRACKER_IP The IP address of the tracker.
-     * @return A list of seeders in the format "IP:Port".
+     * @param compressed Whether the chunk arrived as a COMPRESSED_CHUNK.
+     * @param length     The length of the chunk once inflated.
      */
-    private static java.util.List<String> queryTracker(String fileHash, String TRACKER_IP) throws Exception {
-        try (DatagramSocket socket = new DatagramSocket()) {
-            String message = "QUERY|" + fileHash;
-            byte[] data = message.getBytes();
-            InetAddress address = InetAddress.getByName(TRACKER_IP);
-            socket.send(new DatagramPacket(data, data.length, address, TRACKER_PORT));
-
-            byte[] buffer = new byte[102400000];
-            DatagramPacket response = new DatagramPacket(buffer, buffer.length);
-            socket.receive(response);
-
-            // Extract the response data and trim any extra whitespace or null bytes
-            String responseData = new String(response.getData(), 0, response.getLength()).trim();
-
-            // Check if the response is empty or invalid
-            if (responseData.isEmpty() || responseData.equals("")) {
-                return Collections.emptyList(); // Return an empty list if no seeders are found
+    private void chunkReceived(Download download, int chunkNumber, byte[] received, boolean compressed, int length,
+            String seeder, PieceScheduler.Peer peer) throws IOException {
+        PieceScheduler scheduler = download.scheduler;
+        if (!scheduler.received(peer, chunkNumber, length)) {
+            return;
+        }
+        long arrived = System.nanoTime();
+
+        if (download.manifest == null && !compressed) {
+            writeChunk(download, chunkNumber, received, seeder, peer, arrived);
+            return;
+        }
+
+        download.checkStarted();
+        download.verifier.execute(new Runnable() {
+            public void run() {
+                try {
+                    check();
+                } finally {
+                    download.checkFinished();
+                }
             }
 
-            // Split the response into a list of seeders
-            return Arrays.asList(responseData.split(","));
+            private void check() {
+                byte[] chunk = received;
+                if (compressed) {
+                    CHUNKS_COMPRESSED.increment();
+                    try {
+                        chunk = CompressedChunks.inflate(received, length);
+                    } catch (IOException e) {
+                        chunk = null;
+                    }
+                }
+                if (chunk == null || (download.manifest != null && !download.manifest.verify(chunkNumber, chunk))) {
+                    CHUNKS_CORRUPT.increment();
+                    if (FAILURE_LOG.sample()) {
+                        FAILURE_LOG.error("Chunk " + chunkNumber + " from seeder " + seeder
+                                + " failed verification, fetching it again.");
+                    }
+                    scheduler.corrupt(peer, chunkNumber);
+                    return;
+                }
+                try {
+                    writeChunk(download, chunkNumber, chunk, seeder, peer, arrived);
+                } catch (IOException e) {
+                    Log.error("Failed to write chunk " + chunkNumber + ": " + e.getMessage());
+                }
+            }
+        });
+    }
+
+    /**
+     * Writes a received chunk to the file and marks it done. If the write fails
+     * the chunk goes back to the scheduler.
+     */
+    private void writeChunk(Download download, int chunkNumber, byte[] chunk, String seeder, PieceScheduler.Peer peer,
+            long arrived) throws IOException {
+        try {
+            download.output.write(chunkNumber, chunk);
+        } catch (IOException e) {
+            download.scheduler.writeFailed(chunkNumber);
+            throw e;
+        }
+        VERIFY_TIME.recordSince(arrived);
+        if (download.scheduler.verified(peer, chunkNumber)) {
+            chunkDownloaded(chunkNumber, seeder, download.progress);
         }
     }
 
+    /**
+     * Records a successfully downloaded chunk. It only counts towards progress
+     * here; the count is reported on the progress thread.
+     *
+     * @param chunkNumber The chunk that was downloaded.
+     * @param seeder      The seeder it came from.
+     * @param progress    The progress of the download.
+     */
+    private void chunkDownloaded(int chunkNumber, String seeder, DownloadProgress.Entry progress) {
+        progress.chunkDone();
+        CHUNKS_DONE.increment();
+        if (CHUNK_LOG.sample()) {
+            CHUNK_LOG.info("Successfully downloaded chunk " + chunkNumber + " from seeder: " + seeder);
+        }
+    }
+
+    /**
+     * @param name A file name or content hash.
+     * @return true if the name has the form of a content hash.
+     */
+    private static boolean isContentHash(String name) {
+        return name.matches("[0-9a-f]{" + ChunkManifest.DIGEST_LENGTH * 2 + "}");
+    }
+
+    /**
+     * Queries the tracker for a random sample of the seeders hosting the
+     * specified file.
+     *
+     * @param fileHash   The hash of the file to query.
+     * @param TRACKER_IP The IP address of the tracker, or a tracker cluster.
+     * @return A list of seeders in the format "IP:Port", or "IP:Port:p" if partial.
+     */
+    private static java.util.List<String> queryTracker(String fileHash, String TRACKER_IP) throws Exception {
+        return TrackerClient.forMembers(TRACKER_IP).query(fileHash, PEER_SAMPLE);
+    }
+
     /**
      * Downloads a specific chunk from a seeder.
      *
      * @param ip          The IP address of the seeder.
      * @param port        The port of the seeder.
      * @param chunkNumber The chunk number to download.
+     * @param timeout     The connect and read deadline in milliseconds.
      * @return The downloaded chunk as a byte array.
      */
-    private static byte[] downloadChunk(String ip, int port, int chunkNumber) {
-        try (Socket socket = new Socket(ip, port);
-                DataOutputStream out = new DataOutputStream(socket.getOutputStream());
-                DataInputStream in = new DataInputStream(socket.getInputStream())) {
+    private static byte[] downloadChunk(String ip, int port, int chunkNumber, int timeout) {
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(ip, port), timeout);
+            socket.setSoTimeout(timeout);
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            DataInputStream in = new DataInputStream(socket.getInputStream());
             out.writeInt(chunkNumber); // Request the specific chunk
             return in.readAllBytes(); // Read the chunk data
         } catch (IOException e) {
-            System.err.println("Error downloading chunk " + chunkNumber + " from " + ip + ":" + port);
-            e.printStackTrace();
+            if (FAILURE_LOG.sample()) {
+                FAILURE_LOG.error("Error downloading chunk " + chunkNumber + " from " + ip + ":" + port + ": " + e);
+            }
             return new byte[0];
         }
     }
 
     /**
-     * Retrieves the total number of chunks from a seeder.
+     * Retrieves the size and chunk layout of a file from a seeder, over a
+     * persistent session when the seeder supports it and with the one-shot
+     * protocol otherwise, along with its chunk manifest if the seeder has one.
+     * One-shot seeders only report a chunk count, so the size is returned as -1
+     * and the chunk size is assumed to be the default.
      *
+     * @param fileName   The name the file is shared under.
      * @param seederIP   The IP address of the seeder.
      * @param seederPort The port of the seeder.
-     * @return The total number of chunks.
+     * @param waitMillis The longest to wait for a seeder still building the
+     *                   manifest, or 0 not to wait.
+     * @return The file description, or null if the seeder could not be asked or
+     *         could not describe the file.
      */
-    private static int getTotalChunks(String seederIP, int seederPort) {
+    private static PeerConnection.RemoteFile describeFile(String fileName, String seederIP, int seederPort,
+            long waitMillis) {
+        PeerConnection connection = null;
+        try {
+            connection = PeerConnection.open(seederIP, seederPort);
+        } catch (IOException e) {
+            // Seeder only speaks the one-shot protocol
+        }
+        if (connection != null) {
+            try (PeerConnection session = connection) {
+                PeerConnection.RemoteFile file = session.openFile(fileName);
+                file.manifest = session.fetchManifest(file.fileId, waitMillis);
+                if (file.manifest != null) {
+                    file.checksums = session.fetchChecksums(file.fileId);
+                }
+                return file;
+            } catch (IOException e) {
+                Log.error("Seeder " + seederIP + ":" + seederPort + " cannot describe " + fileName + ": "
+                        + e.getMessage());
+                return null;
+            }
+        }
+
         try (Socket socket = new Socket(seederIP, seederPort);
                 DataOutputStream out = new DataOutputStream(socket.getOutputStream());
                 DataInputStream in = new DataInputStream(socket.getInputStream())) {
             out.writeInt(-1); // Special request for total chunks
-            return in.readInt(); // Read the total number of chunks
+            int totalChunks = in.readInt(); // Read the total number of chunks
+            return new PeerConnection.RemoteFile(-1, -1, ONE_SHOT_CHUNK_SIZE, totalChunks);
         } catch (IOException e) {
-            System.err.println("Failed to get total chunks from seeder: " + seederIP + ":" + seederPort);
-            e.printStackTrace();
-            return 0;
+            Log.error("Failed to get total chunks from seeder: " + seederIP + ":" + seederPort + ": " + e);
+            return null;
+        }
+    }
+
+    /**
+     * State shared by the workers of one download.
+     */
+    static class Download {
+        final String fileName; // Name or content hash the download was started with
+        final String self; // "IP:Port" this leecher serves on
+        final ChunkManifest manifest; // Chunk digests, or null if the seeder had none
+        final ChunkChecksums checksums; // Rolling chunk checksums, or null if the seeder had none
+        final Set<String> shareKeys; // Names the file is found under
+        final java.util.List<String> seeders; // Peers the tracker listed at the start
+        final String base; // Earlier version chunks were copied from, or null
+        final PieceScheduler scheduler; // Hands out chunks to the seeders
+        final ChunkWriter output; // The target file
+        final ExecutorService verifier; // Checks chunk digests off the network threads
+        final ExecutorService executor; // Runs one worker per seeder
+        final DownloadProgress.Entry progress; // Chunks on disk so far, and the status
+        final Semaphore connections; // Connection slots shared by the batch
+        final Set<String> peers = new HashSet<>(); // Seeders that have joined the download
+        final AtomicInteger activePeers = new AtomicInteger(); // Seeders with a worker running or waiting for a slot
+        final java.util.List<ScheduledFuture<?>> timers = new ArrayList<>(); // Periodic tasks, cancelled at the end
+        volatile boolean served; // The partial seeder is serving the file
+        Thread shutdownHook; // Checkpoints the file if the process exits first; set by start
+        private int checking; // Chunks on the verifier pool; guarded by this
+
+        Download(String fileName, String self, ChunkManifest manifest, ChunkChecksums checksums,
+                Set<String> shareKeys, java.util.List<String> seeders, String base, PieceScheduler scheduler,
+                ChunkWriter output, ExecutorService verifier, ExecutorService executor,
+                DownloadProgress.Entry progress, Semaphore connections) {
+            this.fileName = fileName;
+            this.self = self;
+            this.manifest = manifest;
+            this.checksums = checksums;
+            this.shareKeys = shareKeys;
+            this.seeders = seeders;
+            this.base = base;
+            this.scheduler = scheduler;
+            this.output = output;
+            this.verifier = verifier;
+            this.executor = executor;
+            this.progress = progress;
+            this.connections = connections;
+        }
+
+        /**
+         * Counts a chunk handed to the verifier pool.
+         */
+        synchronized void checkStarted() {
+            checking++;
+        }
+
+        /**
+         * Counts a chunk the verifier pool is done with.
+         */
+        synchronized void checkFinished() {
+            if (--checking == 0) {
+                notifyAll();
+            }
+        }
+
+        /**
+         * Waits for the chunks on the verifier pool to be checked and written,
+         * since the pool is shared with other downloads and cannot simply be
+         * shut down.
+         *
+         * @param timeoutMillis The longest to wait.
+         */
+        synchronized void awaitChecks(long timeoutMillis) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + timeoutMillis;
+            long left;
+            while (checking > 0 && (left = deadline - System.currentTimeMillis()) > 0) {
+                wait(left);
+            }
         }
     }
-}
+}
\ No newline at end of file
@@ -0,0 +1,190 @@
+import java.io.PrintStream;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Asynchronous console log. Callers only put a line on a bounded queue; a
+ * single daemon thread writes it to System.out or System.err, so network and
+ * worker threads never wait on the console lock. When the queue is full the
+ * line is dropped and counted instead of blocking the caller, and the count is
+ * reported with the next line written.
+ *
+ * Messages that would otherwise repeat for every chunk or packet go through a
+ * Sampler, which lets at most one line through per interval and notes how many
+ * it held back.
+ *
+ * Lines still queued when the JVM exits are written by a shutdown hook.
+ */
+public class Log {
+
+    // Constants
+    private static final int QUEUE_SIZE = 8192; // Lines waiting to be written before new ones are dropped
+    private static final long EXIT_WAIT_MILLIS = 1000; // Longest the shutdown hook waits for the queue to drain
+
+    private static final BlockingQueue<Line> lines = new ArrayBlockingQueue<>(QUEUE_SIZE); // Lines not yet written
+    private static final AtomicLong pending = new AtomicLong(); // Lines queued or being written
+    private static final LongAdder dropped = new LongAdder(); // Lines dropped since the last one written
+    private static final Metrics.Counter droppedTotal = Metrics.counter("log_dropped_lines_total",
+            "Log lines dropped because the log queue was full");
+
+    static {
+        Thread writer = new Thread(new Runnable() {
+            public void run() {
+                while (true) {
+                    Line line;
+                    try {
+                        line = lines.take();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    write(line);
+                    pending.decrementAndGet();
+                }
+            }
+        }, "log-writer");
+        writer.setDaemon(true);
+        writer.start();
+
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            public void run() {
+                long deadline = System.currentTimeMillis() + EXIT_WAIT_MILLIS;
+                while (pending.get() > 0 && System.currentTimeMillis() < deadline) {
+                    try {
+                        Thread.sleep(10);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        }, "log-flush"));
+    }
+
+    /**
+     * Logs a line to standard output.
+     *
+     * @param message The line.
+     */
+    public static void info(String message) {
+        enqueue(new Line(message, false));
+    }
+
+    /**
+     * Logs a line to standard error.
+     *
+     * @param message The line.
+     */
+    public static void error(String message) {
+        enqueue(new Line(message, true));
+    }
+
+    /**
+     * Creates a sampler for one kind of frequent message.
+     *
+     * @param intervalMillis The shortest time between two lines let through.
+     * @return The sampler.
+     */
+    public static Sampler sampler(long intervalMillis) {
+        return new Sampler(intervalMillis);
+    }
+
+    /**
+     * Queues a line, or drops it if the writer is too far behind.
+     */
+    private static void enqueue(Line line) {
+        pending.incrementAndGet();
+        if (!lines.offer(line)) {
+            pending.decrementAndGet();
+            dropped.increment();
+            droppedTotal.increment();
+        }
+    }
+
+    /**
+     * Writes a line, with a note of any dropped before it. Writer thread only.
+     */
+    private static void write(Line line) {
+        PrintStream out = line.error ? System.err : System.out; // Looked up each time, so redirection applies
+        long skipped = dropped.sumThenReset();
+        if (skipped > 0) {
+            System.err.println("(" + skipped + " log lines dropped)");
+        }
+        out.println(line.text);
+    }
+
+    /**
+     * A line waiting to be written.
+     */
+    static class Line {
+        final String text; // The message
+        final boolean error; // Whether it goes to standard error
+
+        Line(String text, boolean error) {
+            this.text = text;
+            this.error = error;
+        }
+    }
+
+    /**
+     * Lets through at most one line per interval for a message that would
+     * otherwise be logged on every chunk or packet. Check sample() before
+     * building the message, so a line that is held back costs nothing but the
+     * check:
+     *
+     * <pre>
+     * if (SAMPLER.sample()) {
+     *     SAMPLER.info("Sent chunk " + index);
+     * }
+     * </pre>
+     */
+    public static class Sampler {
+        private final long intervalNanos; // Shortest time between two lines
+        private final AtomicLong next; // System.nanoTime() from which the next line may go through
+        private final LongAdder skipped = new LongAdder(); // Lines held back since the last one let through
+
+        Sampler(long intervalMillis) {
+            this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+            this.next = new AtomicLong(System.nanoTime());
+        }
+
+        /**
+         * @return true if a line may be logged now; the caller then logs it with
+         *         info or error.
+         */
+        public boolean sample() {
+            long now = System.nanoTime();
+            long due = next.get();
+            if (now - due >= 0 && next.compareAndSet(due, now + intervalNanos)) {
+                return true;
+            }
+            skipped.increment();
+            return false;
+        }
+
+        /**
+         * Logs a line let through by sample() to standard output.
+         *
+         * @param message The line.
+         */
+        public void info(String message) {
+            Log.info(annotate(message));
+        }
+
+        /**
+         * Logs a line let through by sample() to standard error.
+         *
+         * @param message The line.
+         */
+        public void error(String message) {
+            Log.error(annotate(message));
+        }
+
+        /**
+         * Adds the number of lines held back since the last one.
+         */
+        private String annotate(String message) {
+            long count = skipped.sumThenReset();
+            return count == 0 ? message : message + " (and " + count + " more like it)";
+        }
+    }
+}
\ No newline at end of file
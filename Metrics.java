@@ -0,0 +1,397 @@
+import com.sun.net.httpserver.*;
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import javax.management.*;
+
+/**
+ * Process-wide registry of counters, gauges and latency histograms.
+ *
+ * Hot paths hold on to a Counter or LatencyHistogram they looked up once, so
+ * recording takes no lock and allocates nothing: counters are striped
+ * LongAdders and histograms are made of them. Gauges that mirror some existing
+ * state are read through a callback only when the metrics are collected.
+ *
+ * Series are named the Prometheus way. A family can be split by one label, such
+ * as the peer, into at most MAX_SERIES series; values beyond that are counted
+ * under the label value "other", so a large swarm cannot grow the registry
+ * without bound.
+ *
+ * The metrics are published as attributes of the JMX MBean
+ * "noplease:type=Metrics" and, if the metrics.port system property is set, as
+ * Prometheus text at http://127.0.0.1:&lt;port&gt;/metrics. Both are set up by
+ * start().
+ */
+public class Metrics {
+
+    // Constants
+    private static final int MAX_SERIES = 256; // Label values per family before they share one series
+    private static final String OTHER = "other"; // Label value of the shared overflow series
+    private static final double[] QUANTILES = { 0.5, 0.9, 0.99 }; // Percentiles reported for each histogram
+    private static final String OBJECT_NAME = "noplease:type=Metrics"; // Name of the JMX MBean
+
+    private static final ConcurrentSkipListMap<String, Family> families = new ConcurrentSkipListMap<>(); // By name
+    private static boolean started; // start() has run; guarded by Metrics.class
+
+    /**
+     * Returns a counter, creating it the first time.
+     *
+     * @param name The series name, ending in _total.
+     * @param help What the counter counts.
+     * @return The counter.
+     */
+    public static Counter counter(String name, String help) {
+        return counter(name, help, null, "");
+    }
+
+    /**
+     * Returns one labelled series of a counter, creating it the first time.
+     *
+     * @param name  The family name, ending in _total.
+     * @param help  What the counter counts.
+     * @param label The label name, or null for an unlabelled counter.
+     * @param value The label value.
+     * @return The counter.
+     */
+    public static Counter counter(String name, String help, String label, String value) {
+        return (Counter) family(name, help, "counter", label).get(value, new Counter());
+    }
+
+    /**
+     * Returns a gauge that is moved up and down by its users, creating it the
+     * first time.
+     *
+     * @param name The series name.
+     * @param help What the gauge measures.
+     * @return The gauge.
+     */
+    public static Counter gauge(String name, String help) {
+        return (Counter) family(name, help, "gauge", null).get("", new Counter());
+    }
+
+    /**
+     * Registers a gauge that is read from a callback, replacing any earlier one
+     * of the same name.
+     *
+     * @param name  The series name.
+     * @param help  What the gauge measures.
+     * @param value Reads the current value; called on the collecting thread.
+     */
+    public static void gauge(String name, String help, LongSupplier value) {
+        gauge(name, help, null, "", value);
+    }
+
+    /**
+     * Registers one labelled series of a gauge that is read from a callback,
+     * replacing any earlier one with the same label value.
+     *
+     * @param name       The family name.
+     * @param help       What the gauge measures.
+     * @param label      The label name, or null for an unlabelled gauge.
+     * @param labelValue The label value.
+     * @param value      Reads the current value; called on the collecting thread.
+     */
+    public static void gauge(String name, String help, String label, String labelValue, LongSupplier value) {
+        family(name, help, "gauge", label).put(labelValue, value);
+    }
+
+    /**
+     * Returns a latency histogram, creating it the first time.
+     *
+     * @param name The series name, ending in _seconds.
+     * @param help What the histogram times.
+     * @return The histogram.
+     */
+    public static LatencyHistogram histogram(String name, String help) {
+        return (LatencyHistogram) family(name, help, "summary", null).get("", new LatencyHistogram());
+    }
+
+    /**
+     * Publishes the metrics over JMX, and over HTTP if the metrics.port system
+     * property is set. Later calls do nothing.
+     */
+    public static synchronized void start() {
+        if (started) {
+            return;
+        }
+        started = true;
+
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new Bean(), new ObjectName(OBJECT_NAME));
+        } catch (JMException e) {
+            Log.error("Cannot publish metrics over JMX: " + e.getMessage());
+        }
+
+        int port = Integer.getInteger("metrics.port", 0);
+        if (port > 0) {
+            try {
+                serve(port);
+                Log.info("Metrics served on http://127.0.0.1:" + port + "/metrics");
+            } catch (IOException e) {
+                Log.error("Cannot serve metrics on port " + port + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Serves the metrics as Prometheus text on the loopback interface.
+     *
+     * @param port The TCP port.
+     * @throws IOException If the port cannot be bound.
+     */
+    static void serve(int port) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/metrics", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                byte[] body = prometheus().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            }
+        });
+
+        // The server's thread takes its daemon status from the thread that starts
+        // it, and must not keep the process alive
+        Thread starter = new Thread(new Runnable() {
+            public void run() {
+                server.start();
+            }
+        });
+        starter.setDaemon(true);
+        starter.start();
+        try {
+            starter.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return Every series in the Prometheus text exposition format.
+     */
+    public static String prometheus() {
+        StringBuilder text = new StringBuilder();
+        for (Family family : families.values()) {
+            text.append("# HELP ").append(family.name).append(' ').append(family.help).append('\n');
+            text.append("# TYPE ").append(family.name).append(' ').append(family.type).append('\n');
+            for (Map.Entry<String, Object> series : family.series.entrySet()) {
+                String labels = family.label == null ? "" : family.label + "=\"" + escape(series.getKey()) + "\"";
+                Object metric = series.getValue();
+                if (metric instanceof LatencyHistogram) {
+                    LatencyHistogram histogram = (LatencyHistogram) metric;
+                    String separator = labels.isEmpty() ? "" : ",";
+                    for (double quantile : QUANTILES) {
+                        line(text, family.name, labels + separator + "quantile=\"" + quantile + "\"",
+                                seconds(histogram.percentile(quantile)));
+                    }
+                    line(text, family.name + "_sum", labels, seconds(histogram.sum()));
+                    line(text, family.name + "_count", labels, String.valueOf(histogram.count()));
+                } else {
+                    line(text, family.name, labels, String.valueOf(value(metric)));
+                }
+            }
+        }
+        return text.toString();
+    }
+
+    /**
+     * Appends one sample line.
+     */
+    private static void line(StringBuilder text, String name, String labels, String value) {
+        text.append(name);
+        if (!labels.isEmpty()) {
+            text.append('{').append(labels).append('}');
+        }
+        text.append(' ').append(value).append('\n');
+    }
+
+    /**
+     * @return Every series as a flat map, the way JMX shows them: histograms as
+     *         their count, percentiles and maximum in seconds.
+     */
+    static Map<String, Object> snapshot() {
+        Map<String, Object> values = new LinkedHashMap<>();
+        for (Family family : families.values()) {
+            for (Map.Entry<String, Object> series : family.series.entrySet()) {
+                String name = family.label == null ? family.name
+                        : family.name + "[" + family.label + "=" + series.getKey() + "]";
+                Object metric = series.getValue();
+                if (metric instanceof LatencyHistogram) {
+                    LatencyHistogram histogram = (LatencyHistogram) metric;
+                    values.put(name + ".count", histogram.count());
+                    for (double quantile : QUANTILES) {
+                        values.put(name + ".p" + Math.round(quantile * 100), histogram.percentile(quantile) / 1e9);
+                    }
+                    values.put(name + ".max", histogram.max() / 1e9);
+                } else {
+                    values.put(name, value(metric));
+                }
+            }
+        }
+        return values;
+    }
+
+    /**
+     * @return The current value of a counter or gauge callback.
+     */
+    private static long value(Object metric) {
+        return metric instanceof Counter ? ((Counter) metric).get() : ((LongSupplier) metric).getAsLong();
+    }
+
+    /**
+     * @return Nanoseconds as seconds, in Prometheus notation.
+     */
+    private static String seconds(long nanos) {
+        return String.valueOf(nanos / 1e9);
+    }
+
+    /**
+     * @return A label value with backslashes, quotes and line breaks escaped.
+     */
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    /**
+     * Returns a family, creating it the first time.
+     *
+     * @throws IllegalArgumentException If the name is taken by another kind of
+     *                                  metric or label.
+     */
+    private static Family family(String name, String help, String type, String label) {
+        Family family = families.get(name);
+        if (family == null) {
+            family = new Family(name, help, type, label);
+            Family raced = families.putIfAbsent(name, family);
+            if (raced != null) {
+                family = raced;
+            }
+        }
+        if (!family.type.equals(type) || !Objects.equals(family.label, label)) {
+            throw new IllegalArgumentException("Metric " + name + " is already registered as a " + family.type
+                    + (family.label == null ? "" : " by " + family.label));
+        }
+        return family;
+    }
+
+    /**
+     * A counter, or a gauge moved by its users. Striped, so threads updating it
+     * at once do not contend.
+     */
+    public static class Counter {
+        private final LongAdder value = new LongAdder(); // The count
+
+        public void increment() {
+            value.increment();
+        }
+
+        public void decrement() {
+            value.decrement();
+        }
+
+        public void add(long amount) {
+            value.add(amount);
+        }
+
+        public long get() {
+            return value.sum();
+        }
+    }
+
+    /**
+     * The series of one metric name, by label value.
+     */
+    static class Family {
+        final String name; // Series name
+        final String help; // Description for the HELP line
+        final String type; // Prometheus type: counter, gauge or summary
+        final String label; // Label name, or null if the family has a single series
+        final ConcurrentSkipListMap<String, Object> series = new ConcurrentSkipListMap<>(); // Counter, LongSupplier
+                                                                                            // or LatencyHistogram
+
+        Family(String name, String help, String type, String label) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+            this.label = label;
+        }
+
+        /**
+         * Returns the series for a label value, adding a new one if there is none.
+         */
+        Object get(String value, Object created) {
+            Object existing = series.putIfAbsent(labelValue(value), created);
+            return existing == null ? created : existing;
+        }
+
+        /**
+         * Sets the series for a label value.
+         */
+        void put(String value, Object metric) {
+            series.put(labelValue(value), metric);
+        }
+
+        /**
+         * @return The value a series is stored under, "other" once the family is
+         *         full.
+         */
+        private String labelValue(String value) {
+            return series.size() >= MAX_SERIES && !series.containsKey(value) ? OTHER : value;
+        }
+    }
+
+    /**
+     * Publishes every series as a read-only JMX attribute. The attribute list is
+     * taken afresh each time, so series added later show up too.
+     */
+    static class Bean implements DynamicMBean {
+
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            Object value = snapshot().get(attribute);
+            if (value == null) {
+                throw new AttributeNotFoundException(attribute);
+            }
+            return value;
+        }
+
+        public AttributeList getAttributes(String[] attributes) {
+            Map<String, Object> values = snapshot();
+            AttributeList list = new AttributeList();
+            for (String attribute : attributes) {
+                if (values.containsKey(attribute)) {
+                    list.add(new Attribute(attribute, values.get(attribute)));
+                }
+            }
+            return list;
+        }
+
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException("Metrics are read-only: " + attribute.getName());
+        }
+
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        public Object invoke(String action, Object[] params, String[] signature) throws ReflectionException {
+            throw new ReflectionException(new NoSuchMethodException(action));
+        }
+
+        public MBeanInfo getMBeanInfo() {
+            List<MBeanAttributeInfo> attributes = new ArrayList<>();
+            for (Map.Entry<String, Object> entry : snapshot().entrySet()) {
+                attributes.add(new MBeanAttributeInfo(entry.getKey(), entry.getValue().getClass().getName(),
+                        entry.getKey(), true, false, false));
+            }
+            return new MBeanInfo(Metrics.class.getName(), "Counters, gauges and latency percentiles",
+                    attributes.toArray(new MBeanAttributeInfo[0]), null, null, null);
+        }
+    }
+}
\ No newline at end of file
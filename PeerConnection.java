@@ -0,0 +1,441 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.BitSet;
+
+/**
+ * A long-lived, pipelined connection from a leecher to one seeder.
+ *
+ * Requests are written with the send methods and their responses are read back,
+ * in the same order, with readFrame. A caller may send several requests before
+ * reading any response so the link never sits idle waiting on a round trip.
+ */
+public class PeerConnection implements Closeable {
+
+    private static final int CONNECT_TIMEOUT = 10000; // Deadline for connecting and the handshake, in ms
+    private static final long MANIFEST_POLL_MILLIS = 1000; // How often a seeder still indexing is asked again
+
+    private final Socket socket;
+    private final DataInputStream in;
+    private final DataOutputStream out;
+    private final String peer; // "IP:Port" of the seeder
+    private int version; // Protocol version negotiated with the seeder
+    private int chunkSize = -1; // Chunk size of the open file, or -1 before openFile
+    private int chunkCount = -1; // Chunk count of the open file, or -1 before openFile
+
+    private PeerConnection(Socket socket, String peer) throws IOException {
+        this.socket = socket;
+        this.peer = peer;
+        this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+    }
+
+    /**
+     * Opens a session with a seeder.
+     *
+     * @param ip   The IP address of the seeder.
+     * @param port The port of the seeder.
+     * @return The open connection.
+     * @throws IOException If the seeder cannot be reached or only speaks the
+     *                     one-shot protocol.
+     */
+    public static PeerConnection open(String ip, int port) throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(ip, port), CONNECT_TIMEOUT);
+            socket.setSoTimeout(CONNECT_TIMEOUT); // Until the caller sets its own deadline
+            socket.setTcpNoDelay(true); // Requests are small and must not wait for Nagle
+            PeerConnection connection = new PeerConnection(socket, ip + ":" + port);
+            connection.handshake();
+            return connection;
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Sends the session header and waits for the seeder to accept it. A one-shot
+     * seeder closes the connection instead, which surfaces as an EOFException.
+     */
+    private void handshake() throws IOException {
+        out.writeInt(Protocol.MAGIC);
+        out.writeInt(Protocol.VERSION);
+        out.flush();
+
+        Frame hello = readFrame();
+        if (hello.type != Protocol.HELLO) {
+            throw new IOException("Seeder " + peer + " rejected session: " + hello.message());
+        }
+        version = hello.data().readInt();
+    }
+
+    /**
+     * Resolves a file name to the seeder's file id and describes the file. Must
+     * be called before any requests are in flight.
+     *
+     * @param name The name the file is shared under.
+     * @return The file. Its id is -1 if the seeder predates multi-file support
+     *         and only serves its default file.
+     * @throws IOException If the seeder does not have the file or an I/O error
+     *                     occurs.
+     */
+    public RemoteFile openFile(String name) throws IOException {
+        if (version < 2) {
+            Protocol.writeHeader(out, Protocol.INFO, 0);
+            out.flush();
+
+            Frame frame = readFrame();
+            if (frame.type != Protocol.FILE_INFO) {
+                throw new IOException("Seeder " + peer + " cannot describe its file: " + frame.message());
+            }
+            DataInputStream info = frame.data();
+            return opened(new RemoteFile(-1, info.readLong(), info.readInt(), info.readInt()));
+        }
+
+        byte[] data = name.getBytes(StandardCharsets.UTF_8);
+        Protocol.writeHeader(out, Protocol.OPEN, data.length);
+        out.write(data);
+        out.flush();
+
+        Frame frame = readFrame();
+        if (frame.type != Protocol.OPENED) {
+            throw new IOException("Seeder " + peer + " cannot open " + name + ": " + frame.message());
+        }
+        DataInputStream info = frame.data();
+        return opened(new RemoteFile(info.readInt(), info.readLong(), info.readInt(), info.readInt()));
+    }
+
+    /**
+     * Records the layout of the file just opened, which bounds the frames the
+     * seeder may send from now on.
+     */
+    private RemoteFile opened(RemoteFile file) throws IOException {
+        if (file.chunkSize <= 0 || file.chunkCount < 0) {
+            throw new IOException("Seeder " + peer + " described an invalid file layout");
+        }
+        chunkSize = file.chunkSize;
+        chunkCount = file.chunkCount;
+        return file;
+    }
+
+    /**
+     * Fetches the chunk digests of a file. Must be called before any requests
+     * are in flight. A seeder still building the manifest is asked again every
+     * MANIFEST_POLL_MILLIS for up to the given time.
+     *
+     * @param fileId     The id from openFile, or -1 for the default file.
+     * @param waitMillis The longest to wait for a seeder still building the
+     *                   manifest, or 0 not to wait.
+     * @return The manifest, or null if the seeder predates manifests.
+     * @throws IOException If the seeder cannot provide the manifest in time or
+     *                     an I/O error occurs.
+     */
+    public ChunkManifest fetchManifest(int fileId, long waitMillis) throws IOException {
+        if (version < 4) {
+            return null;
+        }
+        long deadline = System.currentTimeMillis() + waitMillis;
+        Frame frame;
+        while (true) {
+            Protocol.writeHeader(out, Protocol.MANIFEST, 4);
+            out.writeInt(fileId);
+            out.flush();
+
+            frame = readFrame();
+            if (frame.type != Protocol.NOT_READY) {
+                break;
+            }
+            if (System.currentTimeMillis() + MANIFEST_POLL_MILLIS > deadline) {
+                throw new IOException("Seeder " + peer + " is still building the chunk manifest");
+            }
+            try {
+                Thread.sleep(MANIFEST_POLL_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the chunk manifest");
+            }
+        }
+        if (frame.type != Protocol.DIGESTS) {
+            throw new IOException("Seeder " + peer + " cannot send the chunk manifest: " + frame.message());
+        }
+        return ChunkManifest.decode(frame.payload);
+    }
+
+    /**
+     * Fetches the rolling chunk checksums of a file, for finding its chunks in
+     * an older copy. Must be called before any requests are in flight.
+     *
+     * @param fileId The id from openFile, or -1 for the default file.
+     * @return The checksums, or null if the seeder predates them or has none
+     *         for the file.
+     * @throws IOException If an I/O error occurs.
+     */
+    public ChunkChecksums fetchChecksums(int fileId) throws IOException {
+        if (version < 7) {
+            return null;
+        }
+        Protocol.writeHeader(out, Protocol.CHECKSUMS, 4);
+        out.writeInt(fileId);
+        out.flush();
+
+        Frame frame = readFrame();
+        if (frame.type == Protocol.ERROR) {
+            return null;
+        }
+        if (frame.type != Protocol.ROLLING_SUMS) {
+            throw new IOException("Seeder " + peer + " cannot send the chunk checksums: " + frame.message());
+        }
+        return ChunkChecksums.decode(frame.payload);
+    }
+
+    /**
+     * Offers to receive chunks compressed. Must be called before any requests
+     * are in flight; once accepted, any CHUNK may arrive as a COMPRESSED_CHUNK
+     * instead.
+     *
+     * @param codec The codec to offer, such as Protocol.DEFLATE.
+     * @return The codec the seeder accepted, or Protocol.NO_CODEC if it sends
+     *         chunks raw or predates compression.
+     * @throws IOException If an I/O error occurs.
+     */
+    public int negotiateCompression(int codec) throws IOException {
+        if (version < 6) {
+            return Protocol.NO_CODEC;
+        }
+        Protocol.writeHeader(out, Protocol.COMPRESS, 4);
+        out.writeInt(codec);
+        out.flush();
+
+        Frame frame = readFrame();
+        if (frame.type != Protocol.COMPRESSION) {
+            throw new IOException("Seeder " + peer + " cannot negotiate compression: " + frame.message());
+        }
+        return frame.data().readInt();
+    }
+
+    /**
+     * @return The protocol version negotiated with the seeder.
+     */
+    public int getVersion() {
+        return version;
+    }
+
+    /**
+     * Asks the seeder for a run of chunks. Answered by one CHUNK frame per chunk.
+     *
+     * @param fileId The id from openFile, or -1 for the default file.
+     * @param start  The first chunk number.
+     * @param count  The number of chunks.
+     * @throws IOException If an I/O error occurs.
+     */
+    public void sendRangeRequest(int fileId, int start, int count) throws IOException {
+        if (fileId < 0) {
+            Protocol.writeHeader(out, Protocol.RANGE, 8);
+        } else {
+            Protocol.writeHeader(out, Protocol.FILE_RANGE, 12);
+            out.writeInt(fileId);
+        }
+        out.writeInt(start);
+        out.writeInt(count);
+        out.flush();
+    }
+
+    /**
+     * Withdraws a chunk request that is no longer needed. Seeders before
+     * protocol version 3 do not support cancellation, so nothing is sent to them.
+     *
+     * @param fileId The id from openFile, or -1 for the default file.
+     * @param index  The chunk number.
+     * @return true if the cancellation was sent.
+     * @throws IOException If an I/O error occurs.
+     */
+    public boolean sendCancel(int fileId, int index) throws IOException {
+        if (version < 3) {
+            return false;
+        }
+        Protocol.writeHeader(out, Protocol.CANCEL, 8);
+        out.writeInt(fileId);
+        out.writeInt(index);
+        out.flush();
+        return true;
+    }
+
+    /**
+     * Asks the seeder which chunks of a file it has. Answered by an AVAILABILITY
+     * frame. Seeders before protocol version 5 always have the whole file, so
+     * nothing is sent to them.
+     *
+     * @param fileId The id from openFile, or -1 for the default file.
+     * @return true if the request was sent.
+     * @throws IOException If an I/O error occurs.
+     */
+    public boolean sendBitfieldRequest(int fileId) throws IOException {
+        if (version < 5) {
+            return false;
+        }
+        Protocol.writeHeader(out, Protocol.BITFIELD, 4);
+        out.writeInt(fileId);
+        out.flush();
+        return true;
+    }
+
+    /**
+     * Sets how long readFrame may block before failing.
+     *
+     * @param millis The timeout in milliseconds, or 0 to wait forever.
+     * @throws IOException If the socket is closed.
+     */
+    public void setReadTimeout(int millis) throws IOException {
+        socket.setSoTimeout(millis);
+    }
+
+    /**
+     * Reads the next response frame. A frame larger than its type can
+     * legitimately be for the open file is rejected before anything is
+     * allocated for it, so a misbehaving peer cannot exhaust memory.
+     *
+     * @return The frame.
+     * @throws IOException If an I/O error occurs, the frame is too large, or
+     *                     the seeder closed the connection.
+     */
+    public Frame readFrame() throws IOException {
+        int length = in.readInt();
+        if (length < 1) {
+            throw new IOException("Invalid frame length " + length + " from " + peer);
+        }
+        byte type = in.readByte();
+        int index = -1;
+        int rawLength = -1;
+        if (hasIndex(type)) {
+            // Split off the chunk number so the payload is exactly the chunk data
+            index = in.readInt();
+            length -= 4;
+        }
+        if (type == Protocol.COMPRESSED_CHUNK) {
+            rawLength = in.readInt();
+            length -= 4;
+        }
+        if (length < 1 || length - 1 > maxPayload(type)) {
+            throw new IOException("Invalid frame length from " + peer);
+        }
+        if (type == Protocol.COMPRESSED_CHUNK && (rawLength < 0 || rawLength > chunkSize)) {
+            throw new IOException("Invalid chunk length " + rawLength + " from " + peer);
+        }
+        byte[] payload = new byte[length - 1];
+        in.readFully(payload);
+        if (type == Protocol.CHUNK) {
+            rawLength = payload.length;
+        }
+        return new Frame(type, index, rawLength, payload);
+    }
+
+    /**
+     * @return true if frames of a type carry a chunk number.
+     */
+    private static boolean hasIndex(byte type) {
+        return type == Protocol.CHUNK || type == Protocol.CANCELLED || type == Protocol.MISSING
+                || type == Protocol.COMPRESSED_CHUNK;
+    }
+
+    /**
+     * @return The largest payload a frame of a type can have for the open file,
+     *         excluding any chunk number and raw length already split off.
+     */
+    private long maxPayload(byte type) {
+        if (chunkCount < 0) {
+            return Protocol.MAX_CONTROL_FRAME; // No file open, so only small answers are expected
+        }
+        switch (type) {
+            case Protocol.CHUNK:
+            case Protocol.COMPRESSED_CHUNK:
+                return chunkSize;
+            case Protocol.DIGESTS:
+                return 16 + (long) chunkCount * ChunkManifest.DIGEST_LENGTH;
+            case Protocol.ROLLING_SUMS:
+                return 8 + (long) chunkCount * 8;
+            case Protocol.AVAILABILITY:
+                return 4 + (chunkCount + 7) / 8;
+            default:
+                return Protocol.MAX_CONTROL_FRAME;
+        }
+    }
+
+    /**
+     * @return The "IP:Port" of the seeder.
+     */
+    public String getPeer() {
+        return peer;
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+
+    /**
+     * A file as described by a seeder.
+     */
+    static class RemoteFile {
+        final int fileId; // Seeder's id for the file, or -1 for its default file
+        final long size; // File size in bytes
+        final int chunkSize; // Size of every chunk except possibly the last
+        final int chunkCount; // Number of chunks
+        ChunkManifest manifest; // Chunk digests, if fetched with fetchManifest
+        ChunkChecksums checksums; // Rolling chunk checksums, if fetched with fetchChecksums
+
+        RemoteFile(int fileId, long size, int chunkSize, int chunkCount) {
+            this.fileId = fileId;
+            this.size = size;
+            this.chunkSize = chunkSize;
+            this.chunkCount = chunkCount;
+        }
+    }
+
+    /**
+     * A response frame read from a seeder.
+     */
+    static class Frame {
+        final byte type; // Frame type, one of the Protocol response constants
+        final int index; // Chunk number for CHUNK, COMPRESSED_CHUNK, CANCELLED and MISSING frames, otherwise -1
+        final int rawLength; // Chunk length for CHUNK and COMPRESSED_CHUNK frames, otherwise -1
+        final byte[] payload; // Frame payload (the chunk data, compressed for COMPRESSED_CHUNK frames)
+
+        Frame(byte type, int index, int rawLength, byte[] payload) {
+            this.type = type;
+            this.index = index;
+            this.rawLength = rawLength;
+            this.payload = payload;
+        }
+
+        /**
+         * @return true if the frame carries a chunk number.
+         */
+        boolean hasIndex() {
+            return PeerConnection.hasIndex(type);
+        }
+
+        /**
+         * @return A data stream over the payload.
+         */
+        DataInputStream data() {
+            return new DataInputStream(new ByteArrayInputStream(payload));
+        }
+
+        /**
+         * @return The chunks listed in an AVAILABILITY frame.
+         */
+        BitSet bitfield() {
+            return BitSet.valueOf(ByteBuffer.wrap(payload, 4, payload.length - 4));
+        }
+
+        /**
+         * @return The payload of an ERROR frame as text.
+         */
+        String message() {
+            return type == Protocol.ERROR ? new String(payload, StandardCharsets.UTF_8)
+                    : "unexpected frame type " + type;
+        }
+    }
+}
\ No newline at end of file
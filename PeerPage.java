@@ -0,0 +1,172 @@
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * One datagram of a binary QUERY response. A tracker answers
+ * "QUERY|fileHash|count" with a random sample of at most count peers, split
+ * into pages that each fit in a single unfragmented datagram:
+ *
+ * <pre>
+ *   byte  MAGIC
+ *   byte  page          (0-based)
+ *   byte  pages
+ *   int   swarmSize     (peers registered for the file)
+ *   short full          then that many IPv4 peers: 4-byte address, 2-byte port
+ *   short partial       then that many IPv4 peers still downloading, likewise
+ *   short other         then that many peers by name: byte flags (1 = partial),
+ *                       byte length, UTF-8 host, 2-byte port
+ * </pre>
+ *
+ * MAGIC is never the first byte of a text response, so a client can tell a
+ * binary answer from an old tracker's comma-separated "IP:Port" list.
+ */
+public class PeerPage {
+
+    public static final byte MAGIC = (byte) 0xB7; // First byte of every page; not ASCII
+    public static final int MAX_SIZE = 1200; // Bytes per page; fits the smallest common path MTU
+    public static final int MAX_PAGES = 255; // Pages per response; the page fields are one byte
+    private static final int HEADER = 13; // Fixed part of a page, with three empty sections
+
+    final int page; // This page's number
+    final int pages; // Pages in the response
+    final int swarmSize; // Peers registered for the file
+    final List<String> peers; // Peers on this page as "IP:Port" or "IP:Port:p"
+
+    private PeerPage(int page, int pages, int swarmSize, List<String> peers) {
+        this.page = page;
+        this.pages = pages;
+        this.swarmSize = swarmSize;
+        this.peers = peers;
+    }
+
+    /**
+     * Splits peers into pages.
+     *
+     * @param peers     The peers to send.
+     * @param swarmSize The number of peers registered for the file.
+     * @return One buffer per page, ready to send.
+     */
+    public static List<ByteBuffer> encode(List<PeerRegistry.PeerInfo> peers, int swarmSize) {
+        // Fill pages greedily, keeping track of how many bytes each would take
+        List<List<PeerRegistry.PeerInfo>> split = new ArrayList<>();
+        List<PeerRegistry.PeerInfo> current = new ArrayList<>();
+        int size = HEADER;
+        for (PeerRegistry.PeerInfo peer : peers) {
+            int entry = entrySize(peer);
+            if (entry < 0) {
+                continue; // Host name too long to encode
+            }
+            if (size + entry > MAX_SIZE) {
+                if (split.size() == MAX_PAGES - 1) {
+                    break;
+                }
+                split.add(current);
+                current = new ArrayList<>();
+                size = HEADER;
+            }
+            current.add(peer);
+            size += entry;
+        }
+        split.add(current);
+
+        List<ByteBuffer> pages = new ArrayList<>(split.size());
+        for (int i = 0; i < split.size(); i++) {
+            ByteBuffer buffer = ByteBuffer.allocate(MAX_SIZE);
+            buffer.put(MAGIC).put((byte) i).put((byte) split.size()).putInt(swarmSize);
+            putAddresses(buffer, split.get(i), false);
+            putAddresses(buffer, split.get(i), true);
+            putNames(buffer, split.get(i));
+            buffer.flip();
+            pages.add(buffer);
+        }
+        return pages;
+    }
+
+    /**
+     * Reads a page.
+     *
+     * @param data   The datagram.
+     * @param length The number of bytes received.
+     * @return The page, or null if the data is not a binary page.
+     */
+    public static PeerPage decode(byte[] data, int length) {
+        if (length < HEADER || data[0] != MAGIC) {
+            return null;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(data, 0, length);
+        try {
+            buffer.get();
+            int page = buffer.get() & 0xFF;
+            int pages = buffer.get() & 0xFF;
+            int swarmSize = buffer.getInt();
+            List<String> peers = new ArrayList<>();
+            for (int section = 0; section < 2; section++) {
+                int count = buffer.getShort() & 0xFFFF;
+                for (int i = 0; i < count; i++) {
+                    String ip = (buffer.get() & 0xFF) + "." + (buffer.get() & 0xFF) + "." + (buffer.get() & 0xFF) + "."
+                            + (buffer.get() & 0xFF);
+                    int port = buffer.getShort() & 0xFFFF;
+                    peers.add(ip + ":" + port + (section == 1 ? ":p" : ""));
+                }
+            }
+            int count = buffer.getShort() & 0xFFFF;
+            for (int i = 0; i < count; i++) {
+                boolean partial = (buffer.get() & 1) != 0;
+                byte[] host = new byte[buffer.get() & 0xFF];
+                buffer.get(host);
+                int port = buffer.getShort() & 0xFFFF;
+                peers.add(new String(host, StandardCharsets.UTF_8) + ":" + port + (partial ? ":p" : ""));
+            }
+            return new PeerPage(page, pages, swarmSize, peers);
+        } catch (BufferUnderflowException e) {
+            return null; // Truncated
+        }
+    }
+
+    /**
+     * @return The bytes a peer takes on a page, or -1 if it cannot be encoded.
+     */
+    private static int entrySize(PeerRegistry.PeerInfo peer) {
+        if (peer.address != null) {
+            return 6;
+        }
+        int length = peer.ip.getBytes(StandardCharsets.UTF_8).length;
+        return length <= 255 ? 4 + length : -1;
+    }
+
+    /**
+     * Writes the section of IPv4 peers that are, or are not, partial.
+     */
+    private static void putAddresses(ByteBuffer buffer, List<PeerRegistry.PeerInfo> peers, boolean partial) {
+        int countAt = buffer.position();
+        buffer.putShort((short) 0);
+        int count = 0;
+        for (PeerRegistry.PeerInfo peer : peers) {
+            if (peer.address != null && peer.partial == partial) {
+                buffer.put(peer.address).putShort((short) peer.port);
+                count++;
+            }
+        }
+        buffer.putShort(countAt, (short) count);
+    }
+
+    /**
+     * Writes the section of peers known by host name.
+     */
+    private static void putNames(ByteBuffer buffer, List<PeerRegistry.PeerInfo> peers) {
+        int countAt = buffer.position();
+        buffer.putShort((short) 0);
+        int count = 0;
+        for (PeerRegistry.PeerInfo peer : peers) {
+            if (peer.address == null) {
+                byte[] host = peer.ip.getBytes(StandardCharsets.UTF_8);
+                buffer.put((byte) (peer.partial ? 1 : 0)).put((byte) host.length).put(host)
+                        .putShort((short) peer.port);
+                count++;
+            }
+        }
+        buffer.putShort(countAt, (short) count);
+    }
+}
\ No newline at end of file
@@ -0,0 +1,471 @@
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The peers known to the tracker, indexed by the file they share.
+ *
+ * Each file hash maps to its own set of peers, so a query only touches the
+ * peers of that file, and a random sample costs only as much as the peers
+ * drawn. Expiry runs off a hashed timing wheel: every peer sits in
+ * the slot of the second it would time out, and each tick only looks at the
+ * peers in one slot. A heartbeat just moves the peer's last-seen time forward;
+ * when the wheel reaches the peer, it is put back at its new deadline instead
+ * of being removed. Registering, refreshing and querying therefore never scan
+ * the whole registry.
+ *
+ * Registrations are also indexed by peer, so a seeder sharing many files can
+ * refresh all of them with one heartbeat. Such a heartbeat only keeps alive
+ * registrations the peer has listed explicitly within the confirmation window,
+ * so a file the peer no longer shares still times out.
+ *
+ * Safe for concurrent use. Each file's peers have their own lock, so threads
+ * working on different files do not contend; the wheel has a separate lock
+ * that is only held to add or take out peers, and so does each peer's set of
+ * registrations. A swarm lock may be held while taking the wheel lock or a
+ * peer's lock, never the other way round.
+ */
+public class PeerRegistry {
+
+    private static final long TICK_MILLIS = 1000; // Time covered by one slot of the wheel
+
+    private final long timeout; // How long a peer stays without a heartbeat, in ms
+    private final ConcurrentHashMap<String, Swarm> swarms = new ConcurrentHashMap<>(); // fileHash -> its peers
+    private final ConcurrentHashMap<String, PeerFiles> files = new ConcurrentHashMap<>(); // ip:port -> its files
+    private final ArrayDeque<PeerInfo>[] wheel; // Peers by the tick they time out in, modulo the wheel size
+    private long currentTick; // Last tick the wheel was advanced to; guarded by wheel
+    private final AtomicInteger size = new AtomicInteger(); // Registrations across all files
+
+    /**
+     * Creates an empty registry.
+     *
+     * @param timeout How long a peer stays registered without a heartbeat, in ms.
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    public PeerRegistry(long timeout) {
+        this.timeout = timeout;
+        // One lap of the wheel spans more than the timeout, so a slot never holds
+        // peers due on different laps
+        int slots = (int) (timeout / TICK_MILLIS) + 2;
+        this.wheel = new ArrayDeque[slots];
+        for (int i = 0; i < slots; i++) {
+            wheel[i] = new ArrayDeque<>();
+        }
+        this.currentTick = System.currentTimeMillis() / TICK_MILLIS;
+    }
+
+    /**
+     * Registers a peer for a file, or refreshes it if it is already registered.
+     *
+     * @param fileHash The name or content hash of the file.
+     * @param ip       The IP address of the peer.
+     * @param port     The port of the peer.
+     * @param partial  Whether the peer is still downloading the file.
+     * @return true if the peer was not registered for the file before.
+     */
+    public boolean register(String fileHash, String ip, int port, boolean partial) {
+        return register(fileHash, ip, port, partial, System.currentTimeMillis());
+    }
+
+    /**
+     * Registers a peer for a file as last seen at a given time, for restoring
+     * saved state.
+     *
+     * @param fileHash The name or content hash of the file.
+     * @param ip       The IP address of the peer.
+     * @param port     The port of the peer.
+     * @param partial  Whether the peer is still downloading the file.
+     * @param lastSeen When the peer was last heard from.
+     * @return true if the peer was not registered for the file before.
+     */
+    public boolean register(String fileHash, String ip, int port, boolean partial, long lastSeen) {
+        String address = ip + ":" + port;
+        while (true) {
+            Swarm swarm = swarms.get(fileHash);
+            if (swarm == null) {
+                Swarm created = new Swarm();
+                swarm = swarms.putIfAbsent(fileHash, created);
+                if (swarm == null) {
+                    swarm = created;
+                }
+            }
+            synchronized (swarm) {
+                if (swarm.removed) {
+                    continue; // Emptied and dropped meanwhile; start a new one
+                }
+                PeerInfo peer = swarm.peers.get(address);
+                if (peer != null) {
+                    // Already on the wheel; it picks up the new deadline when it gets there
+                    peer.partial = partial;
+                    peer.lastSeen = lastSeen;
+                    peer.confirmed = lastSeen;
+                    return false;
+                }
+                peer = new PeerInfo(ip, port, fileHash, partial);
+                peer.lastSeen = lastSeen;
+                peer.confirmed = lastSeen;
+                swarm.add(address, peer);
+                addToPeer(address, peer);
+                schedule(peer);
+                size.incrementAndGet();
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Records a heartbeat from a peer.
+     *
+     * @param fileHash The name or content hash of the file.
+     * @param ip       The IP address of the peer.
+     * @param port     The port of the peer.
+     * @return false if the peer is not registered for the file.
+     */
+    public boolean refresh(String fileHash, String ip, int port) {
+        Swarm swarm = swarms.get(fileHash);
+        if (swarm == null) {
+            return false;
+        }
+        synchronized (swarm) {
+            PeerInfo peer = swarm.peers.get(ip + ":" + port);
+            if (peer == null) {
+                return false;
+            }
+            peer.lastSeen = System.currentTimeMillis();
+            peer.confirmed = peer.lastSeen;
+            return true;
+        }
+    }
+
+    /**
+     * Records a heartbeat from a peer for every file it is registered for and
+     * has listed within the confirmation window.
+     *
+     * @param ip            The IP address of the peer.
+     * @param port          The port of the peer.
+     * @param confirmWindow How recently a file must have been listed, in ms.
+     * @return The files refreshed.
+     */
+    public List<String> refreshAll(String ip, int port, long confirmWindow) {
+        String address = ip + ":" + port;
+        PeerFiles peerFiles = files.get(address);
+        if (peerFiles == null) {
+            return Collections.emptyList();
+        }
+        List<PeerInfo> registrations;
+        synchronized (peerFiles) {
+            registrations = new ArrayList<>(peerFiles.registrations);
+        }
+
+        long now = System.currentTimeMillis();
+        List<String> refreshed = new ArrayList<>(registrations.size());
+        for (PeerInfo peer : registrations) {
+            Swarm swarm = swarms.get(peer.fileHash);
+            if (swarm == null) {
+                continue; // Expired meanwhile
+            }
+            synchronized (swarm) {
+                if (swarm.peers.get(address) == peer && now - peer.confirmed <= confirmWindow) {
+                    peer.lastSeen = now;
+                    refreshed.add(peer.fileHash);
+                }
+            }
+        }
+        return refreshed;
+    }
+
+    /**
+     * @return Every registration, for saving the registry.
+     */
+    public List<PeerInfo> all() {
+        List<PeerInfo> all = new ArrayList<>(size.get());
+        for (Swarm swarm : swarms.values()) {
+            synchronized (swarm) {
+                for (PeerInfo peer : swarm.list) {
+                    all.add(peer.copy());
+                }
+            }
+        }
+        return all;
+    }
+
+    /**
+     * @param fileHash The name or content hash of the file.
+     * @return The peers sharing the file.
+     */
+    public List<PeerInfo> query(String fileHash) {
+        Swarm swarm = swarms.get(fileHash);
+        if (swarm == null) {
+            return Collections.emptyList();
+        }
+        synchronized (swarm) {
+            return new ArrayList<>(swarm.list);
+        }
+    }
+
+    /**
+     * Picks peers of a file uniformly at random, without repeats.
+     *
+     * @param fileHash The name or content hash of the file.
+     * @param count    The most peers to pick.
+     * @return The peers picked, in random order.
+     */
+    public List<PeerInfo> sample(String fileHash, int count) {
+        Swarm swarm = swarms.get(fileHash);
+        if (swarm == null || count <= 0) {
+            return Collections.emptyList();
+        }
+        Random random = ThreadLocalRandom.current();
+        synchronized (swarm) {
+            int size = swarm.list.size();
+            List<PeerInfo> picked = new ArrayList<>(Math.min(count, size));
+            if (count >= size) {
+                picked.addAll(swarm.list);
+                Collections.shuffle(picked, random);
+                return picked;
+            }
+
+            // Floyd's algorithm: count distinct indexes in O(count)
+            Set<Integer> chosen = new HashSet<>();
+            for (int j = size - count; j < size; j++) {
+                int index = random.nextInt(j + 1);
+                if (!chosen.add(index)) {
+                    chosen.add(j);
+                    index = j;
+                }
+                picked.add(swarm.list.get(index));
+            }
+            Collections.shuffle(picked, random);
+            return picked;
+        }
+    }
+
+    /**
+     * @param fileHash The name or content hash of the file.
+     * @return The number of peers sharing the file.
+     */
+    public int swarmSize(String fileHash) {
+        Swarm swarm = swarms.get(fileHash);
+        if (swarm == null) {
+            return 0;
+        }
+        synchronized (swarm) {
+            return swarm.list.size();
+        }
+    }
+
+    /**
+     * Advances the wheel to the current time, removing peers whose heartbeats
+     * stopped and moving the rest to their new deadlines.
+     *
+     * @return The peers removed.
+     */
+    public List<PeerInfo> expire() {
+        long now = System.currentTimeMillis();
+        long nowTick = now / TICK_MILLIS;
+
+        // Take the due peers off the wheel, then settle each under its swarm's lock
+        List<PeerInfo> due = new ArrayList<>();
+        synchronized (wheel) {
+            while (currentTick < nowTick) {
+                currentTick++;
+                ArrayDeque<PeerInfo> slot = wheel[(int) (currentTick % wheel.length)];
+                due.addAll(slot);
+                slot.clear();
+            }
+        }
+
+        List<PeerInfo> expired = new ArrayList<>();
+        for (PeerInfo peer : due) {
+            Swarm swarm = swarms.get(peer.fileHash);
+            synchronized (swarm) {
+                if (now - peer.lastSeen > timeout) {
+                    swarm.remove(peer.ip + ":" + peer.port, peer);
+                    removeFromPeer(peer.ip + ":" + peer.port, peer);
+                    if (swarm.peers.isEmpty()) {
+                        swarm.removed = true;
+                        swarms.remove(peer.fileHash);
+                    }
+                    size.decrementAndGet();
+                    expired.add(peer);
+                } else {
+                    schedule(peer);
+                }
+            }
+        }
+        return expired;
+    }
+
+    /**
+     * @return The number of registrations across all files.
+     */
+    public int size() {
+        return size.get();
+    }
+
+    /**
+     * Puts a peer in the slot of the tick its current deadline falls in, or the
+     * next tick if that has already passed.
+     */
+    private void schedule(PeerInfo peer) {
+        synchronized (wheel) {
+            long deadline = Math.max((peer.lastSeen + timeout) / TICK_MILLIS, currentTick + 1);
+            wheel[(int) (deadline % wheel.length)].add(peer);
+        }
+    }
+
+    /**
+     * Adds a registration to its peer's set. Called under the swarm's lock.
+     */
+    private void addToPeer(String address, PeerInfo peer) {
+        while (true) {
+            PeerFiles peerFiles = files.get(address);
+            if (peerFiles == null) {
+                PeerFiles created = new PeerFiles();
+                peerFiles = files.putIfAbsent(address, created);
+                if (peerFiles == null) {
+                    peerFiles = created;
+                }
+            }
+            synchronized (peerFiles) {
+                if (!peerFiles.removed) {
+                    peerFiles.registrations.add(peer);
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Drops a registration from its peer's set. Called under the swarm's lock.
+     */
+    private void removeFromPeer(String address, PeerInfo peer) {
+        PeerFiles peerFiles = files.get(address);
+        synchronized (peerFiles) {
+            peerFiles.registrations.remove(peer);
+            if (peerFiles.registrations.isEmpty()) {
+                peerFiles.removed = true;
+                files.remove(address);
+            }
+        }
+    }
+
+    /**
+     * The registrations of one peer. Emptied sets are dropped and marked like
+     * swarms are.
+     */
+    private static class PeerFiles {
+        final Set<PeerInfo> registrations = new HashSet<>(); // One per file the peer shares
+        boolean removed; // No longer in the index
+    }
+
+    /**
+     * The peers of one file. A swarm that has been emptied and dropped from the
+     * index is marked removed, so a thread that still holds it starts over.
+     */
+    private static class Swarm {
+        final Map<String, PeerInfo> peers = new HashMap<>(); // ip:port -> peer
+        final ArrayList<PeerInfo> list = new ArrayList<>(); // The same peers, for sampling by index
+        boolean removed; // No longer in the index
+
+        void add(String address, PeerInfo peer) {
+            peer.slot = list.size();
+            list.add(peer);
+            peers.put(address, peer);
+        }
+
+        /**
+         * Removes a peer, moving the last one into its slot in the list.
+         */
+        void remove(String address, PeerInfo peer) {
+            peers.remove(address);
+            PeerInfo last = list.remove(list.size() - 1);
+            if (last != peer) {
+                list.set(peer.slot, last);
+                last.slot = peer.slot;
+            }
+        }
+    }
+
+    /**
+     * Represents information about a peer (seeder).
+     */
+    static class PeerInfo {
+        String ip; // IP address of the peer
+        int port; // Port of the peer
+        String fileHash; // File hash served by the peer
+        boolean partial; // Peer is still downloading and only has some chunks
+        long lastSeen; // Timestamp of the last update
+        long confirmed; // When the peer last named this file in a message
+        final byte[] address; // The IP as 4 bytes if it is an IPv4 literal, otherwise null
+        int slot; // Position in its swarm's list
+
+        /**
+         * Constructor for PeerInfo.
+         *
+         * @param ip       The IP address of the peer.
+         * @param port     The port of the peer.
+         * @param fileHash The file hash served by the peer.
+         * @param partial  Whether the peer is still downloading the file.
+         */
+        PeerInfo(String ip, int port, String fileHash, boolean partial) {
+            this.ip = ip;
+            this.port = port;
+            this.fileHash = fileHash;
+            this.partial = partial;
+            this.lastSeen = System.currentTimeMillis(); // Set the last seen timestamp to now
+            this.address = parseIPv4(ip);
+        }
+
+        /**
+         * @return A copy that later changes to this peer do not affect.
+         */
+        PeerInfo copy() {
+            PeerInfo copy = new PeerInfo(ip, port, fileHash, partial);
+            copy.lastSeen = lastSeen;
+            return copy;
+        }
+
+        /**
+         * Parses a dotted-quad IPv4 address without any name lookup.
+         *
+         * @param ip The address text.
+         * @return The 4 address bytes, or null if the text is not an IPv4 literal.
+         */
+        static byte[] parseIPv4(String ip) {
+            byte[] bytes = new byte[4];
+            int part = 0;
+            int value = -1;
+            for (int i = 0; i <= ip.length(); i++) {
+                char c = i < ip.length() ? ip.charAt(i) : '.';
+                if (c == '.') {
+                    if (value < 0 || part == 4) {
+                        return null;
+                    }
+                    bytes[part++] = (byte) value;
+                    value = -1;
+                } else if (c >= '0' && c <= '9') {
+                    value = (value < 0 ? 0 : value * 10) + (c - '0');
+                    if (value > 255) {
+                        return null;
+                    }
+                } else {
+                    return null;
+                }
+            }
+            return part == 4 ? bytes : null;
+        }
+
+        /**
+         * Returns a string representation of the peer in the format "IP:Port", or
+         * "IP:Port:p" for a partial peer. Clients that predate partial peers read
+         * only the first two fields.
+         *
+         * @return The string representation of the peer.
+         */
+        @Override
+        public String toString() {
+            return ip + ":" + port + (partial ? ":p" : "");
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,793 @@
+import java.util.*;
+
+/**
+ * Decides which chunks each seeder should fetch next.
+ *
+ * Chunks are handed out dynamically from a shared pool rather than divided up
+ * front, so a fast seeder simply comes back for more while a slow one holds
+ * only what it can deliver. Each peer's pipeline depth follows its measured
+ * throughput, keeping roughly TARGET_QUEUE_SECONDS of data queued on every
+ * link. Chunks are picked rarest first: the pool is bucketed by how many
+ * partial peers hold a chunk, and peers draw from the lowest bucket they can
+ * serve. A partial peer's holdings are refreshed as it reports more chunks
+ * (updateHave), and a chunk it turns out not to have is simply handed to
+ * someone else (missing).
+ *
+ * Tail latency is handled in three ways. Every chunk's service time feeds a
+ * latency window; a peer that delivers nothing within a deadline derived from
+ * it (readTimeoutMillis) is dropped and its chunks go back to the pool. A chunk
+ * at the head of a peer's queue that has been in service longer than the p95
+ * is hedged: a duplicate request goes to the next peer with room. And once the
+ * pool is empty the download enters endgame: idle peers request chunks that
+ * are still in flight elsewhere, starting from the tail of the longest backlog,
+ * up to MAX_COPIES copies per chunk. Whichever copy arrives first wins, and the
+ * peers still fetching the others are told to cancel them (takeCancellations).
+ *
+ * A chunk that arrives is first "received", which frees its slot in the peer's
+ * pipeline, and only becomes done once its digest has been checked (verified).
+ * A chunk that fails the check goes back to the pool; a peer that sends
+ * MAX_BAD_COPIES bad copies of a chunk is not asked for it again. A single bad
+ * transfer never ends the download: it is only given up once no live peer can
+ * supply some chunk and none has joined that can for UNOBTAINABLE_GRACE_MILLIS.
+ *
+ * All methods are thread-safe; peer workers block in awaitWork while there is
+ * nothing for them to do.
+ */
+public class PieceScheduler {
+
+    // Constants
+    private static final double TARGET_QUEUE_SECONDS = 0.5; // Data kept queued on each link, in seconds
+    private static final int MIN_DEPTH = 2; // Fewest chunks kept in flight per peer
+    private static final int MAX_DEPTH = 64; // Most chunks kept in flight per peer
+    private static final int INITIAL_DEPTH = 4; // Depth used until a peer's throughput is known
+    private static final double RATE_SMOOTHING = 0.2; // Weight of the newest sample in the throughput average
+    private static final int MAX_COPIES = 3; // Most peers fetching the same chunk during endgame
+    private static final int MIN_LATENCY_SAMPLES = 16; // Samples needed before hedging or adapting deadlines
+    private static final long MIN_READ_TIMEOUT = 5000; // Shortest time to wait for a peer's next chunk, in ms
+    private static final long MAX_READ_TIMEOUT = 60000; // Longest time to wait for a peer's next chunk, in ms
+    private static final double READ_TIMEOUT_FACTOR = 10; // Read deadline as a multiple of the p99 service time
+    private static final long LOG_INTERVAL_MILLIS = 1000; // Shortest time between two hedging log lines
+    private static final int MAX_BAD_COPIES = 2; // Bad copies of a chunk a peer may send before it is not asked again
+    private static final long UNOBTAINABLE_GRACE_MILLIS = 30000; // How long a chunk no peer can supply waits for one
+
+    // Metrics
+    private static final LatencyHistogram SERVICE_TIME = Metrics.histogram("leecher_chunk_latency_seconds",
+            "Time a peer took to deliver a chunk, from the later of its request and the previous arrival");
+    private static final Metrics.Counter HEDGES = Metrics.counter("leecher_hedged_chunks_total",
+            "Straggling chunks requested again from a second peer");
+    private static final Log.Sampler HEDGE_LOG = Log.sampler(LOG_INTERVAL_MILLIS); // Chunks hedged
+
+    private final int chunkCount; // Number of chunks in the file
+    private final int chunkSize; // Size of a full chunk in bytes
+    private final BitSet done = new BitSet(); // Chunks written to the file
+    private final BitSet verifying = new BitSet(); // Chunks received and waiting for their digest check
+    private final BitSet suspect = new BitSet(); // Chunks that have failed their check at least once
+    private long stuckSince; // System.currentTimeMillis() since when no live peer can supply some chunk, or 0
+    private int remaining; // Chunks not yet done
+    private final int[] inFlight; // Number of peers currently fetching each chunk
+    private final int[] availability; // Number of partial peers holding each chunk
+    private final int[] bucketOf; // Bucket a pooled chunk sits in, or -1 if not pooled
+    private final int[] slotOf; // Position of a pooled chunk within its bucket
+    private final List<Bucket> buckets = new ArrayList<>(); // Pooled chunks by availability
+    private final List<Peer> peers = new ArrayList<>(); // Peers taking part in the download
+    private final ArrayDeque<Integer> hedges = new ArrayDeque<>(); // Straggling chunks waiting for a second peer
+    private final BitSet hedged = new BitSet(); // Chunks that have already been hedged once
+    private final LatencyWindow latency = new LatencyWindow(256); // Recent chunk service times in seconds
+    private int livePeers; // Peers that have not failed
+    private final Random random = new Random();
+
+    /**
+     * Creates a scheduler with every chunk still to be fetched.
+     *
+     * @param chunkCount The number of chunks in the file.
+     * @param chunkSize  The size of a full chunk in bytes.
+     */
+    public PieceScheduler(int chunkCount, int chunkSize) {
+        this(chunkCount, chunkSize, new BitSet());
+    }
+
+    /**
+     * Creates a scheduler for a download that already has some chunks, such as
+     * one resumed from a checkpoint.
+     *
+     * @param chunkCount The number of chunks in the file.
+     * @param chunkSize  The size of a full chunk in bytes.
+     * @param have       The chunks that are already done.
+     */
+    public PieceScheduler(int chunkCount, int chunkSize, BitSet have) {
+        this.chunkCount = chunkCount;
+        this.chunkSize = chunkSize;
+        this.inFlight = new int[chunkCount];
+        this.availability = new int[chunkCount];
+        this.bucketOf = new int[chunkCount];
+        this.slotOf = new int[chunkCount];
+        Arrays.fill(bucketOf, -1);
+        for (int i = 0; i < chunkCount; i++) {
+            if (have.get(i)) {
+                done.set(i);
+            } else {
+                pool(i);
+            }
+        }
+        this.remaining = chunkCount - done.cardinality();
+    }
+
+    /**
+     * Adds a peer to the download.
+     *
+     * @param name The peer in the format "IP:Port".
+     * @param have The chunks the peer holds, or null if it holds all of them.
+     * @return The peer handle to pass to the other methods.
+     */
+    public synchronized Peer addPeer(String name, BitSet have) {
+        Peer peer = new Peer(name, have == null ? null : (BitSet) have.clone());
+        peers.add(peer);
+        livePeers++;
+        if (peer.have != null) {
+            for (int i = peer.have.nextSetBit(0); i >= 0 && i < chunkCount; i = peer.have.nextSetBit(i + 1)) {
+                setAvailability(i, availability[i] + 1);
+            }
+        }
+        notifyAll();
+        return peer;
+    }
+
+    /**
+     * Replaces what a partial peer is known to hold with a fresh report from it.
+     *
+     * @param peer The peer.
+     * @param have The chunks the peer now holds.
+     */
+    public synchronized void updateHave(Peer peer, BitSet have) {
+        if (peer.failed || peer.have == null) {
+            return;
+        }
+        BitSet changed = (BitSet) have.clone();
+        changed.xor(peer.have);
+        for (int i = changed.nextSetBit(0); i >= 0 && i < chunkCount; i = changed.nextSetBit(i + 1)) {
+            setAvailability(i, availability[i] + (have.get(i) ? 1 : -1));
+        }
+        peer.have = (BitSet) have.clone();
+        notifyAll();
+    }
+
+    /**
+     * Picks the next run of chunks for a peer, if its pipeline has room.
+     *
+     * @param peer     The peer asking for work.
+     * @param maxCount The largest run to return.
+     * @return The first chunk and length of the run, or null if there is nothing
+     *         for this peer right now.
+     */
+    public synchronized int[] next(Peer peer, int maxCount) {
+        if (peer.failed || remaining == 0 || peer.queue.size() >= depth(peer)) {
+            return null;
+        }
+
+        // Stragglers first: they are what the download is waiting on
+        Iterator<Integer> stragglers = hedges.iterator();
+        while (stragglers.hasNext()) {
+            int index = stragglers.next();
+            if (done.get(index) || verifying.get(index)) {
+                stragglers.remove();
+            } else if (peer.has(index) && !peer.isFetching(index)) {
+                stragglers.remove();
+                inFlight[index]++;
+                peer.queue.add(new Request(index, System.nanoTime()));
+                return new int[] { index, 1 };
+            }
+        }
+
+        int first = pick(peer);
+        if (first < 0) {
+            // A partial peer holding none of the pooled chunks waits for its holdings to
+            // grow; duplicating chunks in flight elsewhere is only for the last ones
+            return poolEmpty() ? endgame(peer) : null;
+        }
+
+        // Extend into a contiguous run so it can go out as one range request
+        int count = 0;
+        long now = System.nanoTime();
+        for (int i = first; i < chunkCount && count < maxCount && bucketOf[i] >= 0 && peer.has(i); i++) {
+            unpool(i);
+            inFlight[i]++;
+            peer.queue.add(new Request(i, now));
+            count++;
+        }
+        return new int[] { first, count };
+    }
+
+    /**
+     * Records a chunk that arrived from a peer, freeing its slot in the peer's
+     * pipeline. The chunk is not done until it is verified.
+     *
+     * @param peer  The peer it came from.
+     * @param index The chunk number.
+     * @param bytes The chunk length.
+     * @return true if the chunk should be checked and written; false if it is
+     *         already done or another copy is being checked.
+     */
+    public synchronized boolean received(Peer peer, int index, int bytes) {
+        long now = System.nanoTime();
+        Request request = peer.remove(index);
+        if (request != null) {
+            inFlight[index]--;
+
+            // The link was busy from the later of the request and the previous arrival
+            long busySince = Math.max(request.sentAt, peer.lastArrival);
+            SERVICE_TIME.record(now - busySince);
+            double seconds = Math.max(now - busySince, 1000) / 1e9;
+            double sample = bytes / seconds;
+            peer.rate = peer.rate == 0 ? sample : RATE_SMOOTHING * sample + (1 - RATE_SMOOTHING) * peer.rate;
+            latency.add(seconds);
+        }
+        peer.lastArrival = now;
+
+        if (done.get(index) || verifying.get(index)) {
+            return false; // A duplicate lost the race
+        }
+        verifying.set(index);
+        unpool(index);
+        return true;
+    }
+
+    /**
+     * Records a received chunk that passed its check and has been written to the
+     * file.
+     *
+     * @param peer  The peer it came from.
+     * @param index The chunk number.
+     * @return true if this was the first copy of the chunk to be completed.
+     */
+    public synchronized boolean verified(Peer peer, int index) {
+        verifying.clear(index);
+        if (done.get(index)) {
+            return false;
+        }
+        done.set(index);
+        remaining--;
+        unpool(index);
+
+        // Tell the peers still fetching other copies to cancel them
+        if (inFlight[index] > 0) {
+            for (Peer other : peers) {
+                if (other != peer && !other.failed && other.isFetching(index)) {
+                    other.cancels.add(index);
+                }
+            }
+        }
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * Records a received chunk that failed its check. The chunk goes back to the
+     * pool; the peer that sent it may be asked again until it has sent
+     * MAX_BAD_COPIES bad copies.
+     *
+     * @param peer  The peer that sent it.
+     * @param index The chunk number.
+     */
+    public synchronized void corrupt(Peer peer, int index) {
+        verifying.clear(index);
+        peer.badCopy(index);
+        suspect.set(index);
+        requeue(index);
+        if (!done.get(index) && !obtainable(index)) {
+            Log.error("No peer has a valid copy of chunk " + index + "; waiting for new peers");
+        }
+        notifyAll();
+    }
+
+    /**
+     * Returns a received chunk to the pool after it could not be written. The
+     * peer that sent it is not blamed.
+     *
+     * @param index The chunk number.
+     */
+    public synchronized void writeFailed(int index) {
+        verifying.clear(index);
+        requeue(index);
+        notifyAll();
+    }
+
+    /**
+     * Records that a peer acknowledged the cancellation of a chunk instead of
+     * sending it.
+     *
+     * @param peer  The peer.
+     * @param index The chunk number.
+     */
+    public synchronized void cancelled(Peer peer, int index) {
+        if (peer.remove(index) != null) {
+            inFlight[index]--;
+            requeue(index);
+        }
+    }
+
+    /**
+     * Returns the chunks a peer should cancel because another copy already
+     * arrived, and forgets them.
+     *
+     * @param peer The peer.
+     * @return The chunk numbers, possibly empty.
+     */
+    public synchronized List<Integer> takeCancellations(Peer peer) {
+        if (peer.cancels.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<Integer> cancels = new ArrayList<>(peer.cancels);
+        peer.cancels.clear();
+        return cancels;
+    }
+
+    /**
+     * Looks for chunks that have been in service for longer than the p95 of
+     * recent service times and queues a duplicate request for each. Call
+     * periodically.
+     */
+    public synchronized void checkStragglers() {
+        if (latency.size() < MIN_LATENCY_SAMPLES || remaining == 0) {
+            return;
+        }
+        long threshold = (long) (latency.percentile(0.95) * 1e9);
+        long now = System.nanoTime();
+
+        for (Peer peer : peers) {
+            Request head = peer.queue.peekFirst();
+            if (peer.failed || head == null) {
+                continue;
+            }
+            // The head request has been in service since the later of its request and the last arrival
+            long inService = now - Math.max(head.sentAt, peer.lastArrival);
+            int index = head.index;
+            if (inService > threshold && !done.get(index) && !verifying.get(index) && !hedged.get(index)
+                    && inFlight[index] < MAX_COPIES) {
+                hedged.set(index);
+                hedges.add(index);
+                HEDGES.increment();
+                if (HEDGE_LOG.sample()) {
+                    HEDGE_LOG.info("Hedging chunk " + index + ": " + peer + " has been serving it for "
+                            + inService / 1000000 + " ms");
+                }
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Returns how long a peer may take to deliver its next chunk before it is
+     * considered dead, derived from recent service times.
+     *
+     * @return The deadline in milliseconds.
+     */
+    public synchronized int readTimeoutMillis() {
+        if (latency.size() < MIN_LATENCY_SAMPLES) {
+            return (int) MAX_READ_TIMEOUT;
+        }
+        long timeout = (long) (latency.percentile(0.99) * READ_TIMEOUT_FACTOR * 1000);
+        return (int) Math.max(MIN_READ_TIMEOUT, Math.min(MAX_READ_TIMEOUT, timeout));
+    }
+
+    /**
+     * @param peer The peer.
+     * @return The peer's smoothed throughput in bytes per second, or 0 if it is
+     *         not yet measured or the peer has failed.
+     */
+    public synchronized long rate(Peer peer) {
+        return peer.failed ? 0 : (long) peer.rate;
+    }
+
+    /**
+     * Returns a chunk to the pool after a partial peer reported that it does not
+     * have it, and stops asking that peer for it until its next report.
+     *
+     * @param peer  The peer.
+     * @param index The chunk number.
+     */
+    public synchronized void missing(Peer peer, int index) {
+        if (peer.remove(index) != null) {
+            inFlight[index]--;
+        }
+        if (peer.have == null) {
+            // Announced as complete but evidently is not; track it as partial
+            peer.have = new BitSet();
+            peer.have.set(0, chunkCount);
+            for (int i = 0; i < chunkCount; i++) {
+                setAvailability(i, availability[i] + 1);
+            }
+        }
+        if (peer.have.get(index)) {
+            peer.have.clear(index);
+            setAvailability(index, availability[index] - 1);
+        }
+        requeue(index);
+        notifyAll();
+    }
+
+    /**
+     * Returns a chunk to the pool after a peer failed to deliver it.
+     *
+     * @param peer  The peer that failed.
+     * @param index The chunk number.
+     */
+    public synchronized void failed(Peer peer, int index) {
+        if (peer.remove(index) != null) {
+            inFlight[index]--;
+            requeue(index);
+        }
+    }
+
+    /**
+     * Removes a peer whose connection broke and returns its queued chunks to the
+     * pool.
+     *
+     * @param peer The peer.
+     */
+    public synchronized void peerFailed(Peer peer) {
+        if (peer.failed) {
+            return;
+        }
+        peer.failed = true;
+        livePeers--;
+        for (Request request : peer.queue) {
+            inFlight[request.index]--;
+            requeue(request.index);
+        }
+        peer.queue.clear();
+        if (peer.have != null) {
+            for (int i = peer.have.nextSetBit(0); i >= 0 && i < chunkCount; i = peer.have.nextSetBit(i + 1)) {
+                setAvailability(i, availability[i] - 1);
+            }
+        }
+        notifyAll();
+    }
+
+    /**
+     * Waits until something changes that may give a peer new work.
+     *
+     * @param timeoutMillis The longest time to wait.
+     * @throws InterruptedException If the thread is interrupted.
+     */
+    public synchronized void awaitWork(long timeoutMillis) throws InterruptedException {
+        if (remaining > 0) {
+            wait(timeoutMillis);
+        }
+    }
+
+    /**
+     * Waits until every chunk is done, or no live peer is left and no chunk is
+     * waiting for its check, or some chunk has had no live peer able to supply
+     * it intact for UNOBTAINABLE_GRACE_MILLIS.
+     *
+     * @return true if every chunk is done.
+     * @throws InterruptedException If the thread is interrupted.
+     */
+    public synchronized boolean awaitCompletion() throws InterruptedException {
+        while (remaining > 0 && (livePeers > 0 || !verifying.isEmpty())) {
+            if (!stuck()) {
+                stuckSince = 0;
+                wait();
+                continue;
+            }
+            long now = System.currentTimeMillis();
+            if (stuckSince == 0) {
+                stuckSince = now;
+            }
+            long left = stuckSince + UNOBTAINABLE_GRACE_MILLIS - now;
+            if (left <= 0) {
+                Log.error("Giving up: no peer has had a valid copy of some chunks for "
+                        + UNOBTAINABLE_GRACE_MILLIS / 1000 + " s");
+                break;
+            }
+            wait(left);
+        }
+        return remaining == 0;
+    }
+
+    /**
+     * @return true if some chunk that has failed its check is still wanted and
+     *         no live peer can be asked for it.
+     */
+    private boolean stuck() {
+        for (int i = suspect.nextSetBit(0); i >= 0; i = suspect.nextSetBit(i + 1)) {
+            if (!done.get(i) && !verifying.get(i) && inFlight[i] == 0 && !obtainable(i)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return true if some live peer can still be asked for a chunk.
+     */
+    private boolean obtainable(int index) {
+        for (Peer peer : peers) {
+            if (!peer.failed && peer.has(index)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return The number of chunks in the file.
+     */
+    public int getChunkCount() {
+        return chunkCount;
+    }
+
+    /**
+     * @return true if every chunk is done.
+     */
+    public synchronized boolean isComplete() {
+        return remaining == 0;
+    }
+
+    /**
+     * @param index The chunk number.
+     * @return true if the chunk has been written to the file.
+     */
+    public synchronized boolean isDone(int index) {
+        return done.get(index);
+    }
+
+    /**
+     * Returns how many chunks a peer should keep in flight, from its measured
+     * throughput.
+     */
+    private int depth(Peer peer) {
+        if (peer.rate == 0) {
+            return INITIAL_DEPTH;
+        }
+        int depth = (int) Math.ceil(peer.rate * TARGET_QUEUE_SECONDS / chunkSize);
+        return Math.max(MIN_DEPTH, Math.min(MAX_DEPTH, depth));
+    }
+
+    /**
+     * Picks a pooled chunk for a peer from the rarest bucket it can serve.
+     *
+     * @return The chunk number, or -1 if the peer holds none of the pooled chunks.
+     */
+    private int pick(Peer peer) {
+        // Bucket 0 holds chunks no partial peer has, so partial peers skip it
+        for (int b = peer.have == null ? 0 : 1; b < buckets.size(); b++) {
+            Bucket bucket = buckets.get(b);
+            if (bucket.size == 0) {
+                continue;
+            }
+            int offset = random.nextInt(bucket.size);
+            for (int k = 0; k < bucket.size; k++) {
+                int index = bucket.items[(offset + k) % bucket.size];
+                if (peer.has(index)) {
+                    return index;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return true if no chunk is waiting in the pool, so the download is in
+     *         endgame.
+     */
+    private boolean poolEmpty() {
+        for (Bucket bucket : buckets) {
+            if (bucket.size > 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Endgame: duplicates a chunk that is in flight at another peer. Chunks are
+     * taken from the tail of the longest backlog first, since those will take
+     * longest to arrive where they are.
+     *
+     * @return The duplicated chunk as a run of one, or null.
+     */
+    private int[] endgame(Peer peer) {
+        List<Peer> victims = new ArrayList<>();
+        for (Peer other : peers) {
+            if (other != peer && !other.failed && !other.queue.isEmpty()) {
+                victims.add(other);
+            }
+        }
+        victims.sort(new Comparator<Peer>() {
+            public int compare(Peer a, Peer b) {
+                return Double.compare(backlogSeconds(b), backlogSeconds(a));
+            }
+        });
+
+        for (Peer victim : victims) {
+            Iterator<Request> iterator = victim.queue.descendingIterator();
+            while (iterator.hasNext()) {
+                int index = iterator.next().index;
+                if (!done.get(index) && !verifying.get(index) && inFlight[index] < MAX_COPIES && peer.has(index)
+                        && !peer.isFetching(index)) {
+                    inFlight[index]++;
+                    peer.queue.add(new Request(index, System.nanoTime()));
+                    return new int[] { index, 1 };
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Estimates how long a peer needs to drain its queue.
+     */
+    private double backlogSeconds(Peer peer) {
+        return peer.queue.size() * (double) chunkSize / Math.max(peer.rate, 1);
+    }
+
+    /**
+     * Puts a chunk back in the pool if it is neither done, being fetched nor
+     * being checked.
+     */
+    private void requeue(int index) {
+        if (!done.get(index) && !verifying.get(index) && inFlight[index] == 0 && bucketOf[index] < 0) {
+            pool(index);
+            notifyAll();
+        }
+    }
+
+    /**
+     * Changes the availability of a chunk, moving it between buckets if pooled.
+     */
+    private void setAvailability(int index, int value) {
+        boolean pooled = bucketOf[index] >= 0;
+        if (pooled) {
+            unpool(index);
+        }
+        availability[index] = value;
+        if (pooled) {
+            pool(index);
+        }
+    }
+
+    /**
+     * Adds a chunk to the bucket for its availability.
+     */
+    private void pool(int index) {
+        int b = availability[index];
+        while (buckets.size() <= b) {
+            buckets.add(new Bucket());
+        }
+        Bucket bucket = buckets.get(b);
+        if (bucket.size == bucket.items.length) {
+            bucket.items = Arrays.copyOf(bucket.items, Math.max(16, bucket.size * 2));
+        }
+        bucket.items[bucket.size] = index;
+        slotOf[index] = bucket.size++;
+        bucketOf[index] = b;
+    }
+
+    /**
+     * Removes a chunk from its bucket, if pooled.
+     */
+    private void unpool(int index) {
+        int b = bucketOf[index];
+        if (b < 0) {
+            return;
+        }
+        Bucket bucket = buckets.get(b);
+        int slot = slotOf[index];
+        int moved = bucket.items[--bucket.size];
+        bucket.items[slot] = moved;
+        slotOf[moved] = slot;
+        bucketOf[index] = -1;
+    }
+
+    /**
+     * Pooled chunks sharing one availability count, in no particular order.
+     */
+    static class Bucket {
+        int[] items = new int[16]; // Chunk numbers
+        int size; // Number of chunks in the bucket
+    }
+
+    /**
+     * A fixed-size window of recent samples with percentile lookup.
+     */
+    static class LatencyWindow {
+        private final double[] samples; // Ring buffer of samples
+        private int next; // Slot the next sample goes into
+        private int size; // Number of valid samples
+
+        LatencyWindow(int capacity) {
+            this.samples = new double[capacity];
+        }
+
+        void add(double sample) {
+            samples[next] = sample;
+            next = (next + 1) % samples.length;
+            size = Math.min(size + 1, samples.length);
+        }
+
+        int size() {
+            return size;
+        }
+
+        double percentile(double q) {
+            double[] sorted = Arrays.copyOf(samples, size);
+            Arrays.sort(sorted);
+            return sorted[Math.min(size - 1, (int) (q * size))];
+        }
+    }
+
+    /**
+     * A chunk request in a peer's pipeline.
+     */
+    static class Request {
+        final int index; // Chunk number
+        final long sentAt; // System.nanoTime() when the request was handed out
+
+        Request(int index, long sentAt) {
+            this.index = index;
+            this.sentAt = sentAt;
+        }
+    }
+
+    /**
+     * Scheduling state of one peer. Only the scheduler touches the fields.
+     */
+    static class Peer {
+        final String name; // "IP:Port" of the peer
+        BitSet have; // Chunks the peer holds, or null for all
+        final ArrayDeque<Request> queue = new ArrayDeque<>(); // Requests in flight, oldest first
+        final List<Integer> cancels = new ArrayList<>(); // Chunks to cancel because another copy arrived
+        final Map<Integer, Integer> badCopies = new HashMap<>(); // Copies that failed their check, by chunk
+        double rate; // Smoothed throughput in bytes per second, 0 until measured
+        long lastArrival; // System.nanoTime() of the last chunk received
+        boolean failed; // Connection broke; no more work is handed out
+
+        Peer(String name, BitSet have) {
+            this.name = name;
+            this.have = have;
+        }
+
+        boolean has(int index) {
+            Integer bad = badCopies.get(index);
+            return (bad == null || bad < MAX_BAD_COPIES) && (have == null || have.get(index));
+        }
+
+        /**
+         * Counts a copy of a chunk that failed its check.
+         */
+        void badCopy(int index) {
+            Integer bad = badCopies.get(index);
+            badCopies.put(index, bad == null ? 1 : bad + 1);
+        }
+
+        boolean isFetching(int index) {
+            for (Request request : queue) {
+                if (request.index == index) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Removes a request from the queue, usually its head.
+         */
+        Request remove(int index) {
+            Iterator<Request> iterator = queue.iterator();
+            while (iterator.hasNext()) {
+                Request request = iterator.next();
+                if (request.index == index) {
+                    iterator.remove();
+                    return request;
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,78 @@
+import javax.swing.*;
+import java.awt.*;
+import java.util.*;
+
+/**
+ * A Swing window showing a progress bar and the latest status of each
+ * download. Reports arrive on the progress thread and are handed to the event
+ * dispatch thread, which alone touches the components.
+ */
+public class ProgressWindow implements DownloadListener {
+
+    private static final int ROW_HEIGHT = 60; // Pixels per download
+
+    private JFrame frame;
+    private JPanel rows; // One row per download
+    private final Map<String, Row> byFile = new HashMap<>(); // Rows by file; only used on the event thread
+
+    public ProgressWindow() {
+        SwingUtilities.invokeLater(new Runnable() {
+            public void run() {
+                initializeGUI();
+            }
+        });
+    }
+
+    /**
+     * Initializes the GUI components.
+     */
+    private void initializeGUI() {
+        // Create the frame
+        frame = new JFrame("Download Progress");
+        frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+        frame.setSize(400, 150);
+        frame.setLayout(new BorderLayout());
+
+        // Downloads are added as they are first reported
+        rows = new JPanel(new GridLayout(0, 1));
+        frame.add(rows, BorderLayout.CENTER);
+
+        // Display the frame
+        frame.setVisible(true);
+    }
+
+    @Override
+    public void progress(String file, int completed, int total, String status) {
+        SwingUtilities.invokeLater(new Runnable() {
+            public void run() {
+                Row row = byFile.get(file);
+                if (row == null) {
+                    row = new Row();
+                    byFile.put(file, row);
+                    rows.add(row.panel);
+                    frame.setSize(400, Math.max(150, 40 + byFile.size() * ROW_HEIGHT));
+                    frame.revalidate();
+                }
+                row.progressBar.setValue(total > 0 ? (int) ((long) completed * 100 / total) : 0);
+                if (status != null) {
+                    row.statusLabel.setText(byFile.size() > 1 ? file + ": " + status : status);
+                }
+            }
+        });
+    }
+
+    /**
+     * The progress bar and status label of one download.
+     */
+    private static class Row {
+        final JPanel panel = new JPanel(new BorderLayout());
+        final JProgressBar progressBar = new JProgressBar(0, 100);
+        final JLabel statusLabel = new JLabel("Waiting to start download...", SwingConstants.CENTER);
+
+        Row() {
+            progressBar.setStringPainted(true); // Show percentage text
+            panel.add(statusLabel, BorderLayout.NORTH);
+            panel.add(progressBar, BorderLayout.CENTER);
+        }
+    }
+}
\ No newline at end of file
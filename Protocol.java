@@ -0,0 +1,108 @@
+import java.io.*;
+
+/**
+ * Constants and framing helpers for the persistent seeder protocol.
+ *
+ * A client opens the session by sending MAGIC followed by its protocol
+ * version. The seeder answers with a HELLO frame and then keeps the connection
+ * open, answering request frames in the order they were received, so a client
+ * can keep many requests in flight. Every frame is length-prefixed:
+ *
+ * <pre>
+ *   int  length   (type byte + payload)
+ *   byte type
+ *   ...  payload
+ * </pre>
+ *
+ * INFO and RANGE address the seeder's default file. From version 2 a seeder can
+ * serve several files: OPEN resolves a file name to a file id, and FILE_RANGE
+ * addresses chunks by file id plus chunk number. From version 3 a client can
+ * CANCEL a chunk it no longer needs; if the chunk has not started going out,
+ * the seeder answers with CANCELLED in its place, otherwise the CHUNK is sent
+ * as usual. Either way every requested chunk gets exactly one response. From
+ * version 4 a client can ask for a file's MANIFEST of chunk digests to verify
+ * what it receives, and OPEN also accepts a file's content hash in place of its
+ * name. From version 5 a peer may serve a file it is still downloading: a
+ * client asks for its BITFIELD of present chunks, and a requested chunk the
+ * peer does not have is answered with MISSING in place of the CHUNK. From
+ * version 6 a client can ask to COMPRESS chunks; once the seeder has accepted a
+ * codec in its COMPRESSION answer it may send any later chunk as a
+ * COMPRESSED_CHUNK in place of the CHUNK, and sends the chunks that do not
+ * shrink raw as before. From version 7 a client can ask for the rolling
+ * CHECKSUMS of a file's chunks, answered by ROLLING_SUMS, to find chunks in an
+ * older copy of the file it already holds. From version 8 a seeder still
+ * building a file's manifest answers MANIFEST with NOT_READY, and the client
+ * asks again later; older clients have their request held until the manifest
+ * is ready.
+ *
+ * Seeders that do not understand MAGIC treat it as an invalid chunk number and
+ * close the connection, which tells the client to fall back to the one-shot
+ * protocol (one int request, one response, close).
+ */
+public class Protocol {
+
+    // Session handshake
+    public static final int MAGIC = 0xB17E5EED; // Never a valid chunk number, so it marks a new-style session
+    public static final int VERSION = 8; // Current protocol version; 2 adds OPEN and FILE_RANGE, 3 adds CANCEL,
+                                         // 4 adds MANIFEST, 5 adds BITFIELD and MISSING, 6 adds COMPRESS,
+                                         // 7 adds CHECKSUMS, 8 adds NOT_READY
+
+    // Requests (client to seeder)
+    public static final byte INFO = 1; // Ask for the file size, chunk size and chunk count
+    public static final byte RANGE = 2; // Ask for a run of chunks: int start, int count
+    public static final byte OPEN = 3; // Look up a file by name: UTF-8 name (version 2)
+    public static final byte FILE_RANGE = 4; // Ask for a run of chunks of a file: int fileId, int start, int count (version 2)
+    public static final byte CANCEL = 5; // Withdraw a queued chunk: int fileId (-1 for default), int index (version 3)
+    public static final byte MANIFEST = 6; // Ask for the chunk digests of a file: int fileId (-1 for default) (version 4)
+    public static final byte BITFIELD = 7; // Ask which chunks of a file are present: int fileId (-1 for default) (version 5)
+    public static final byte COMPRESS = 8; // Offer to receive compressed chunks: int codec (version 6)
+    public static final byte CHECKSUMS = 9; // Ask for the rolling chunk checksums of a file: int fileId (-1 for default) (version 7)
+
+    // Responses (seeder to client)
+    public static final byte HELLO = 64; // Session accepted: int version
+    public static final byte FILE_INFO = 65; // long size, int chunkSize, int chunkCount
+    public static final byte CHUNK = 66; // int index, chunk data
+    public static final byte OPENED = 67; // int fileId, long size, int chunkSize, int chunkCount
+    public static final byte CANCELLED = 68; // int index; sent in place of a CHUNK that was cancelled
+    public static final byte DIGESTS = 69; // Encoded ChunkManifest of the file
+    public static final byte AVAILABILITY = 70; // int chunkCount, one bit per chunk (BitSet.toByteArray order)
+    public static final byte MISSING = 71; // int index; sent in place of a CHUNK the peer does not have
+    public static final byte COMPRESSION = 72; // int codec accepted, or NO_CODEC
+    public static final byte COMPRESSED_CHUNK = 73; // int index, int raw length, compressed chunk data
+    public static final byte ROLLING_SUMS = 74; // Encoded ChunkChecksums of the file
+    public static final byte NOT_READY = 75; // int fileId; the manifest is still being built, ask again (version 8)
+    public static final byte ERROR = 127; // UTF error message
+
+    public static final int MAX_REQUEST_FRAME = 1024; // Largest request frame a seeder accepts
+    public static final int MAX_CONTROL_FRAME = 64 * 1024; // Largest response a client accepts that is not sized by the file
+
+    // Compression codecs
+    public static final int NO_CODEC = 0; // Chunks are sent raw
+    public static final int DEFLATE = 1; // java.util.zip Deflater with the zlib wrapper
+
+    /**
+     * Writes the length and type of a frame. The caller writes the payload.
+     *
+     * @param out           The stream to write to.
+     * @param type          The frame type.
+     * @param payloadLength The number of payload bytes that will follow.
+     * @throws IOException If an I/O error occurs.
+     */
+    public static void writeHeader(DataOutputStream out, byte type, int payloadLength) throws IOException {
+        out.writeInt(payloadLength + 1);
+        out.writeByte(type);
+    }
+
+    /**
+     * Writes an error frame.
+     *
+     * @param out     The stream to write to.
+     * @param message The error message.
+     * @throws IOException If an I/O error occurs.
+     */
+    public static void writeError(DataOutputStream out, String message) throws IOException {
+        byte[] data = message.getBytes("UTF-8");
+        writeHeader(out, ERROR, data.length);
+        out.write(data);
+    }
+}
\ No newline at end of file
@@ -1,157 +1,233 @@
 import java.io.*;
-import java.net.*;
-import java.nio.file.*;
-import java.util.Arrays;
+import java.util.*;
 import java.util.concurrent.*;
 
 public class Seeder {
 
     // Constants
     private static final int CHUNK_SIZE = 512 * 1024; // 512 KB chunk size
-    private static final int TRACKER_PORT = 5000; // Port for the tracker
+    private static final int MAX_CONNECTIONS = 8192; // Leechers served at once; the rest wait in the backlog
+    private static final int MAX_QUEUED_CHUNKS = 64; // Chunks queued per connection before its reads pause
+    private static final long CACHE_SIZE = 128L * 1024 * 1024; // Off-heap bytes for hot chunks across all files
+    private static final int LIST_EVERY = 10; // Heartbeats between ones that list every file explicitly
+    private static final long UPLOAD_QUANTUM = 256 * 1024; // Bytes a client host of weight 1 is sent per round
+
+    // Upload limits, set with -Dseeder.uploadRate=<KB/s>, -Dseeder.unchokeSlots=<hosts> and
+    // -Dseeder.peerWeights=<host>=<weight>,...; 0 and unset mean no limit and equal weights
+    private static final long UPLOAD_RATE = Long.getLong("seeder.uploadRate", 0) * 1024; // Total upload, bytes/s
+    private static final int UNCHOKE_SLOTS = Integer.getInteger("seeder.unchokeSlots", 0); // Hosts served at once
+    private static final String PEER_WEIGHTS = System.getProperty("seeder.peerWeights"); // Bandwidth shares by host
+
+    // Compression, turned off with -Dseeder.compress=false for content known not to compress
+    private static final boolean COMPRESS = Boolean.parseBoolean(System.getProperty("seeder.compress", "true"));
 
     public static void main(String[] args) throws Exception {
 
         // Validate command-line arguments
         if (args.length < 4) {
-            System.err.println("Usage: java Seeder <filePath> <TRACKER_IP> <SEEDER_IP> <SEEDER_PORT>");
+            System.err.println(
+                    "Usage: java Seeder <filePath> <TRACKER_IP[:port],...> <SEEDER_IP> <SEEDER_PORT> [<filePath> ...]");
             return;
         }
+        Metrics.start();
 
         // Parse command-line arguments
         String filePath = args[0]; // Path to the file to be shared
-        String TRACKER_IP = args[1]; // IP address of the tracker
+        String TRACKER_IP = args[1]; // IP address of the tracker, or a comma-separated tracker cluster
         String SEEDER_IP = args[2]; // IP address of this seeder
         String SEEDER_PORT = args[3]; // Port on which this seeder will listen
 
         int seederPort = Integer.parseInt(SEEDER_PORT); // Convert port to integer
 
-        // Split the file into chunks
-        byte[][] chunks = splitFile(filePath);
-        System.out.println("File split into " + chunks.length + " chunks.");
-
-        // Start TCP server to handle client requests
-        ExecutorService executor = Executors.newCachedThreadPool();
-        try (ServerSocket serverSocket = new ServerSocket(seederPort)) {
-            System.out.println("Seeder started on port " + seederPort);
-
-            // Register with the tracker
-            register(filePath, TRACKER_IP, seederPort, SEEDER_IP);
-            System.out.println("Registered with tracker for file: " + filePath);
-
-            // Schedule periodic heartbeats to the tracker
-            ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1);
-            scheduler.scheduleAtFixedRate(new Runnable() {
-
-                public void run() {
-
-                    update(filePath, TRACKER_IP, seederPort, SEEDER_IP);
-                    System.out.println("Sent heartbeat to tracker.");
-                }
-            }, 0, 30, TimeUnit.SECONDS);
+        // Any further arguments are more files to share from the same process
+        List<String> filePaths = new ArrayList<>();
+        filePaths.add(filePath);
+        filePaths.addAll(Arrays.asList(args).subList(4, args.length));
+
+        // Open the files for chunked reading; chunks stay on disk until they are sent
+        List<ChunkFile> files = new ArrayList<>();
+        for (String path : filePaths) {
+            ChunkFile chunks = ChunkFile.open(path, CHUNK_SIZE);
+            files.add(chunks);
+            Log.info("File " + path + " split into " + chunks.getChunkCount() + " chunks.");
+        }
 
-            // Handle incoming TCP connections
-            while (true) {
-                Socket clientSocket = serverSocket.accept();
-                System.out.println("New client connected: " + clientSocket.getInetAddress());
+        // Serve straight away; the files are indexed in the background and each is
+        // announced to the tracker as soon as its manifest is ready
+        List<ChunkManifest> manifests = new ArrayList<>(Collections.nCopies(files.size(), (ChunkManifest) null));
+        ChunkServer server = createServer(files, manifests, seederPort);
+        Log.info("Seeder started on port " + seederPort);
+
+        // Register every file under its name straight away, so leechers find this
+        // seeder while it indexes; content hashes follow as manifests are built
+        List<String> shareKeys = new CopyOnWriteArrayList<>(); // Names and content hashes registered so far
+        for (ChunkFile chunks : files) {
+            shareKeys.add(chunks.getName());
+        }
+        register(shareKeys, TRACKER_IP, seederPort, SEEDER_IP, false);
 
-                // Submit a new task to handle the client
-                executor.submit(new Runnable() {
+        // Schedule periodic heartbeats to the tracker
+        startHeartbeats(shareKeys, TRACKER_IP, seederPort, SEEDER_IP, server);
 
-                    public void run() {
-                        handleClient(clientSocket, chunks);
-                    }
-                });
+        Thread indexer = new Thread(new Runnable() {
+            public void run() {
+                index(files, server, shareKeys, TRACKER_IP, seederPort, SEEDER_IP);
             }
-        }
+        }, "indexer");
+        indexer.setDaemon(true);
+        indexer.start();
+
+        // Handle incoming TCP connections on this thread
+        server.run();
     }
 
     /**
-     * Registers the seeder with the tracker.
+     * Builds what the server needs to know about each file and hands it over as
+     * it becomes ready, smallest file first so that most manifests are ready
+     * early. Each file is hashed, spreading it over all cores, so leechers can
+     * verify what they receive, then registered with the tracker under its
+     * content hash; leechers that found it by name meanwhile are told to ask
+     * again. A file that cannot be hashed is withdrawn. Rolling checksums, which
+     * let leechers with an earlier version fetch only what changed, and
+     * compressed chunks follow once every file is registered.
      *
-     * @param fileHash   The hash of the file being shared.
+     * @param files      The files being served, by file id.
+     * @param server     The server, already running.
+     * @param shareKeys  The names and content hashes kept alive by heartbeats;
+     *                   each file's content hash is added once it is known.
      * @param TRACKER_IP The IP address of the tracker.
      * @param port       The port on which the seeder is listening.
      * @param SEEDER_IP  The IP address of the seeder.
      */
-    private static void register(String fileHash, String TRACKER_IP, int port, String SEEDER_IP) {
-        try (DatagramSocket socket = new DatagramSocket()) {
-            String message = "REGISTER|" + fileHash + "|" + SEEDER_IP + "|" + port;
-            byte[] data = message.getBytes();
-            InetAddress address = InetAddress.getByName(TRACKER_IP);
-            socket.send(new DatagramPacket(data, data.length, address, TRACKER_PORT));
-        } catch (Exception e) {
-            System.err.println("Failed to register with tracker: " + e.getMessage());
+    static void index(List<ChunkFile> files, ChunkServer server, List<String> shareKeys, String TRACKER_IP, int port,
+            String SEEDER_IP) {
+        List<Integer> order = new ArrayList<>();
+        for (int i = 0; i < files.size(); i++) {
+            order.add(i);
+        }
+        Collections.sort(order, new Comparator<Integer>() {
+            public int compare(Integer x, Integer y) {
+                return Long.compare(files.get(x).getSize(), files.get(y).getSize());
+            }
+        });
+
+        ExecutorService hashers = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        try {
+            List<Integer> registered = new ArrayList<>();
+            for (int i : order) {
+                ChunkFile chunks = files.get(i);
+                try {
+                    long start = System.nanoTime();
+                    ChunkManifest manifest = ChunkManifest.build(chunks, hashers);
+                    server.setManifest(i, manifest);
+                    List<String> keys = Collections.singletonList(manifest.getContentHash());
+                    register(keys, TRACKER_IP, port, SEEDER_IP, false);
+                    shareKeys.addAll(keys);
+                    registered.add(i);
+                    Log.info("File " + chunks.getName() + " has content hash " + manifest.getContentHash()
+                            + " (hashed in " + (System.nanoTime() - start) / 1000000 + " ms), registered with tracker.");
+                } catch (IOException e) {
+                    Log.error("Cannot share " + chunks.getName() + ": " + e.getMessage());
+                    server.manifestFailed(i);
+                    shareKeys.remove(chunks.getName()); // No longer renewed, so the tracker lets it lapse
+                }
+            }
+
+            for (int i : registered) {
+                ChunkFile chunks = files.get(i);
+                try {
+                    server.setChecksums(i, ChunkChecksums.build(chunks, hashers));
+                    if (COMPRESS) {
+                        long start = System.nanoTime();
+                        CompressedChunks store = CompressedChunks.build(chunks, hashers);
+                        Log.info("File " + chunks.getName() + ": " + store.getStoredCount() + " of "
+                                + chunks.getChunkCount() + " chunks compressed, saving " + store.getSavedBytes() / 1024
+                                + " KB per copy (compressed in " + (System.nanoTime() - start) / 1000000 + " ms).");
+                        if (store.getStoredCount() > 0) {
+                            server.setCompressed(i, store);
+                        } else {
+                            store.close();
+                        }
+                    }
+                } catch (IOException e) {
+                    Log.error("Cannot prepare " + chunks.getName() + " for delta sync and compression: "
+                            + e.getMessage());
+                }
+            }
+        } finally {
+            hashers.shutdown();
         }
     }
 
     /**
-     * Sends a periodic update (heartbeat) to the tracker.
+     * Creates a chunk server for a set of files and binds it to a port. The
+     * caller runs it.
      *
-     * @param fileHash   The hash of the file being shared.
-     * @param TRACKER_IP The IP address of the tracker.
-     * @param port       The port on which the seeder is listening.
-     * @param SEEDER_IP  The IP address of the seeder.
+     * @param files     The files to serve; the first is the default file.
+     * @param manifests The chunk manifest of each file, or null entries.
+     * @param port      The TCP port to listen on.
+     * @return The bound server.
+     * @throws IOException If the port cannot be bound.
      */
-    private static void update(String fileHash, String TRACKER_IP, int port, String SEEDER_IP) {
-        try (DatagramSocket socket = new DatagramSocket()) {
-            String message = "UPDATE|" + fileHash + "|" + SEEDER_IP + "|" + port;
-            byte[] data = message.getBytes();
-            InetAddress address = InetAddress.getByName(TRACKER_IP);
-            socket.send(new DatagramPacket(data, data.length, address, TRACKER_PORT));
-        } catch (Exception e) {
-            System.err.println("Failed to send heartbeat to tracker: " + e.getMessage());
-        }
+    static ChunkServer createServer(List<ChunkFile> files, List<ChunkManifest> manifests, int port)
+            throws IOException {
+        ChunkCache cache = new ChunkCache(CACHE_SIZE, CHUNK_SIZE);
+        UploadScheduler uploads = new UploadScheduler(UPLOAD_RATE, UNCHOKE_SLOTS, UPLOAD_QUANTUM,
+                UploadScheduler.parseWeights(PEER_WEIGHTS));
+        ChunkServer server = new ChunkServer(files, manifests, cache, uploads, MAX_CONNECTIONS, MAX_QUEUED_CHUNKS);
+        server.bind(port);
+        return server;
     }
 
     /**
-     * Splits the file into chunks of size CHUNK_SIZE.
+     * Sends a heartbeat to the tracker every 30 seconds. Most are a single
+     * datagram per tracker covering every file; every LIST_EVERY-th lists the
+     * keys again, which keeps them confirmed and restores any a tracker lost.
      *
-     * @param filePath The path to the file.
-     * @return A 2D byte array containing the file chunks.
-     * @throws IOException If an I/O error occurs.
+     * @param keys       The names and content hashes to keep alive.
+     * @param TRACKER_IP The IP address of the tracker.
+     * @param port       The port on which the seeder is listening.
+     * @param SEEDER_IP  The IP address of the seeder.
+     * @param server     The server, for logging its state.
+     * @return The heartbeat timer.
      */
-    private static byte[][] splitFile(String filePath) throws IOException {
-        byte[] fileBytes = Files.readAllBytes(Paths.get(filePath));
-        int numChunks = (int) Math.ceil(fileBytes.length / (double) CHUNK_SIZE);
-        byte[][] chunks = new byte[numChunks][];
-
-        for (int i = 0; i < numChunks; i++) {
-            int start = i * CHUNK_SIZE;
-            int end = Math.min(start + CHUNK_SIZE, fileBytes.length);
-            chunks[i] = Arrays.copyOfRange(fileBytes, start, end);
-        }
-        return chunks;
+    static ScheduledExecutorService startHeartbeats(List<String> keys, String TRACKER_IP, int port, String SEEDER_IP,
+            ChunkServer server) {
+        ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1);
+        scheduler.scheduleAtFixedRate(new Runnable() {
+            private int beats; // Heartbeats sent so far
+
+            public void run() {
+
+                try {
+                    if (beats++ % LIST_EVERY == 0) {
+                        TrackerClient.forMembers(TRACKER_IP).update(keys, SEEDER_IP, port);
+                    } else {
+                        TrackerClient.forMembers(TRACKER_IP).heartbeat(keys, SEEDER_IP, port);
+                    }
+                } catch (Exception e) {
+                    Log.error("Failed to send heartbeat to tracker: " + e.getMessage());
+                }
+                Log.info("Sent heartbeat to tracker. Serving " + server.stats());
+            }
+        }, 0, 30, TimeUnit.SECONDS);
+        return scheduler;
     }
 
     /**
-     * Handles a client connection by serving the requested chunk.
+     * Registers the seeder with the trackers that own the files.
      *
-     * @param socket The client socket.
-     * @param chunks The array of file chunks.
+     * @param keys       The names and content hashes of the files being shared.
+     * @param TRACKER_IP The IP address of the tracker, or a tracker cluster.
+     * @param port       The port on which the seeder is listening.
+     * @param SEEDER_IP  The IP address of the seeder.
+     * @param partial    Whether the seeder only has some of the chunks so far.
      */
-    private static void handleClient(Socket socket, byte[][] chunks) {
-        try (DataInputStream in = new DataInputStream(socket.getInputStream());
-                DataOutputStream out = new DataOutputStream(socket.getOutputStream())) {
-            int chunkNumber = in.readInt(); // Read the requested chunk number
-
-            if (chunkNumber == -1) {
-                // Respond with the total number of chunks
-                out.writeInt(chunks.length);
-                System.out.println("Sent total chunks to client: " + chunks.length);
-            } else {
-                // Send the requested chunk
-                out.write(chunks[chunkNumber]);
-                System.out.println("Sent chunk " + chunkNumber + " to client.");
-            }
-        } catch (IOException e) {
-            System.err.println("Error handling client request: " + e.getMessage());
-        } finally {
-            try {
-                socket.close();
-            } catch (IOException e) {
-                System.err.println("Error closing client socket: " + e.getMessage());
-            }
+    static void register(Collection<String> keys, String TRACKER_IP, int port, String SEEDER_IP, boolean partial) {
+        try {
+            TrackerClient.forMembers(TRACKER_IP).register(keys, SEEDER_IP, port, partial);
+        } catch (Exception e) {
+            Log.error("Failed to register with tracker: " + e.getMessage());
         }
     }
 }
\ No newline at end of file
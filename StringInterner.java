@@ -0,0 +1,103 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Turns byte ranges of a buffer into Strings, handing back the same String for
+ * the same bytes instead of allocating a new one each time. The tracker sees
+ * the same file hashes and addresses over and over, so after warm-up parsing a
+ * message allocates no Strings at all.
+ *
+ * Not thread-safe: each worker thread keeps its own interner. The table is
+ * cleared when it fills up, which bounds its memory under churn.
+ */
+public class StringInterner {
+
+    private final String[] strings; // Open-addressed table of interned strings
+    private final int[] hashes; // Hash of the bytes of each entry
+    private final int limit; // Entries allowed before the table is cleared
+    private int count; // Entries in the table
+
+    /**
+     * Creates an empty interner.
+     *
+     * @param capacity The most strings kept at once; rounded up to a power of two.
+     */
+    public StringInterner(int capacity) {
+        int size = Integer.highestOneBit(Math.max(16, capacity) - 1) << 3; // At most a quarter full
+        this.strings = new String[size];
+        this.hashes = new int[size];
+        this.limit = size / 4;
+    }
+
+    /**
+     * Returns the String for a range of bytes, decoding it as UTF-8. Only ASCII
+     * text is interned; anything else is decoded afresh.
+     *
+     * @param buffer The buffer; its position and limit are not changed.
+     * @param from   The index of the first byte.
+     * @param to     The index after the last byte.
+     * @return The string.
+     */
+    public String intern(ByteBuffer buffer, int from, int to) {
+        int hash = 0;
+        for (int i = from; i < to; i++) {
+            byte b = buffer.get(i);
+            if (b < 0) {
+                return decode(buffer, from, to);
+            }
+            hash = 31 * hash + b;
+        }
+
+        int mask = strings.length - 1;
+        int slot = mix(hash) & mask;
+        while (strings[slot] != null) {
+            if (hashes[slot] == hash && matches(strings[slot], buffer, from, to)) {
+                return strings[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        if (count == limit) {
+            Arrays.fill(strings, null);
+            count = 0;
+            slot = mix(hash) & mask;
+        }
+        String string = decode(buffer, from, to);
+        strings[slot] = string;
+        hashes[slot] = hash;
+        count++;
+        return string;
+    }
+
+    /**
+     * Compares an ASCII string with a range of bytes.
+     */
+    private static boolean matches(String string, ByteBuffer buffer, int from, int to) {
+        if (string.length() != to - from) {
+            return false;
+        }
+        for (int i = from; i < to; i++) {
+            if (string.charAt(i - from) != buffer.get(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String decode(ByteBuffer buffer, int from, int to) {
+        byte[] bytes = new byte[to - from];
+        for (int i = from; i < to; i++) {
+            bytes[i - from] = buffer.get(i);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Spreads the bits of a hash so that similar strings land in different slots.
+     */
+    private static int mix(int hash) {
+        hash *= 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+}
\ No newline at end of file
@@ -0,0 +1,332 @@
+import java.io.*;
+import java.net.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Runs a whole swarm on the loopback interface and reports how it performed:
+ * a tracker and N seeders in this process, and M leechers without a window,
+ * all downloading the same file at once.
+ *
+ * Each seeder is reached through a relay that delays and throttles its
+ * traffic, standing in for a slow network link; the seeder registers the
+ * relay's port with the tracker, so leechers only ever see the shaped link.
+ * Leechers serve each other directly, on unshaped links.
+ *
+ * Leechers run in processes of their own, each in its own directory, since a
+ * leecher writes the file it downloads to the working directory. Once a
+ * leecher has the whole file it verifies it and reports how long it took, then
+ * stays in the swarm as a seeder until every leecher is finished. Logs and
+ * downloaded files are left in a temporary directory for inspection.
+ *
+ * Usage: java SwarmSimulator <seeders> <leechers> <fileMB> [<latencyMs> [<KB/s per seeder link>]]
+ */
+public class SwarmSimulator {
+
+    private static final String IP = "127.0.0.1"; // Everything runs on loopback
+    private static final int TRACKER_PORT = 5400; // Port of the simulated tracker
+    private static final int SEEDER_PORT = 5500; // First seeder port; seeder i listens on SEEDER_PORT + i
+    private static final int LINK_PORT = 5700; // First relay port; seeder i is reached on LINK_PORT + i
+    private static final int LEECHER_PORT = 5900; // First leecher port; leecher i serves on LEECHER_PORT + i
+    private static final int CHUNK_SIZE = 512 * 1024; // Same as the seeder
+    private static final long REGISTER_WAIT_MILLIS = 500; // Time for the seeders' registrations to arrive
+    private static final long TIMEOUT_SECONDS = 600; // Longest the leechers are waited for
+    private static final int LINK_BUFFER = 16 * 1024; // Bytes a relay moves at a time
+    private static final int LINK_QUEUE = 256; // Buffers in flight per relay direction
+    private static final String RESULT = "SWARM-RESULT "; // Line a leecher process prints when it is done
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("--leech")) {
+            leech(args[1], args[2], args[3]);
+            return;
+        }
+
+        // Validate command-line arguments
+        if (args.length < 3) {
+            System.err.println(
+                    "Usage: java SwarmSimulator <seeders> <leechers> <fileMB> [<latencyMs> [<KB/s per seeder link>]]");
+            return;
+        }
+        int seeders = Integer.parseInt(args[0]);
+        int leechers = Integer.parseInt(args[1]);
+        long size = Long.parseLong(args[2]) << 20;
+        long latency = args.length > 3 ? Long.parseLong(args[3]) : 0;
+        long bandwidth = args.length > 4 ? Long.parseLong(args[4]) * 1024 : 0; // 0 means unlimited
+        String tracker = IP + ":" + TRACKER_PORT;
+
+        Path directory = Files.createTempDirectory("swarm");
+        System.out.println("Simulating in " + directory);
+
+        // The tracker and seeders log to a file, so the report stands out
+        PrintStream console = System.out;
+        PrintStream log = new PrintStream(new FileOutputStream(directory.resolve("swarm.log").toFile()), true);
+        System.setOut(log);
+        System.setErr(log);
+
+        // The tracker, in this process
+        Thread trackerThread = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    Tracker.main(new String[] { directory.resolve("tracker").toString(),
+                            String.valueOf(TRACKER_PORT) });
+                } catch (Exception e) {
+                    System.err.println("Tracker stopped: " + e.getMessage());
+                }
+            }
+        });
+        trackerThread.setDaemon(true);
+        trackerThread.start();
+
+        // The file, and its seeders behind their shaped links
+        Path source = directory.resolve("source.bin");
+        Benchmark.writeRandomFile(source, size);
+        String contentHash = null;
+        ExecutorService hashers = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        try {
+            for (int i = 0; i < seeders; i++) {
+                ChunkFile file = ChunkFile.open(source.toString(), CHUNK_SIZE);
+                ChunkManifest manifest = ChunkManifest.build(file, hashers);
+                contentHash = manifest.getContentHash();
+                ChunkServer server = Seeder.createServer(Collections.singletonList(file),
+                        Collections.singletonList(manifest), SEEDER_PORT + i);
+                startDaemon(new Runnable() {
+                    public void run() {
+                        try {
+                            server.run();
+                        } catch (IOException e) {
+                            System.err.println("Seeder stopped: " + e.getMessage());
+                        }
+                    }
+                });
+                startDaemon(new Link(LINK_PORT + i, SEEDER_PORT + i, latency, bandwidth));
+                List<String> keys = Collections.singletonList(contentHash);
+                Seeder.register(keys, tracker, LINK_PORT + i, IP, false);
+                Seeder.startHeartbeats(keys, tracker, LINK_PORT + i, IP, server);
+            }
+        } finally {
+            hashers.shutdown();
+        }
+        Thread.sleep(REGISTER_WAIT_MILLIS);
+
+        // The leechers, all at once
+        long trackerBefore = Tracker.messagesReceived();
+        long start = System.nanoTime();
+        long[] millis = new long[leechers]; // Time each leecher took, or -1 if it failed
+        Arrays.fill(millis, -1);
+        CountDownLatch finished = new CountDownLatch(leechers);
+        List<Process> processes = new ArrayList<>();
+        for (int i = 0; i < leechers; i++) {
+            Path work = Files.createDirectory(directory.resolve("leecher-" + i));
+            Process process = new ProcessBuilder(Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+                    "-cp", System.getProperty("java.class.path"), "SwarmSimulator", "--leech", contentHash, tracker,
+                    String.valueOf(LEECHER_PORT + i)).directory(work.toFile()).redirectErrorStream(true).start();
+            processes.add(process);
+            startDaemon(watch(process, work.resolve("leecher.log"), millis, i, finished));
+        }
+        boolean allDone = finished.await(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        long trackerMessages = Tracker.messagesReceived() - trackerBefore;
+        for (Process process : processes) {
+            process.destroy();
+        }
+        System.setOut(console);
+
+        // Report
+        List<Long> times = new ArrayList<>();
+        for (long time : millis) {
+            if (time >= 0) {
+                times.add(time);
+            }
+        }
+        Collections.sort(times);
+        System.out.println();
+        System.out.println("Swarm: " + seeders + " seeders, " + leechers + " leechers, " + (size >> 20) + " MB file, "
+                + latency + " ms latency, " + (bandwidth > 0 ? bandwidth / 1024 + " KB/s" : "unlimited")
+                + " per seeder link");
+        System.out.println("Completed " + times.size() + " of " + leechers + " downloads"
+                + (allDone ? "" : " (timed out after " + TIMEOUT_SECONDS + " s)"));
+        if (!times.isEmpty()) {
+            long last = times.get(times.size() - 1);
+            System.out.printf("Completion time: p50 %.2f s, p90 %.2f s, p99 %.2f s, max %.2f s%n",
+                    percentile(times, 0.50) / 1000.0, percentile(times, 0.90) / 1000.0,
+                    percentile(times, 0.99) / 1000.0, last / 1000.0);
+            System.out.printf("Throughput: %.1f MB/s across the swarm, %.1f MB/s per leecher at the median%n",
+                    (double) times.size() * size / (1 << 20) / (last / 1000.0),
+                    (double) size / (1 << 20) / (percentile(times, 0.50) / 1000.0));
+        }
+        System.out.printf("Tracker: %d messages, %.1f per second%n", trackerMessages, trackerMessages / elapsed);
+        System.out.println("Logs in " + directory);
+        System.exit(times.size() == leechers ? 0 : 1);
+    }
+
+    /**
+     * Runs one leecher: downloads the file, verifies it, prints the result line
+     * and keeps seeding until the simulator ends the process.
+     */
+    private static void leech(String contentHash, String tracker, String port) throws Exception {
+        long start = System.nanoTime();
+        new Leecher(null).downloadFile(contentHash, tracker, IP, port);
+        long millis = (System.nanoTime() - start) / 1000000;
+
+        boolean verified = false;
+        ExecutorService hashers = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        try (ChunkFile file = ChunkFile.open(contentHash, CHUNK_SIZE)) {
+            verified = ChunkManifest.build(file, hashers).getContentHash().equals(contentHash);
+        } catch (IOException e) {
+            System.err.println("Cannot verify download: " + e.getMessage());
+        } finally {
+            hashers.shutdown();
+        }
+        System.out.println(RESULT + (verified ? millis : -1));
+    }
+
+    /**
+     * Copies a leecher's output to its log and picks out its result line.
+     */
+    private static Runnable watch(Process process, Path log, long[] millis, int index, CountDownLatch finished) {
+        return new Runnable() {
+            public void run() {
+                boolean reported = false;
+                try (BufferedReader in = new BufferedReader(new InputStreamReader(process.getInputStream()));
+                        PrintWriter out = new PrintWriter(Files.newBufferedWriter(log))) {
+                    String line;
+                    while ((line = in.readLine()) != null) {
+                        out.println(line);
+                        if (line.startsWith(RESULT) && !reported) {
+                            millis[index] = Long.parseLong(line.substring(RESULT.length()).trim());
+                            reported = true;
+                            finished.countDown();
+                        }
+                    }
+                } catch (IOException e) {
+                    // The process was ended
+                } finally {
+                    if (!reported) {
+                        finished.countDown(); // Exited without finishing
+                    }
+                }
+            }
+        };
+    }
+
+    private static long percentile(List<Long> sorted, double fraction) {
+        int rank = (int) Math.ceil(fraction * sorted.size());
+        return sorted.get(Math.max(0, rank - 1));
+    }
+
+    private static void startDaemon(Runnable task) {
+        Thread thread = new Thread(task);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * A TCP relay that delays and throttles the traffic through it, in both
+     * directions, like a network link with the given latency and bandwidth.
+     */
+    static class Link implements Runnable {
+
+        private final int port; // Port the relay listens on
+        private final int target; // Port it relays to
+        private final long latencyNanos; // One-way delay added to every buffer
+        private final long bytesPerSecond; // Rate each direction is held to, or 0 for no limit
+
+        /**
+         * @param port           The port to listen on.
+         * @param target         The loopback port to relay to.
+         * @param latencyMillis  The one-way delay, in ms.
+         * @param bytesPerSecond The bandwidth of each direction, or 0 for no limit.
+         */
+        Link(int port, int target, long latencyMillis, long bytesPerSecond) {
+            this.port = port;
+            this.target = target;
+            this.latencyNanos = latencyMillis * 1000000;
+            this.bytesPerSecond = bytesPerSecond;
+        }
+
+        public void run() {
+            try (ServerSocket listener = new ServerSocket(port, 1024, InetAddress.getByName(IP))) {
+                while (true) {
+                    Socket client = listener.accept();
+                    try {
+                        Socket server = new Socket(IP, target);
+                        relay(client, server);
+                        relay(server, client);
+                    } catch (IOException e) {
+                        client.close();
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println("Link on port " + port + " stopped: " + e.getMessage());
+            }
+        }
+
+        /**
+         * Relays one direction: a reader stamps each buffer with when it arrived
+         * and a writer sends it on once the latency has passed, no faster than
+         * the bandwidth allows. An empty buffer marks the end of the stream.
+         */
+        private void relay(Socket from, Socket to) {
+            BlockingQueue<Object[]> inFlight = new ArrayBlockingQueue<>(LINK_QUEUE); // { arrival, bytes }
+            startDaemon(new Runnable() {
+                public void run() {
+                    try {
+                        InputStream in = from.getInputStream();
+                        while (true) {
+                            byte[] buffer = new byte[LINK_BUFFER];
+                            int read = in.read(buffer);
+                            if (read < 0) {
+                                break;
+                            }
+                            inFlight.put(new Object[] { System.nanoTime(), Arrays.copyOf(buffer, read) });
+                        }
+                    } catch (IOException | InterruptedException e) {
+                        // Connection closed; pass the end on
+                    }
+                    try {
+                        inFlight.put(new Object[] { System.nanoTime(), new byte[0] });
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+            startDaemon(new Runnable() {
+                public void run() {
+                    long free = System.nanoTime(); // When the link has sent everything so far
+                    try {
+                        OutputStream out = to.getOutputStream();
+                        while (true) {
+                            Object[] entry = inFlight.take();
+                            byte[] data = (byte[]) entry[1];
+                            sleepUntil((Long) entry[0] + latencyNanos);
+                            if (data.length == 0) {
+                                to.shutdownOutput();
+                                break;
+                            }
+                            out.write(data);
+                            if (bytesPerSecond > 0) {
+                                free = Math.max(free, System.nanoTime()) + data.length * 1000000000L / bytesPerSecond;
+                                sleepUntil(free);
+                            }
+                        }
+                    } catch (IOException | InterruptedException e) {
+                        try {
+                            from.close();
+                            to.close();
+                        } catch (IOException ignored) {
+                            // Nothing more to do
+                        }
+                    }
+                }
+            });
+        }
+
+        private static void sleepUntil(long nanoTime) throws InterruptedException {
+            long wait = nanoTime - System.nanoTime();
+            if (wait > 0) {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            }
+        }
+    }
+}
\ No newline at end of file
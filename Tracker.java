@@ -1,158 +1,448 @@
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.file.*;
+import java.nio.channels.DatagramChannel;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.function.LongSupplier;
 
 public class Tracker {
 
     // Constants
-    private static final int PORT = 5000; // Port on which the tracker listens
+    private static final int PORT = 5000; // Default port on which the tracker listens
     private static final long PEER_TIMEOUT = 60000; // Timeout for peer cleanup (60 seconds)
+    private static final int MAX_MESSAGE = 2048; // Largest request datagram; longer ones are cut short
+    private static final int WORKER_QUEUE = 4096; // Datagrams waiting per worker before new ones are dropped
+    private static final int SEND_BATCH = 256; // Responses sent per wake-up of the sender
+    private static final int RECEIVE_BUFFER = 8 * 1024 * 1024; // Socket receive buffer, to ride out bursts
+    private static final int INTERNED_STRINGS = 65536; // File hashes and addresses each worker keeps
+    private static final int MAX_SAMPLE = 512; // Most peers sent for one binary query
+    private static final int TEXT_SAMPLE = 50; // Peers sent for a text query, which must fit one datagram
+    private static final long STATS_SECONDS = 10; // How often throughput is logged
+    private static final long CONFIRM_MILLIS = 10 * 60000; // How long a file stays alive on peer-wide heartbeats
+                                                           // alone, without being listed again
+    private static final long SNAPSHOT_SECONDS = 60; // How often the registry is saved and the journal restarted
+    private static final boolean VERBOSE = Boolean.getBoolean("tracker.verbose"); // Log every message
 
     // Data structures
-    private static ConcurrentHashMap<String, PeerInfo> peers = new ConcurrentHashMap<>(); // Stores composite key
-                                                                                          // (ip:port) to PeerInfo
-                                                                                          // mappings
+    private static PeerRegistry peers = new PeerRegistry(PEER_TIMEOUT); // Peers indexed by file hash
+    private static TrackerJournal journal; // Saves registrations across restarts
     private static ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1); // Scheduler for periodic
                                                                                              // tasks
 
+    // Metrics
+    private static final Metrics.Counter received = Metrics.counter("tracker_messages_received_total",
+            "Datagrams received");
+    private static final Metrics.Counter dropped = Metrics.counter("tracker_messages_dropped_total",
+            "Datagrams dropped because a worker was behind");
+    private static final Metrics.Counter malformed = Metrics.counter("tracker_messages_malformed_total",
+            "Datagrams that were not a valid message");
+    private static final Metrics.Counter announces = Metrics.counter("tracker_announces_total",
+            "Registrations received, counting each file of a batched announce");
+    private static final Metrics.Counter heartbeats = Metrics.counter("tracker_heartbeats_total",
+            "Heartbeats received, counting each file listed and each peer-wide heartbeat once");
+    private static final Metrics.Counter queries = Metrics.counter("tracker_queries_total",
+            "Queries answered");
+    private static final LatencyHistogram handleTime = Metrics.histogram("tracker_handle_seconds",
+            "Time a worker took to parse and handle a datagram");
+
+    // Totals as of the last log line; scheduler thread only
+    private static long receivedLogged; // Datagrams received
+    private static long droppedLogged; // Datagrams dropped
+    private static long malformedLogged; // Datagrams that were not a valid message
+    private static long announcesLogged; // Registrations
+    private static long queriesLogged; // Queries
+
+    /**
+     * Runs a tracker.
+     *
+     * @param args Optionally the directory to keep state in (default "."), then
+     *             the port to listen on (default 5000).
+     */
     public static void main(String[] args) throws Exception {
-        // Create a UDP socket to listen for incoming packets
-        DatagramSocket socket = new DatagramSocket(PORT);
-        System.out.println("Tracker started on port " + PORT);
+        // Create a UDP channel to listen for incoming packets; bound first, so
+        // requests wait in the socket buffer while the state is restored
+        DatagramChannel channel = DatagramChannel.open();
+        channel.setOption(StandardSocketOptions.SO_RCVBUF, RECEIVE_BUFFER);
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : PORT; // Several trackers can share a host
+        channel.bind(new InetSocketAddress(port));
+
+        // Restore the peers known before a restart, so queries are answered at once
+        Path stateDirectory = Paths.get(args.length > 0 ? args[0] : ".");
+        Files.createDirectories(stateDirectory);
+        journal = new TrackerJournal(stateDirectory);
+        long start = System.nanoTime();
+        int restored = journal.recover(peers, PEER_TIMEOUT);
+        Log.info("Restored " + restored + " peers from " + stateDirectory.toAbsolutePath() + " in "
+                + (System.nanoTime() - start) / 1000000 + " ms");
+        Log.info("Tracker started on port " + port);
+
+        // Responses go out from one thread, a batch at a time
+        BlockingQueue<Response> responses = new LinkedBlockingQueue<>();
+        startSender(channel, responses);
+
+        // One worker per core. All messages about the same peer go to the same
+        // worker, so they are handled in the order they arrived
+        int workerCount = Runtime.getRuntime().availableProcessors();
+        List<BlockingQueue<Packet>> queues = new ArrayList<>();
+        for (int i = 0; i < workerCount; i++) {
+            queues.add(startWorker(i, responses));
+        }
+
+        // Publish the metrics, with gauges read from the live state
+        Metrics.gauge("tracker_peers", "Registrations across all files", new LongSupplier() {
+            public long getAsLong() {
+                return peers.size();
+            }
+        });
+        Metrics.gauge("tracker_worker_queue", "Datagrams waiting for a worker", new LongSupplier() {
+            public long getAsLong() {
+                long waiting = 0;
+                for (BlockingQueue<Packet> queue : queues) {
+                    waiting += queue.size();
+                }
+                return waiting;
+            }
+        });
+        Metrics.gauge("tracker_response_queue", "Responses waiting to be sent", new LongSupplier() {
+            public long getAsLong() {
+                return responses.size();
+            }
+        });
+        Metrics.start();
+
+        // Receive buffers are allocated once, off-heap, and recycled; there are
+        // enough for every worker queue to be full
+        BlockingQueue<Packet> pool = new ArrayBlockingQueue<>(workerCount * WORKER_QUEUE + 1);
+        for (int i = 0; i < workerCount * WORKER_QUEUE + 1; i++) {
+            pool.add(new Packet(pool));
+        }
 
         // Schedule a periodic task to clean up stale peers
         scheduler.scheduleAtFixedRate(
                 new Runnable() {
                     public void run() {
                         Tracker.cleanupPeers();
+                        journal.flush();
+                        if (journal.isLong(peers.size())) {
+                            saveState();
+                        }
                     }
                 }, 0, 1, TimeUnit.SECONDS); // Run every second
+        scheduler.scheduleAtFixedRate(
+                new Runnable() {
+                    public void run() {
+                        Tracker.saveState();
+                    }
+                }, 0, SNAPSHOT_SECONDS, TimeUnit.SECONDS); // First right away, to start a clean journal
+        scheduler.scheduleAtFixedRate(
+                new Runnable() {
+                    public void run() {
+                        Tracker.logStats();
+                    }
+                }, STATS_SECONDS, STATS_SECONDS, TimeUnit.SECONDS);
 
-        // Buffer to store incoming data
-        byte[] buffer = new byte[102400000];
-
-        // Main loop to process incoming packets
+        // Main loop: receive packets and hand them to the workers
         while (true) {
-            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
-            socket.receive(packet); // Wait for incoming packet
-
-            // Extract the message from the packet
-            String message = new String(packet.getData(), 0, packet.getLength());
-            System.out.println("Received message: " + message);
-
-            // Split the message into parts
-            String[] parts = message.split("\\|");
-            String command = parts[0]; // First part is the command
-
-            // Process the command
-            switch (command) {
-                case "REGISTER":
-                    // Register a new seeder
-                    String fileHash = parts[1]; // File hash
-                    String ip = parts[2]; // Seeder IP
-                    int port = Integer.parseInt(parts[3]); // Seeder port
-
-                    // Create a composite key (ip:port)
-                    String compositeKey = ip + ":" + port;
+            Packet packet = pool.take();
+            packet.buffer.clear();
+            packet.sender = channel.receive(packet.buffer); // Wait for incoming packet
+            packet.buffer.flip();
+            received.increment();
 
-                    // Add the peer to the map
-                    peers.put(compositeKey, new PeerInfo(ip, port, fileHash));
-                    System.out.println("Seeder registered for file hash " + fileHash + ": " + ip + ":" + port);
-
-                    break;
+            int hash = TrackerMessage.peerHash(packet.buffer);
+            if (hash == 0) {
+                hash = packet.sender.hashCode(); // A query: any worker will do
+            }
+            BlockingQueue<Packet> queue = queues.get((hash & Integer.MAX_VALUE) % workerCount);
+            if (!queue.offer(packet)) {
+                dropped.increment(); // As if the network had lost it; the peer retries
+                packet.release();
+            }
+        }
+    }
 
-                case "QUERY":
-                    // Handle a query for seeders of a specific file
-                    String hash = parts[1]; // File hash to query
+    /**
+     * @return The number of datagrams received since the tracker started.
+     */
+    static long messagesReceived() {
+        return received.get();
+    }
 
-                    // Find all matching peers for the file hash
-                    List<String> matchingPeers = new ArrayList<>();
-                    for (Map.Entry<String, PeerInfo> entry : peers.entrySet()) {
-                        if (entry.getValue().fileHash.equals(hash)) {
-                            matchingPeers.add(entry.getValue().toString());
+    /**
+     * Starts a worker thread that parses and handles datagrams.
+     *
+     * @param id        The worker number, for the thread name.
+     * @param responses Where to put responses for the sender.
+     * @return The queue to hand the worker datagrams on.
+     */
+    private static BlockingQueue<Packet> startWorker(int id, BlockingQueue<Response> responses) {
+        BlockingQueue<Packet> queue = new ArrayBlockingQueue<>(WORKER_QUEUE);
+        Thread worker = new Thread(new Runnable() {
+            public void run() {
+                TrackerMessage message = new TrackerMessage(new StringInterner(INTERNED_STRINGS));
+                StringBuilder text = new StringBuilder(); // Reused to build query responses
+                while (true) {
+                    Packet packet;
+                    try {
+                        packet = queue.take();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    long start = System.nanoTime();
+                    try {
+                        if (message.parse(packet.buffer)) {
+                            handle(message, packet.sender, text, responses);
+                        } else {
+                            malformed.increment();
                         }
+                    } catch (RuntimeException e) {
+                        Log.error("Failed to handle message: " + e);
+                    } finally {
+                        packet.release();
                     }
+                    handleTime.recordSince(start);
+                }
+            }
+        }, "tracker-worker-" + id);
+        worker.start();
+        return queue;
+    }
 
-                    // Prepare the response
-                    String response = String.join(",", matchingPeers);
-                    byte[] respData = response.getBytes();
-
-                    // Send the response back to the requester
-                    socket.send(new DatagramPacket(respData, respData.length, packet.getAddress(), packet.getPort()));
-                    System.out.println("Sent response to query for file hash " + hash + ": " + response);
+    /**
+     * Handles one parsed message.
+     *
+     * @param message   The message.
+     * @param sender    Where the message came from.
+     * @param text      A buffer to build the response in.
+     * @param responses Where to put responses for the sender.
+     */
+    private static void handle(TrackerMessage message, SocketAddress sender, StringBuilder text,
+            BlockingQueue<Response> responses) {
+        switch (message.command) {
+            case TrackerMessage.REGISTER:
+                // Register a new seeder, or a leecher that serves the chunks it has so far;
+                // a partial peer registers again once complete
+                peers.register(message.fileHash, message.ip, message.port, message.partial);
+                journal.register(message.fileHash, message.ip, message.port, message.partial);
+                announces.increment();
+                if (VERBOSE) {
+                    Log.info((message.partial ? "Partial seeder" : "Seeder") + " registered for file hash "
+                            + message.fileHash + ": " + message.ip + ":" + message.port);
+                }
+                break;
 
+            case TrackerMessage.QUERY:
+                // Answer with a random sample of the swarm, never more than a few
+                // datagrams, so a popular file cannot turn queries into a flood
+                queries.increment();
+                if (message.count >= 0) {
+                    List<PeerRegistry.PeerInfo> sample = peers.sample(message.fileHash,
+                            Math.min(message.count, MAX_SAMPLE));
+                    for (ByteBuffer page : PeerPage.encode(sample, peers.swarmSize(message.fileHash))) {
+                        responses.add(new Response(page, sender));
+                    }
+                    if (VERBOSE) {
+                        Log.info("Sent " + sample.size() + " peers for file hash " + message.fileHash);
+                    }
                     break;
+                }
 
-                case "UPDATE":
-                    // Update the last seen timestamp for a seeder
-                    String updateFileHash = parts[1]; // File hash
-                    String updateIP = parts[2]; // Seeder IP
-                    int updatePort = Integer.parseInt(parts[3]); // Seeder port
+                // Older clients get "IP:Port" text, partial peers as IP:Port:p,
+                // cut to what fits in one datagram
+                text.setLength(0);
+                for (PeerRegistry.PeerInfo peer : peers.sample(message.fileHash, TEXT_SAMPLE)) {
+                    int mark = text.length();
+                    if (text.length() > 0) {
+                        text.append(',');
+                    }
+                    text.append(peer.ip).append(':').append(peer.port);
+                    if (peer.partial) {
+                        text.append(":p");
+                    }
+                    if (text.length() > PeerPage.MAX_SIZE) {
+                        text.setLength(mark);
+                        break;
+                    }
+                }
+
+                // Send the response back to the requester
+                byte[] respData = text.toString().getBytes();
+                responses.add(new Response(ByteBuffer.wrap(respData), sender));
+                if (VERBOSE) {
+                    Log.info("Sent response to query for file hash " + message.fileHash + ": " + text);
+                }
+                break;
 
-                    // Create a composite key (ip:port)
-                    String updateCompositeKey = updateIP + ":" + updatePort;
+            case TrackerMessage.UPDATE:
+                heartbeat(message.fileHash, message.ip, message.port);
+                break;
 
-                    // Update the last seen timestamp for this peer
-                    PeerInfo peerInfo = peers.get(updateCompositeKey);
-                    if (peerInfo != null) {
-                        peerInfo.lastSeen = System.currentTimeMillis();
-                        System.out.println("Updated last seen for seeder: " + updateIP + ":" + updatePort);
+            case TrackerMessage.ANNOUNCE:
+                // Many files of one peer at once
+                if (message.kind == TrackerMessage.REGISTER) {
+                    for (int i = 0; i < message.fileCount; i++) {
+                        peers.register(message.files[i], message.ip, message.port, message.partial);
+                        journal.register(message.files[i], message.ip, message.port, message.partial);
+                    }
+                    announces.add(message.fileCount);
+                    if (VERBOSE) {
+                        Log.info((message.partial ? "Partial seeder" : "Seeder") + " registered for "
+                                + message.fileCount + " files: " + message.ip + ":" + message.port);
+                    }
+                } else if (message.fileCount > 0) {
+                    for (int i = 0; i < message.fileCount; i++) {
+                        heartbeat(message.files[i], message.ip, message.port);
+                    }
+                } else {
+                    // Heartbeat for every file the peer has listed lately
+                    List<String> refreshed = peers.refreshAll(message.ip, message.port, CONFIRM_MILLIS);
+                    for (String fileHash : refreshed) {
+                        journal.update(fileHash, message.ip, message.port);
                     }
+                    heartbeats.increment();
+                    if (VERBOSE) {
+                        Log.info("Updated last seen for " + refreshed.size() + " files of seeder: "
+                                + message.ip + ":" + message.port);
+                    }
+                }
+                break;
+        }
+    }
 
-                    break;
+    /**
+     * Updates the last seen timestamp of a peer for a file; one we do not know,
+     * say because its registration was lost, is taken as a full seeder.
+     *
+     * @param fileHash The name or content hash of the file.
+     * @param ip       The IP address of the peer.
+     * @param port     The port of the peer.
+     */
+    private static void heartbeat(String fileHash, String ip, int port) {
+        heartbeats.increment();
+        if (peers.refresh(fileHash, ip, port)) {
+            if (VERBOSE) {
+                Log.info("Updated last seen for seeder: " + ip + ":" + port);
+            }
+        } else {
+            peers.register(fileHash, ip, port, false);
+            if (VERBOSE) {
+                Log.info("Seeder registered by heartbeat for file hash " + fileHash + ": " + ip + ":" + port);
             }
         }
+        journal.update(fileHash, ip, port);
+    }
+
+    /**
+     * Starts the thread that sends responses. It drains whatever has queued up
+     * since it last woke, so under load it sends many per wake-up.
+     *
+     * @param channel   The tracker's channel.
+     * @param responses The responses to send.
+     */
+    private static void startSender(DatagramChannel channel, BlockingQueue<Response> responses) {
+        Thread sender = new Thread(new Runnable() {
+            public void run() {
+                List<Response> batch = new ArrayList<>(SEND_BATCH);
+                while (true) {
+                    try {
+                        batch.add(responses.take());
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    responses.drainTo(batch, SEND_BATCH - 1);
+                    for (Response response : batch) {
+                        try {
+                            channel.send(response.data, response.recipient);
+                        } catch (Exception e) {
+                            Log.error("Failed to send response: " + e.getMessage());
+                        }
+                    }
+                    batch.clear();
+                }
+            }
+        }, "tracker-sender");
+        sender.start();
     }
 
     /**
      * Cleans up stale peers that haven't been seen for more than PEER_TIMEOUT
-     * milliseconds.
+     * milliseconds. Only peers whose deadline has come up are looked at.
      */
     private static void cleanupPeers() {
-        long now = System.currentTimeMillis();
-        Iterator<Map.Entry<String, PeerInfo>> iterator = peers.entrySet().iterator();
-
-        // Iterate through all peers and remove stale ones
-        while (iterator.hasNext()) {
-            Map.Entry<String, PeerInfo> entry = iterator.next();
-            if (now - entry.getValue().lastSeen > PEER_TIMEOUT) {
-                iterator.remove(); // Remove the stale peer
-                System.out.println("Removed stale peer: " + entry.getValue().ip + ":" + entry.getValue().port);
+        List<PeerRegistry.PeerInfo> expired = peers.expire();
+        if (VERBOSE) {
+            for (PeerRegistry.PeerInfo peer : expired) {
+                Log.info("Removed stale peer: " + peer.ip + ":" + peer.port);
             }
+        } else if (!expired.isEmpty()) {
+            Log.info("Removed " + expired.size() + " stale peers");
         }
     }
 
     /**
-     * Represents information about a peer (seeder).
+     * Writes a snapshot of the registry and restarts the journal.
      */
-    static class PeerInfo {
-        String ip; // IP address of the peer
-        int port; // Port of the peer
-        String fileHash; // File hash served by the peer
-        long lastSeen; // Timestamp of the last update
+    private static void saveState() {
+        try {
+            journal.snapshot(peers);
+        } catch (Exception e) {
+            Log.error("Failed to save tracker state: " + e.getMessage());
+        }
+    }
 
-        /**
-         * Constructor for PeerInfo.
-         *
-         * @param ip       The IP address of the peer.
-         * @param port     The port of the peer.
-         * @param fileHash The file hash served by the peer.
-         */
-        PeerInfo(String ip, int port, String fileHash) {
-            this.ip = ip;
-            this.port = port;
-            this.fileHash = fileHash;
-            this.lastSeen = System.currentTimeMillis(); // Set the last seen timestamp to now
+    /**
+     * Logs the number of peers and the message rates since the last call.
+     */
+    private static void logStats() {
+        long messages = received.get() - receivedLogged;
+        long droppedSince = dropped.get() - droppedLogged;
+        long malformedSince = malformed.get() - malformedLogged;
+        long announcesSince = announces.get() - announcesLogged;
+        long queriesSince = queries.get() - queriesLogged;
+        receivedLogged += messages;
+        droppedLogged += droppedSince;
+        malformedLogged += malformedSince;
+        announcesLogged += announcesSince;
+        queriesLogged += queriesSince;
+        Log.info("Tracker: " + peers.size() + " peers registered, " + messages / STATS_SECONDS + " messages/s ("
+                + announcesSince / STATS_SECONDS + " announces/s, " + queriesSince / STATS_SECONDS + " queries/s), "
+                + droppedSince + " dropped, " + malformedSince + " malformed; p99 handling time since start "
+                + handleTime.percentile(0.99) / 1000 + " us");
+    }
+
+    /**
+     * A receive buffer and the address of the datagram in it. Recycled through a
+     * pool.
+     */
+    static class Packet {
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(MAX_MESSAGE); // The datagram
+        final BlockingQueue<Packet> pool; // Where the packet goes back when handled
+        SocketAddress sender; // Where the datagram came from
+
+        Packet(BlockingQueue<Packet> pool) {
+            this.pool = pool;
         }
 
         /**
-         * Returns a string representation of the peer in the format "IP:Port".
-         *
-         * @return The string representation of the peer.
+         * Returns the packet to its pool.
          */
-        @Override
-        public String toString() {
-            return ip + ":" + port;
+        void release() {
+            sender = null;
+            pool.offer(this);
+        }
+    }
+
+    /**
+     * A response waiting to be sent.
+     */
+    static class Response {
+        final ByteBuffer data; // The datagram
+        final SocketAddress recipient; // Where it goes
+
+        Response(ByteBuffer data, SocketAddress recipient) {
+            this.data = data;
+            this.recipient = recipient;
         }
     }
 }
\ No newline at end of file
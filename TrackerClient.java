@@ -0,0 +1,320 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.security.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Talks to a cluster of trackers. Trackers do not know about each other:
+ * clients split the file hashes between them by consistent hashing over a
+ * static member list, so each tracker only sees the announces and queries of
+ * the files it owns, and adding trackers adds capacity.
+ *
+ * A member list is comma-separated "host[:port]" entries; a single host is a
+ * cluster of one, which is how the tracker was always addressed. Every member
+ * gets VIRTUAL_NODES points on a 64-bit ring. A file hash is owned by the first
+ * REPLICAS distinct members clockwise from its own point. Announces go to every
+ * owner, so each keeps a full view of the file's swarm; a query goes to one
+ * owner at random and moves on to the next if it does not answer.
+ *
+ * Announces for many files are batched: each tracker gets one ANNOUNCE
+ * datagram per MAX_DATAGRAM bytes of file names it owns, and a heartbeat is a
+ * single datagram per tracker however many files the peer shares. They all go
+ * out over one socket, opened on first use.
+ *
+ * Every client must use the same member list, in any order.
+ */
+public class TrackerClient {
+
+    public static final int DEFAULT_PORT = 5000; // Tracker port when a member gives none
+    private static final int VIRTUAL_NODES = 128; // Ring points per member, to even out the split
+    private static final int REPLICAS = 2; // Trackers that hold each file's swarm
+    private static final int QUERY_TIMEOUT = 2000; // How long to wait for one tracker to answer, in ms
+    private static final int PAGE_TIMEOUT = 500; // How long to wait for the rest of a paged answer, in ms
+    private static final long SUSPECT_MILLIS = 30000; // How long a tracker that failed to answer is tried last
+    private static final int MAX_DATAGRAM = 1200; // Bytes per ANNOUNCE, to stay clear of fragmentation
+
+    private static final ConcurrentHashMap<String, TrackerClient> CLIENTS = new ConcurrentHashMap<>(); // By member list
+
+    private final List<InetSocketAddress> members; // Trackers in the cluster
+    private final long[] points; // Ring positions, sorted
+    private final int[] owners; // Member index at each ring position
+    private final ConcurrentHashMap<InetSocketAddress, Long> suspects = new ConcurrentHashMap<>(); // Failed trackers
+                                                                                                   // and until when
+    private DatagramSocket announceSocket; // Shared by all announces; guarded by this
+
+    /**
+     * Returns the client for a member list, creating it the first time.
+     *
+     * @param memberList Comma-separated "host[:port]" entries.
+     * @return The client.
+     */
+    public static TrackerClient forMembers(String memberList) {
+        TrackerClient client = CLIENTS.get(memberList);
+        if (client == null) {
+            client = new TrackerClient(memberList);
+            TrackerClient raced = CLIENTS.putIfAbsent(memberList, client);
+            if (raced != null) {
+                client = raced;
+            }
+        }
+        return client;
+    }
+
+    /**
+     * Builds the ring for a member list.
+     *
+     * @param memberList Comma-separated "host[:port]" entries.
+     */
+    public TrackerClient(String memberList) {
+        // Sorted so that every client builds the same ring whatever the order
+        SortedSet<String> names = new TreeSet<>();
+        for (String entry : memberList.split(",")) {
+            if (!entry.trim().isEmpty()) {
+                names.add(entry.trim().contains(":") ? entry.trim() : entry.trim() + ":" + DEFAULT_PORT);
+            }
+        }
+        if (names.isEmpty()) {
+            throw new IllegalArgumentException("No trackers in \"" + memberList + "\"");
+        }
+
+        members = new ArrayList<>();
+        TreeMap<Long, Integer> ring = new TreeMap<>();
+        for (String name : names) {
+            int colon = name.lastIndexOf(':');
+            members.add(new InetSocketAddress(name.substring(0, colon), Integer.parseInt(name.substring(colon + 1))));
+            for (int i = 0; i < VIRTUAL_NODES; i++) {
+                ring.put(hash(name + "#" + i), members.size() - 1);
+            }
+        }
+        points = new long[ring.size()];
+        owners = new int[ring.size()];
+        int i = 0;
+        for (Map.Entry<Long, Integer> point : ring.entrySet()) {
+            points[i] = point.getKey();
+            owners[i++] = point.getValue();
+        }
+    }
+
+    /**
+     * @param fileHash The name or content hash of a file.
+     * @return The trackers that hold the file's swarm, primary first.
+     */
+    public List<InetSocketAddress> owners(String fileHash) {
+        int replicas = Math.min(REPLICAS, members.size());
+        List<InetSocketAddress> result = new ArrayList<>(replicas);
+        int start = Arrays.binarySearch(points, hash(fileHash));
+        if (start < 0) {
+            start = -start - 1; // First point after the key
+        }
+        for (int i = 0; result.size() < replicas; i++) {
+            InetSocketAddress member = members.get(owners[(start + i) % points.length]);
+            if (!result.contains(member)) {
+                result.add(member);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Registers a peer for files with every tracker that owns one of them.
+     *
+     * @param fileHashes The names and content hashes of the files being shared.
+     * @param ip         The IP address of the peer.
+     * @param port       The port on which the peer is listening.
+     * @param partial    Whether the peer only has some of the chunks so far.
+     * @throws IOException If an announce cannot be sent.
+     */
+    public void register(Collection<String> fileHashes, String ip, int port, boolean partial) throws IOException {
+        announce(fileHashes, ip, port, partial ? "PARTIAL" : "REGISTER");
+    }
+
+    /**
+     * Refreshes a peer's registration for each of the files listed, with every
+     * tracker that owns one of them. A tracker that has lost a registration
+     * takes it up again.
+     *
+     * @param fileHashes The names and content hashes of the files being shared.
+     * @param ip         The IP address of the peer.
+     * @param port       The port on which the peer is listening.
+     * @throws IOException If an announce cannot be sent.
+     */
+    public void update(Collection<String> fileHashes, String ip, int port) throws IOException {
+        announce(fileHashes, ip, port, "UPDATE");
+    }
+
+    /**
+     * Sends one heartbeat to each tracker that owns any of a peer's files,
+     * refreshing all the files the peer has listed with it lately. Files must
+     * still be listed with update every few minutes.
+     *
+     * @param fileHashes The names and content hashes of the files being shared.
+     * @param ip         The IP address of the peer.
+     * @param port       The port on which the peer is listening.
+     * @throws IOException If a heartbeat cannot be sent.
+     */
+    public void heartbeat(Collection<String> fileHashes, String ip, int port) throws IOException {
+        Set<InetSocketAddress> trackers = new LinkedHashSet<>();
+        for (String fileHash : fileHashes) {
+            trackers.addAll(owners(fileHash));
+        }
+        byte[] data = ("ANNOUNCE|" + ip + "|" + port + "|UPDATE").getBytes();
+        for (InetSocketAddress tracker : trackers) {
+            send(data, data.length, tracker);
+        }
+    }
+
+    /**
+     * Asks the trackers that own a file for a random sample of its peers,
+     * trying them in random order until one answers; trackers that recently
+     * failed to answer are tried last. The answer may come in several
+     * datagrams; pages that do not arrive shortly after the first are given up
+     * on.
+     *
+     * @param fileHash The name or content hash of the file.
+     * @param count    The most peers wanted.
+     * @return Peers in the format "IP:Port", or "IP:Port:p" if partial.
+     * @throws IOException If no tracker answers.
+     */
+    public List<String> query(String fileHash, int count) throws IOException {
+        List<InetSocketAddress> owners = owners(fileHash);
+        Collections.shuffle(owners); // Spread queries over the replicas
+        long now = System.currentTimeMillis();
+        List<InetSocketAddress> order = new ArrayList<>();
+        for (InetSocketAddress owner : owners) {
+            Long until = suspects.get(owner);
+            if (until == null || until < now) {
+                order.add(owner);
+            }
+        }
+        for (InetSocketAddress owner : owners) {
+            if (!order.contains(owner)) {
+                order.add(owner);
+            }
+        }
+
+        byte[] data = ("QUERY|" + fileHash + "|" + count).getBytes();
+        IOException failure = null;
+        for (InetSocketAddress owner : order) {
+            try (DatagramSocket socket = new DatagramSocket()) {
+                // Connected, so a tracker that is down fails at once when its host
+                // says the port is unreachable, instead of timing out
+                socket.connect(owner);
+                socket.setSoTimeout(QUERY_TIMEOUT);
+                socket.send(new DatagramPacket(data, data.length));
+                List<String> peers = receivePeers(socket);
+                suspects.remove(owner);
+                return peers;
+            } catch (IOException e) {
+                Log.error("Tracker " + owner + " did not answer: " + e);
+                suspects.put(owner, System.currentTimeMillis() + SUSPECT_MILLIS);
+                failure = e;
+            }
+        }
+        throw failure;
+    }
+
+    /**
+     * Reads a query answer, binary or text.
+     */
+    private static List<String> receivePeers(DatagramSocket socket) throws IOException {
+        byte[] buffer = new byte[65536];
+        DatagramPacket response = new DatagramPacket(buffer, buffer.length);
+        socket.receive(response);
+
+        // A tracker that understands the count answers in binary pages
+        PeerPage page = PeerPage.decode(response.getData(), response.getLength());
+        if (page != null) {
+            List<String> peers = new ArrayList<>(page.peers);
+            BitSet received = new BitSet();
+            received.set(page.page);
+            socket.setSoTimeout(PAGE_TIMEOUT);
+            try {
+                while (received.cardinality() < page.pages) {
+                    socket.receive(response);
+                    PeerPage next = PeerPage.decode(response.getData(), response.getLength());
+                    if (next != null && !received.get(next.page)) {
+                        received.set(next.page);
+                        peers.addAll(next.peers);
+                    }
+                }
+            } catch (SocketTimeoutException e) {
+                // Lost pages; make do with the peers that arrived
+            }
+            return peers;
+        }
+
+        // Older trackers answer with text; trim any extra whitespace or null bytes
+        String responseData = new String(response.getData(), 0, response.getLength()).trim();
+        if (responseData.isEmpty()) {
+            return Collections.emptyList(); // No seeders found
+        }
+        return Arrays.asList(responseData.split(","));
+    }
+
+    /**
+     * Sends each tracker the files it owns in as few ANNOUNCE datagrams as fit.
+     */
+    private void announce(Collection<String> fileHashes, String ip, int port, String kind) throws IOException {
+        Map<InetSocketAddress, List<String>> byTracker = new LinkedHashMap<>();
+        for (String fileHash : fileHashes) {
+            for (InetSocketAddress owner : owners(fileHash)) {
+                List<String> owned = byTracker.get(owner);
+                if (owned == null) {
+                    owned = new ArrayList<>();
+                    byTracker.put(owner, owned);
+                }
+                owned.add(fileHash);
+            }
+        }
+
+        byte[] header = ("ANNOUNCE|" + ip + "|" + port + "|" + kind).getBytes("UTF-8");
+        ByteBuffer datagram = ByteBuffer.allocate(MAX_DATAGRAM);
+        for (Map.Entry<InetSocketAddress, List<String>> entry : byTracker.entrySet()) {
+            datagram.clear();
+            datagram.put(header);
+            int files = 0;
+            for (String fileHash : entry.getValue()) {
+                byte[] name = fileHash.getBytes("UTF-8");
+                if (header.length + 1 + name.length > MAX_DATAGRAM) {
+                    Log.error("File name too long to announce: " + fileHash);
+                    continue;
+                }
+                if (datagram.remaining() < 1 + name.length || files == TrackerMessage.MAX_FILES) {
+                    send(datagram.array(), datagram.position(), entry.getKey());
+                    datagram.clear();
+                    datagram.put(header);
+                    files = 0;
+                }
+                datagram.put((byte) '|').put(name);
+                files++;
+            }
+            if (files > 0) {
+                send(datagram.array(), datagram.position(), entry.getKey());
+            }
+        }
+    }
+
+    /**
+     * Sends a datagram over the shared announce socket.
+     */
+    private synchronized void send(byte[] data, int length, InetSocketAddress tracker) throws IOException {
+        if (announceSocket == null) {
+            announceSocket = new DatagramSocket();
+        }
+        announceSocket.send(new DatagramPacket(data, length, tracker));
+    }
+
+    /**
+     * Places a string on the ring.
+     */
+    private static long hash(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(key.getBytes("UTF-8"));
+            return ByteBuffer.wrap(digest).getLong();
+        } catch (NoSuchAlgorithmException | UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,251 @@
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Keeps the tracker's registrations on disk so a restarted tracker can answer
+ * queries at once instead of waiting for every seeder's next heartbeat.
+ *
+ * Every registration and heartbeat is appended to a journal. Periodically the
+ * whole registry is written to a snapshot and the journal started afresh, so
+ * the journal stays short: at most about twice as many records as there are
+ * registrations, however busy the tracker is. On startup the snapshot is loaded and the journal
+ * replayed on top of it.
+ *
+ * Files in the state directory:
+ *
+ * <pre>
+ *   tracker.snapshot    the registry as of the last snapshot
+ *   tracker.journal     records since the last snapshot
+ *   tracker.journal.1   records from before a snapshot still being written
+ * </pre>
+ *
+ * Both kinds of file are an int MAGIC followed by records: byte type, long
+ * time, UTF fileHash, UTF ip, int port. Appends are buffered and flushed
+ * every second, so a crash loses at most the last second of heartbeats; a
+ * torn record at the end of a journal is ignored on replay, and a damaged
+ * record ends the replay of its file.
+ */
+public class TrackerJournal implements Closeable {
+
+    private static final int MAGIC = 0xB17E7A0C; // Marks a tracker state file
+    private static final byte REGISTER = 1; // A full seeder registered
+    private static final byte REGISTER_PARTIAL = 2; // A peer that is still downloading registered
+    private static final byte UPDATE = 3; // A heartbeat
+    private static final int BUFFER_SIZE = 64 * 1024; // Bytes of records buffered before a write
+    private static final long MIN_RECORDS = 100000; // Journal records always allowed before a snapshot
+
+    private final Path snapshotFile; // The last complete snapshot
+    private final Path journalFile; // Records since the last snapshot
+    private final Path previousJournalFile; // Records from before a snapshot in progress
+    private DataOutputStream journal; // Open journal; guarded by this
+    private long records; // Records in the open journal; guarded by this
+
+    /**
+     * @param directory Where the state files live.
+     */
+    public TrackerJournal(Path directory) {
+        this.snapshotFile = directory.resolve("tracker.snapshot");
+        this.journalFile = directory.resolve("tracker.journal");
+        this.previousJournalFile = directory.resolve("tracker.journal.1");
+    }
+
+    /**
+     * Loads the saved state into a registry, leaving out peers that had already
+     * timed out. Nothing is recorded until the next snapshot, which the caller
+     * should take straight away; it covers whatever happens in between, since
+     * that is all in the registry.
+     *
+     * @param registry The registry to fill.
+     * @param timeout  How long a peer stays registered without a heartbeat, in ms.
+     * @return The number of peers restored.
+     * @throws IOException If the state cannot be read.
+     */
+    public int recover(PeerRegistry registry, long timeout) throws IOException {
+        // Latest state of every peer, in the order the files were written
+        Map<String, PeerRegistry.PeerInfo> state = new HashMap<>();
+        replay(snapshotFile, state);
+        replay(previousJournalFile, state);
+        replay(journalFile, state);
+
+        long now = System.currentTimeMillis();
+        int restored = 0;
+        for (PeerRegistry.PeerInfo peer : state.values()) {
+            if (now - peer.lastSeen <= timeout) {
+                registry.register(peer.fileHash, peer.ip, peer.port, peer.partial, peer.lastSeen);
+                restored++;
+            }
+        }
+        return restored;
+    }
+
+    /**
+     * Records a registration.
+     *
+     * @param fileHash The name or content hash of the file.
+     * @param ip       The IP address of the peer.
+     * @param port     The port of the peer.
+     * @param partial  Whether the peer is still downloading the file.
+     */
+    public synchronized void register(String fileHash, String ip, int port, boolean partial) {
+        append(partial ? REGISTER_PARTIAL : REGISTER, fileHash, ip, port);
+    }
+
+    /**
+     * Records a heartbeat.
+     *
+     * @param fileHash The name or content hash of the file.
+     * @param ip       The IP address of the peer.
+     * @param port     The port of the peer.
+     */
+    public synchronized void update(String fileHash, String ip, int port) {
+        append(UPDATE, fileHash, ip, port);
+    }
+
+    /**
+     * @param registered The number of registrations.
+     * @return true if the journal has grown long enough that replaying it would
+     *         take noticeably longer than loading a snapshot.
+     */
+    public synchronized boolean isLong(int registered) {
+        return records > Math.max(MIN_RECORDS, 2L * registered);
+    }
+
+    /**
+     * Hands buffered records to the operating system.
+     */
+    public synchronized void flush() {
+        try {
+            if (journal != null) {
+                journal.flush();
+            }
+        } catch (IOException e) {
+            Log.error("Failed to write tracker journal: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Writes the whole registry to a new snapshot and starts a new journal.
+     * Records that arrive meanwhile go to the new journal, so nothing is lost
+     * if the tracker stops halfway.
+     *
+     * @param registry The registry to save.
+     * @throws IOException If the snapshot cannot be written.
+     */
+    public void snapshot(PeerRegistry registry) throws IOException {
+        // Switch journals first, so the snapshot covers everything in the old one
+        synchronized (this) {
+            if (journal != null) {
+                journal.close();
+            }
+            if (Files.exists(journalFile)) {
+                Files.move(journalFile, previousJournalFile, StandardCopyOption.REPLACE_EXISTING);
+            }
+            journal = openJournal();
+            records = 0;
+        }
+
+        Path temporary = snapshotFile.resolveSibling("tracker.snapshot.tmp");
+        try (FileOutputStream file = new FileOutputStream(temporary.toFile())) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file, BUFFER_SIZE));
+            out.writeInt(MAGIC);
+            for (PeerRegistry.PeerInfo peer : registry.all()) {
+                write(out, peer.partial ? REGISTER_PARTIAL : REGISTER, peer.lastSeen, peer.fileHash, peer.ip,
+                        peer.port);
+            }
+            out.flush();
+            file.getFD().sync();
+        }
+        Files.move(temporary, snapshotFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        Files.deleteIfExists(previousJournalFile);
+    }
+
+    /**
+     * Flushes and closes the journal.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (journal != null) {
+            journal.close();
+            journal = null;
+        }
+    }
+
+    private DataOutputStream openJournal() throws IOException {
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(journalFile.toFile()), BUFFER_SIZE));
+        out.writeInt(MAGIC);
+        return out;
+    }
+
+    /**
+     * Appends a record to the journal. A failed write is reported and the
+     * tracker carries on; the next snapshot covers the lost record.
+     */
+    private void append(byte type, String fileHash, String ip, int port) {
+        if (journal == null) {
+            return;
+        }
+        try {
+            write(journal, type, System.currentTimeMillis(), fileHash, ip, port);
+            records++;
+        } catch (IOException e) {
+            Log.error("Failed to write tracker journal: " + e.getMessage());
+        }
+    }
+
+    private static void write(DataOutputStream out, byte type, long time, String fileHash, String ip, int port)
+            throws IOException {
+        out.writeByte(type);
+        out.writeLong(time);
+        out.writeUTF(fileHash);
+        out.writeUTF(ip);
+        out.writeInt(port);
+    }
+
+    /**
+     * Applies the records of one state file, if it exists, to the latest state
+     * of each peer.
+     */
+    private static void replay(Path path, Map<String, PeerRegistry.PeerInfo> state) throws IOException {
+        if (!Files.exists(path)) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(path.toFile()), BUFFER_SIZE))) {
+            if (in.readInt() != MAGIC) {
+                Log.error("Ignoring " + path + ": not a tracker state file");
+                return;
+            }
+            while (true) {
+                byte type = in.readByte();
+                if (type != REGISTER && type != REGISTER_PARTIAL && type != UPDATE) {
+                    throw new IOException("unknown record type " + type);
+                }
+                long time = in.readLong();
+                String fileHash = in.readUTF();
+                String ip = in.readUTF();
+                int port = in.readInt();
+
+                String key = fileHash + "|" + ip + ":" + port;
+                PeerRegistry.PeerInfo peer = state.get(key);
+                if (peer == null) {
+                    // A heartbeat from a peer we never saw register counts as a full seeder
+                    peer = new PeerRegistry.PeerInfo(ip, port, fileHash, type == REGISTER_PARTIAL);
+                    peer.lastSeen = time;
+                    state.put(key, peer);
+                    continue;
+                }
+                if (type != UPDATE) {
+                    peer.partial = type == REGISTER_PARTIAL;
+                }
+                peer.lastSeen = Math.max(peer.lastSeen, time);
+            }
+        } catch (EOFException e) {
+            // End of the file, or a record cut short by a crash
+        } catch (IOException e) {
+            // A damaged record; keep what was read before it rather than fail recovery
+            Log.error("Stopped replaying " + path + ": " + e.getMessage());
+        }
+    }
+}
\ No newline at end of file
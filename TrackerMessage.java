@@ -0,0 +1,232 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A tracker request, parsed in place from the bytes of a datagram. Messages are
+ * '|'-separated text:
+ *
+ * <pre>
+ *   REGISTER|fileHash|ip|port[|PARTIAL]
+ *   UPDATE|fileHash|ip|port
+ *   QUERY|fileHash[|count]
+ *   ANNOUNCE|ip|port|REGISTER|fileHash|fileHash|...
+ *   ANNOUNCE|ip|port|PARTIAL|fileHash|fileHash|...
+ *   ANNOUNCE|ip|port|UPDATE[|fileHash|fileHash|...]
+ * </pre>
+ *
+ * ANNOUNCE registers or refreshes many files of one peer in a single datagram.
+ * An UPDATE that lists no files is a heartbeat for every file the peer shares.
+ *
+ * A QUERY with a count asks for a binary answer (see PeerPage) with a random
+ * sample of at most that many peers; without one, for the older text answer.
+ *
+ * One instance is reused for every message a worker handles; fields are looked
+ * up in the worker's StringInterner so steady traffic allocates nothing.
+ */
+public class TrackerMessage {
+
+    // Commands
+    public static final int REGISTER = 1; // Add a peer for a file
+    public static final int QUERY = 2; // List the peers of a file
+    public static final int UPDATE = 3; // Heartbeat from a peer
+    public static final int ANNOUNCE = 4; // Register or refresh many files of a peer
+
+    public static final int MAX_FILES = 256; // Files per ANNOUNCE; more are ignored
+    private static final byte SEPARATOR = '|'; // Between fields
+    private static final int MAX_FIELDS = 4 + MAX_FILES; // Fields in the longest message
+    private static final byte[] ANNOUNCE_NAME = ascii("ANNOUNCE");
+    private static final byte[] REGISTER_NAME = ascii("REGISTER");
+    private static final byte[] QUERY_NAME = ascii("QUERY");
+    private static final byte[] UPDATE_NAME = ascii("UPDATE");
+    private static final byte[] PARTIAL_NAME = ascii("PARTIAL");
+
+    private final StringInterner interner; // Turns fields into shared Strings
+    private final int[] starts = new int[MAX_FIELDS]; // First byte of each field
+    private final int[] ends = new int[MAX_FIELDS]; // Byte after each field
+
+    int command; // REGISTER, QUERY, UPDATE or ANNOUNCE
+    String fileHash; // Name or content hash of the file; for ANNOUNCE the first listed, if any
+    String ip; // Peer IP, for all but QUERY
+    int port; // Peer port, for all but QUERY
+    boolean partial; // Peer is still downloading, for REGISTER and ANNOUNCE
+    int count; // Peers wanted, for QUERY; -1 for a text answer
+    int kind; // REGISTER or UPDATE, for ANNOUNCE
+    final String[] files = new String[MAX_FILES]; // Files listed, for ANNOUNCE
+    int fileCount; // Number of files listed, for ANNOUNCE
+
+    /**
+     * @param interner The interner to look fields up in.
+     */
+    public TrackerMessage(StringInterner interner) {
+        this.interner = interner;
+    }
+
+    /**
+     * Parses the message between the position and limit of a buffer.
+     *
+     * @param buffer The datagram.
+     * @return false if the message is malformed or the command is unknown.
+     */
+    public boolean parse(ByteBuffer buffer) {
+        int fields = split(buffer, starts, ends);
+        if (fields < 2) {
+            return false;
+        }
+        if (fieldIs(buffer, 0, REGISTER_NAME)) {
+            command = REGISTER;
+        } else if (fieldIs(buffer, 0, UPDATE_NAME)) {
+            command = UPDATE;
+        } else if (fieldIs(buffer, 0, QUERY_NAME)) {
+            command = QUERY;
+        } else if (fieldIs(buffer, 0, ANNOUNCE_NAME)) {
+            command = ANNOUNCE;
+            return parseAnnounce(buffer, fields);
+        } else {
+            return false;
+        }
+        fileHash = interner.intern(buffer, starts[1], ends[1]);
+        ip = null;
+        port = -1;
+        partial = false;
+        count = -1;
+        fileCount = 0;
+        if (command == QUERY) {
+            if (fields > 2) {
+                count = parseNumber(buffer, starts[2], ends[2]);
+                return count >= 0;
+            }
+            return true;
+        }
+
+        if (fields < 4) {
+            return false;
+        }
+        ip = interner.intern(buffer, starts[2], ends[2]);
+        port = parseNumber(buffer, starts[3], ends[3]);
+        partial = command == REGISTER && fields > 4 && fieldIs(buffer, 4, PARTIAL_NAME);
+        return port >= 0;
+    }
+
+    /**
+     * Parses the fields of an ANNOUNCE after the command.
+     */
+    private boolean parseAnnounce(ByteBuffer buffer, int fields) {
+        if (fields < 4) {
+            return false;
+        }
+        ip = interner.intern(buffer, starts[1], ends[1]);
+        port = parseNumber(buffer, starts[2], ends[2]);
+        count = -1;
+        if (fieldIs(buffer, 3, REGISTER_NAME)) {
+            kind = REGISTER;
+            partial = false;
+        } else if (fieldIs(buffer, 3, PARTIAL_NAME)) {
+            kind = REGISTER;
+            partial = true;
+        } else if (fieldIs(buffer, 3, UPDATE_NAME)) {
+            kind = UPDATE;
+            partial = false;
+        } else {
+            return false;
+        }
+        fileCount = 0;
+        for (int field = 4; field < fields; field++) {
+            if (ends[field] > starts[field]) {
+                files[fileCount++] = interner.intern(buffer, starts[field], ends[field]);
+            }
+        }
+        fileHash = fileCount > 0 ? files[0] : null;
+        return port >= 0 && (fileCount > 0 || kind == UPDATE);
+    }
+
+    /**
+     * Hashes the peer a message is about, its "ip|port" fields, so that all
+     * messages from one peer can be handled on the same thread and stay in
+     * order. The peer comes after the file in REGISTER and UPDATE and right
+     * after the command in ANNOUNCE; the same peer hashes the same either way.
+     * Needs no allocation and no full parse.
+     *
+     * @param buffer The datagram, between its position and limit.
+     * @return The hash, or 0 if the message names no peer.
+     */
+    public static int peerHash(ByteBuffer buffer) {
+        if (!buffer.hasRemaining()) {
+            return 0;
+        }
+        int first = buffer.get(buffer.position()) == ANNOUNCE_NAME[0] ? 1 : 2; // Field holding the IP
+        int hash = 0;
+        int field = 0;
+        for (int i = buffer.position(); i < buffer.limit(); i++) {
+            byte b = buffer.get(i);
+            if (b == SEPARATOR) {
+                if (++field == first + 2) {
+                    break;
+                }
+            }
+            if (field >= first) {
+                hash = 31 * hash + b;
+            }
+        }
+        return field >= first + 1 ? hash : 0;
+    }
+
+    /**
+     * Finds the fields of a message.
+     *
+     * @return The number of fields found, at most MAX_FIELDS.
+     */
+    private static int split(ByteBuffer buffer, int[] starts, int[] ends) {
+        int fields = 0;
+        starts[0] = buffer.position();
+        for (int i = buffer.position(); i < buffer.limit(); i++) {
+            if (buffer.get(i) == SEPARATOR) {
+                ends[fields++] = i;
+                if (fields == MAX_FIELDS) {
+                    return fields; // Anything after the last known field is ignored
+                }
+                starts[fields] = i + 1;
+            }
+        }
+        ends[fields++] = buffer.limit();
+        return fields;
+    }
+
+    /**
+     * Compares a field with a constant.
+     */
+    private boolean fieldIs(ByteBuffer buffer, int field, byte[] name) {
+        if (ends[field] - starts[field] != name.length) {
+            return false;
+        }
+        for (int i = 0; i < name.length; i++) {
+            if (buffer.get(starts[field] + i) != name[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Parses a port number or peer count.
+     *
+     * @return The number, or -1 if the field is not one from 0 to 65535.
+     */
+    private static int parseNumber(ByteBuffer buffer, int from, int to) {
+        if (from == to || to - from > 5) {
+            return -1;
+        }
+        int port = 0;
+        for (int i = from; i < to; i++) {
+            int digit = buffer.get(i) - '0';
+            if (digit < 0 || digit > 9) {
+                return -1;
+            }
+            port = port * 10 + digit;
+        }
+        return port <= 0xFFFF ? port : -1;
+    }
+
+    private static byte[] ascii(String text) {
+        return text.getBytes(StandardCharsets.US_ASCII);
+    }
+}
\ No newline at end of file
@@ -0,0 +1,400 @@
+import java.util.*;
+
+/**
+ * Decides which connections a chunk server sends on next, and how many bytes
+ * each may send.
+ *
+ * Upload bandwidth is shared between peers, meaning client hosts, not
+ * connections, so a leecher that opens many connections gets no more than one
+ * that opens a single one. Sharing is by deficit round robin: in each round
+ * every unchoked peer with something to send earns quantum times its weight in
+ * credit and spends it on its connections in turn. A peer that runs out of data
+ * loses its leftover credit, so idle peers cannot save up for a burst.
+ *
+ * A global token bucket caps the total rate, if one is set. It holds
+ * BURST_SECONDS worth of bytes, but at least MIN_BURST, which bounds how far
+ * the seeder can run ahead of the cap. A round that the cap cuts short carries
+ * on where it stopped once there are tokens again, so the peers at the front
+ * of the round do not get all of a tight budget.
+ *
+ * If unchokeSlots is set, only that many peers are served at once. A peer that
+ * wants data while every slot is taken waits its turn. Once a peer has held a
+ * slot for SLOT_MILLIS it gives the slot up to the peer that has waited
+ * longest, so every waiting peer is served within a bounded time and the
+ * served ones each get a large enough share to see a steady chunk rate.
+ *
+ * Each connection is represented by a Flow, which the server updates whenever
+ * the connection gains or runs out of output, or its socket buffer fills or
+ * drains. Not thread-safe: use from the server's selector thread only.
+ */
+public class UploadScheduler {
+
+    // Constants
+    private static final double BURST_SECONDS = 0.05; // Bytes the token bucket holds, in seconds of the rate
+    private static final long MIN_BURST = 16 * 1024; // Fewest bytes the token bucket holds
+    private static final long SLOT_MILLIS = 1000; // How long a peer keeps its slot while others wait
+
+    // Metrics, shared by every scheduler in the process
+    private static final Metrics.Counter UNCHOKED = Metrics.gauge("seeder_unchoked_peers",
+            "Peers being sent data");
+    private static final Metrics.Counter WAITING = Metrics.gauge("seeder_choked_peers",
+            "Peers with data to send that are waiting for an unchoke slot");
+    private static final Metrics.Counter THROTTLED = Metrics.counter("seeder_throttled_rounds_total",
+            "Upload rounds cut short by the rate limit");
+
+    private final long bytesPerSecond; // Total upload rate, or 0 for unlimited
+    private final int unchokeSlots; // Peers served at once, or 0 for all of them
+    private final long quantum; // Credit a peer of weight 1 earns per round
+    private final long burst; // Capacity of the token bucket
+    private final Map<String, Integer> weights; // Weight by host; others have weight 1
+    private final Map<String, Peer> peers = new HashMap<>(); // Peers with open connections, by host
+    private final ArrayDeque<Peer> unchoked = new ArrayDeque<>(); // Peers being served, longest first
+    private final ArrayDeque<Peer> waiting = new ArrayDeque<>(); // Choked peers with output, longest first
+    private final ArrayDeque<Peer> round = new ArrayDeque<>(); // Peers still to be visited this round
+
+    private double tokens; // Bytes the rate limit allows right now
+    private long refilledAt = System.nanoTime(); // When tokens were last topped up
+
+    /**
+     * Creates a scheduler.
+     *
+     * @param bytesPerSecond The total upload rate, or 0 for no limit.
+     * @param unchokeSlots   The number of peers served at once, or 0 for no
+     *                       limit.
+     * @param quantum        The bytes a peer of weight 1 may send per round.
+     * @param weights        The share of bandwidth of particular hosts relative
+     *                       to the default weight of 1.
+     */
+    public UploadScheduler(long bytesPerSecond, int unchokeSlots, long quantum, Map<String, Integer> weights) {
+        this.bytesPerSecond = bytesPerSecond;
+        this.unchokeSlots = unchokeSlots;
+        this.quantum = quantum;
+        this.burst = Math.max(MIN_BURST, (long) (bytesPerSecond * BURST_SECONDS));
+        this.weights = new HashMap<>(weights);
+        this.tokens = burst;
+    }
+
+    /**
+     * Parses weights given as comma-separated "host=weight" entries.
+     *
+     * @param spec The entries, or null or empty for none.
+     * @return The weights by host.
+     * @throws IllegalArgumentException If an entry is malformed.
+     */
+    public static Map<String, Integer> parseWeights(String spec) {
+        Map<String, Integer> weights = new HashMap<>();
+        if (spec == null) {
+            return weights;
+        }
+        for (String entry : spec.split(",")) {
+            if (entry.trim().isEmpty()) {
+                continue;
+            }
+            int equals = entry.indexOf('=');
+            int weight = equals < 0 ? 0 : Integer.parseInt(entry.substring(equals + 1).trim());
+            if (weight < 1) {
+                throw new IllegalArgumentException("Invalid peer weight \"" + entry.trim() + "\"");
+            }
+            weights.put(entry.substring(0, equals).trim(), weight);
+        }
+        return weights;
+    }
+
+    /**
+     * Adds a connection.
+     *
+     * @param host       The client host the connection comes from.
+     * @param attachment The server's state for the connection.
+     * @return The connection's flow.
+     */
+    public Flow open(String host, Object attachment) {
+        Peer peer = peers.get(host);
+        if (peer == null) {
+            Integer weight = weights.get(host);
+            peer = new Peer(host, weight == null ? 1 : weight);
+            peers.put(host, peer);
+        }
+        peer.connections++;
+        return new Flow(peer, attachment);
+    }
+
+    /**
+     * Removes a closed connection.
+     *
+     * @param flow The connection's flow.
+     */
+    public void close(Flow flow) {
+        update(flow, false, false);
+        Peer peer = flow.peer;
+        if (--peer.connections == 0) {
+            peers.remove(peer.host);
+        }
+    }
+
+    /**
+     * Records a change in what a connection has to send.
+     *
+     * @param flow    The connection's flow.
+     * @param pending Whether the connection has output queued or in progress.
+     * @param blocked Whether its socket buffer is full.
+     */
+    public void update(Flow flow, boolean pending, boolean blocked) {
+        Peer peer = flow.peer;
+        if (pending != flow.pending) {
+            flow.pending = pending;
+            peer.pending += pending ? 1 : -1;
+            if (peer.pending == 1 && pending) {
+                interested(peer);
+            } else if (peer.pending == 0) {
+                uninterested(peer);
+            }
+        }
+        flow.blocked = blocked;
+
+        boolean ready = pending && !blocked;
+        if (ready && !flow.ready) {
+            peer.ready.add(flow);
+        } else if (!ready && flow.ready) {
+            peer.ready.remove(flow);
+        }
+        flow.ready = ready;
+    }
+
+    /**
+     * Starts a round: frees the slots of peers whose turn is over, tops up the
+     * token bucket and, unless the last round was cut short, lines up the
+     * unchoked peers that have a connection ready to send on.
+     */
+    public void startRound() {
+        long now = System.nanoTime();
+        int swaps = waiting.size(); // So a peer just sent to the back of the line stays there
+        while (swaps-- > 0 && !unchoked.isEmpty() && now - unchoked.peekFirst().unchokedAt >= SLOT_MILLIS * 1000000) {
+            Peer expired = unchoked.pollFirst();
+            expired.unchoked = false;
+            round.remove(expired);
+            waiting.addLast(expired);
+            unchoke(waiting.pollFirst(), now);
+        }
+
+        refill(now);
+        if (!round.isEmpty()) {
+            return; // Finish the round the rate limit interrupted
+        }
+        for (Peer peer : unchokeSlots == 0 ? peers.values() : unchoked) {
+            if (!peer.ready.isEmpty()) {
+                round.add(peer);
+            }
+        }
+    }
+
+    /**
+     * Picks the next connection to send on in this round.
+     *
+     * @return The flow, or null once the round is over or the rate limit is
+     *         reached.
+     */
+    public Flow next() {
+        if (bytesPerSecond > 0 && tokens < 1) {
+            if (!round.isEmpty()) {
+                THROTTLED.increment();
+            }
+            return null;
+        }
+        while (!round.isEmpty()) {
+            Peer peer = round.peekFirst();
+            if (!peer.visited) {
+                peer.visited = true;
+                peer.deficit += quantum * peer.weight;
+            }
+            if (peer.deficit > 0 && !peer.ready.isEmpty()) {
+                return peer.ready.peekFirst();
+            }
+            // Used up its credit, or has nothing left that can go out and loses the rest
+            peer.visited = false;
+            if (peer.ready.isEmpty()) {
+                peer.deficit = 0;
+            }
+            round.pollFirst();
+        }
+        return null;
+    }
+
+    /**
+     * @param flow The flow returned by next.
+     * @return The most bytes the connection may send now.
+     */
+    public long allowance(Flow flow) {
+        long allowed = flow.peer.deficit;
+        if (bytesPerSecond > 0) {
+            allowed = Math.min(allowed, (long) tokens);
+        }
+        return allowed;
+    }
+
+    /**
+     * Records what a connection sent. Call update first if the send changed
+     * whether it has more to send.
+     *
+     * @param flow  The flow returned by next.
+     * @param bytes The number of bytes sent.
+     */
+    public void sent(Flow flow, long bytes) {
+        Peer peer = flow.peer;
+        peer.deficit -= bytes;
+        tokens -= bytes;
+        if (flow.ready && peer.ready.peekFirst() == flow) {
+            // The peer's next connection goes next
+            peer.ready.addLast(peer.ready.pollFirst());
+        }
+    }
+
+    /**
+     * Tells the server how long it may wait for network events before the next
+     * round.
+     *
+     * @return 0 if there is data that may be sent right away; otherwise the time
+     *         until the rate limit allows more or a slot changes hands, whichever
+     *         comes first; or -1 if neither is awaited.
+     */
+    public long waitMillis() {
+        long now = System.nanoTime();
+        long wait = -1;
+        if (!waiting.isEmpty() && !unchoked.isEmpty()) {
+            wait = Math.max(0, SLOT_MILLIS - (now - unchoked.peekFirst().unchokedAt) / 1000000);
+        }
+
+        boolean ready = false;
+        for (Peer peer : unchokeSlots == 0 ? peers.values() : unchoked) {
+            ready |= !peer.ready.isEmpty();
+        }
+        if (!ready) {
+            return wait;
+        }
+        long tokenWait = 0;
+        if (bytesPerSecond > 0) {
+            refill(now);
+            double wanted = Math.min(quantum, burst) - tokens; // Wait for enough to be worth a write
+            tokenWait = wanted <= 0 ? 0 : Math.max(1, (long) Math.ceil(wanted * 1000 / bytesPerSecond));
+        }
+        return wait < 0 ? tokenWait : Math.min(wait, tokenWait);
+    }
+
+    /**
+     * @return A short description of the scheduler state, for logging.
+     */
+    public String stats() {
+        return peers.size() + " peers, " + (unchokeSlots == 0 ? peers.size() : unchoked.size()) + " unchoked, "
+                + waiting.size() + " waiting";
+    }
+
+    /**
+     * Adds tokens for the time since the last refill, up to the burst size.
+     */
+    private void refill(long now) {
+        if (bytesPerSecond > 0) {
+            tokens = Math.min(burst, tokens + (now - refilledAt) / 1e9 * bytesPerSecond);
+        }
+        refilledAt = now;
+    }
+
+    /**
+     * Gives a peer that now has data to send a slot, or puts it in line for one.
+     */
+    private void interested(Peer peer) {
+        if (unchokeSlots == 0) {
+            return;
+        }
+        if (unchoked.size() < unchokeSlots) {
+            unchoke(peer, System.nanoTime());
+            UNCHOKED.increment();
+        } else {
+            waiting.addLast(peer);
+            WAITING.increment();
+        }
+    }
+
+    /**
+     * Frees the slot of a peer that has nothing more to send, or takes it out of
+     * line.
+     */
+    private void uninterested(Peer peer) {
+        if (unchokeSlots == 0) {
+            return;
+        }
+        if (peer.unchoked) {
+            unchoked.remove(peer);
+            round.remove(peer);
+            peer.unchoked = false;
+            UNCHOKED.decrement();
+            if (!waiting.isEmpty()) {
+                unchoke(waiting.pollFirst(), System.nanoTime());
+                WAITING.decrement();
+                UNCHOKED.increment();
+            }
+        } else if (waiting.remove(peer)) {
+            WAITING.decrement();
+        }
+    }
+
+    /**
+     * Gives a peer a slot. A peer taken from the waiting line must already be
+     * out of it.
+     */
+    private void unchoke(Peer peer, long now) {
+        peer.unchoked = true;
+        peer.unchokedAt = now;
+        peer.deficit = 0;
+        peer.visited = false;
+        unchoked.addLast(peer);
+    }
+
+    /**
+     * A client host and its connections' shared credit.
+     */
+    static class Peer {
+        final String host; // Client host
+        final int weight; // Share of bandwidth relative to other peers
+        final ArrayDeque<Flow> ready = new ArrayDeque<>(); // Connections that can send now, next first
+        int connections; // Open connections
+        int pending; // Connections with output
+        long deficit; // Bytes the peer may still send this round
+        boolean visited; // Credit for this round has been given
+        boolean unchoked; // Holds a slot
+        long unchokedAt; // System.nanoTime() when it got its slot
+
+        Peer(String host, int weight) {
+            this.host = host;
+            this.weight = weight;
+        }
+    }
+
+    /**
+     * Scheduling state of one connection.
+     */
+    public static class Flow {
+        final Peer peer; // Host the connection comes from
+        final Object attachment; // The server's state for the connection
+        boolean pending; // Has output queued or in progress
+        boolean blocked; // Socket buffer is full
+        boolean ready; // Pending and not blocked; in the peer's ready queue
+
+        Flow(Peer peer, Object attachment) {
+            this.peer = peer;
+            this.attachment = attachment;
+        }
+
+        /**
+         * @return The server's state for the connection.
+         */
+        public Object attachment() {
+            return attachment;
+        }
+
+        /**
+         * @return true if the socket buffer was full at the last update.
+         */
+        public boolean isBlocked() {
+            return blocked;
+        }
+    }
+}
\ No newline at end of file